@@ -0,0 +1,232 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.n_i_e.dirtreedb;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashes many local files at once with AsynchronousFileChannel, keeping up to maxOutstanding reads
+ * in flight across files. Submitted files start in order of size class (smallest first), then of submission.
+ * Each file has one read outstanding at a time; its digest is updated in the completion handler.
+ * Note the JDK emulates asynchronous file I/O with the channel's thread pool except on Windows,
+ * so the pool is sized to maxOutstanding to get that queue depth at the device.
+ */
+public class AsyncHashService<K> implements Closeable {
+	private static final int CHUNK_SIZE = 256*1024;
+
+	public static class Done<K> {
+		private final K key;
+		private final byte[] digest;
+		private final long size;
+		private final IOException error;
+
+		Done(K key, byte[] digest, long size, IOException error) {
+			this.key = key;
+			this.digest = digest;
+			this.size = size;
+			this.error = error;
+		}
+
+		public K getKey() { return key; }
+		public byte[] getDigest() { return digest; }
+		public long getSize() { return size; }
+		public IOException getError() { return error; }
+
+		public int getCsum() {
+			return ByteBuffer.wrap(digest).getInt();
+		}
+	}
+
+	private class Job implements CompletionHandler<Integer, Void>, Comparable<Job> {
+		final K key;
+		final File file;
+		final int sizeClass;
+		final long sequence;
+		AsynchronousFileChannel channel;
+		MessageDigest md;
+		ByteBuffer buff;
+		long position = 0;
+
+		Job(K key, File file, long size, long sequence) {
+			this.key = key;
+			this.file = file;
+			this.sizeClass = 64 - Long.numberOfLeadingZeros(Math.max(size, 0));
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Job o) {
+			if (sizeClass != o.sizeClass) {
+				return sizeClass < o.sizeClass ? -1 : 1;
+			}
+			return Long.compare(sequence, o.sequence);
+		}
+
+		void start() {
+			try {
+				md = MessageDigest.getInstance(algorithm);
+				channel = AsynchronousFileChannel.open(file.toPath(),
+						Collections.singleton(StandardOpenOption.READ), executor);
+				buff = ByteBuffer.allocate((int)Math.min(CHUNK_SIZE, Math.max(channel.size(), 1)));
+				channel.read(buff, position, null, this);
+			} catch (IOException e) {
+				finish(null, e, false);
+			} catch (NoSuchAlgorithmException | RuntimeException e) {
+				finish(null, new IOException(e), false);
+			}
+		}
+
+		@Override
+		public void completed(Integer n, Void attachment) {
+			if (n < 0) {
+				finish(md.digest(), null, true);
+				return;
+			}
+			buff.flip();
+			md.update(buff);
+			buff.clear();
+			position += n;
+			try {
+				if (limiter != null) {
+					limiter.acquire(n);
+				}
+				channel.read(buff, position, null, this);
+			} catch (InterruptedIOException e) {
+				finish(null, e, true);
+			} catch (RuntimeException e) {
+				finish(null, new IOException(e), true);
+			}
+		}
+
+		@Override
+		public void failed(Throwable e, Void attachment) {
+			finish(null, e instanceof IOException ? (IOException)e : new IOException(e), true);
+		}
+
+		// pumpNext is false when start() fails, as pump() is already looping then
+		private void finish(byte[] digest, IOException error, boolean pumpNext) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {}
+			}
+			done.add(new Done<K>(key, digest, position, error));
+			synchronized (AsyncHashService.this) {
+				outstanding--;
+			}
+			if (pumpNext) {
+				pump();
+			}
+		}
+	}
+
+	private final String algorithm;
+	private final int maxOutstanding;
+	private final BandwidthLimiter limiter;
+	private final ExecutorService executor;
+	private final PriorityQueue<Job> pending = new PriorityQueue<Job>();
+	private final LinkedBlockingQueue<Done<K>> done = new LinkedBlockingQueue<Done<K>>();
+	private int outstanding = 0;
+	private long sequenceCounter = 0;
+
+	public AsyncHashService(String algorithm, int maxOutstanding, BandwidthLimiter limiter) {
+		Assertion.assertAssertionError(maxOutstanding > 0);
+		this.algorithm = algorithm;
+		this.maxOutstanding = maxOutstanding;
+		this.limiter = limiter;
+		this.executor = Executors.newFixedThreadPool(maxOutstanding, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "AsyncHashService");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public void submit(K key, File file, long size) {
+		synchronized (this) {
+			pending.add(new Job(key, file, size, sequenceCounter++));
+		}
+		pump();
+	}
+
+	private void pump() {
+		for (;;) {
+			Job job;
+			synchronized (this) {
+				if (outstanding >= maxOutstanding || pending.isEmpty()) {
+					return;
+				}
+				outstanding++;
+				job = pending.poll();
+			}
+			job.start();
+		}
+	}
+
+	/**
+	 * Number of files submitted but not yet taken by drain().
+	 */
+	public synchronized int getNumUnfinished() {
+		return pending.size() + outstanding + done.size();
+	}
+
+	/**
+	 * Takes finished results; waits until at least one is available if wait is true and anything is unfinished.
+	 */
+	public List<Done<K>> drain(boolean wait) throws InterruptedException {
+		List<Done<K>> result = new ArrayList<Done<K>>();
+		if (wait && done.isEmpty() && getNumUnfinished() > 0) {
+			Done<K> d;
+			while ((d = done.poll(100, TimeUnit.MILLISECONDS)) == null) {
+				if (getNumUnfinished() == 0) {
+					return result;
+				}
+			}
+			result.add(d);
+		}
+		done.drainTo(result);
+		return result;
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			pending.clear();
+		}
+		executor.shutdown();
+	}
+}
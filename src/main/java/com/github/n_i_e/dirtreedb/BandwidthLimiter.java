@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.n_i_e.dirtreedb;
+
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import com.github.n_i_e.dirtreedb.debug.Debug;
+
+/**
+ * Token bucket shared by all threads reading contents for one purpose.
+ * The bucket holds at most one second worth of tokens; limit 0 means unlimited.
+ */
+public class BandwidthLimiter {
+	private static final long REPORT_INTERVAL = 60*1000;
+
+	private static final BandwidthLimiter csumLimiter = new BandwidthLimiter("csum");
+	private static final BandwidthLimiter equalityLimiter = new BandwidthLimiter("equality");
+
+	static {
+		PreferenceRW.addObserver(new IPreferenceObserver() {
+			@Override public void setCsumBandwidthLimit(int megaBytesPerSecond) {
+				getCsumLimiter().setMegaBytesPerSecond(megaBytesPerSecond);
+			}
+			@Override public void setEqualityBandwidthLimit(int megaBytesPerSecond) {
+				getEqualityLimiter().setMegaBytesPerSecond(megaBytesPerSecond);
+			}
+		});
+	}
+
+	/**
+	 * For checksum calculation (PathEntry.setCsum()).
+	 */
+	public static BandwidthLimiter getCsumLimiter() {
+		return csumLimiter;
+	}
+
+	/**
+	 * For equality verification (Updater.Dispatcher.checkEquality()).
+	 */
+	public static BandwidthLimiter getEqualityLimiter() {
+		return equalityLimiter;
+	}
+
+	private final String name;
+	private long bytesPerSecond = 0;
+	private double tokens = 0;
+	private long lastRefill = System.nanoTime();
+
+	private long reportStart = System.currentTimeMillis();
+	private long reportBytes = 0;
+	private long totalBytes = 0;
+	private double throughput = 0;
+
+	public BandwidthLimiter(String name) {
+		this.name = name;
+	}
+
+	public synchronized void setMegaBytesPerSecond(int megaBytesPerSecond) {
+		bytesPerSecond = megaBytesPerSecond > 0 ? megaBytesPerSecond * 1024L * 1024L : 0;
+		tokens = Math.min(tokens, bytesPerSecond);
+	}
+
+	public synchronized int getMegaBytesPerSecond() {
+		return (int)(bytesPerSecond / 1024 / 1024);
+	}
+
+	/**
+	 * Bytes per second measured over the last report interval.
+	 */
+	public synchronized double getThroughput() {
+		return throughput;
+	}
+
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * Called after reading len bytes; sleeps until the bucket has enough tokens.
+	 */
+	public void acquire(int len) throws InterruptedIOException {
+		if (len <= 0) {
+			return;
+		}
+		long sleep;
+		synchronized (this) {
+			count(len);
+			if (bytesPerSecond <= 0) {
+				return;
+			}
+			long now = System.nanoTime();
+			tokens = Math.min(bytesPerSecond, tokens + (now - lastRefill) * bytesPerSecond / 1e9);
+			lastRefill = now;
+			tokens -= len;
+			sleep = tokens >= 0 ? 0 : (long)(-tokens * 1000 / bytesPerSecond);
+		}
+		if (sleep > 0) {
+			try {
+				Thread.sleep(sleep);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	private void count(int len) {
+		totalBytes += len;
+		reportBytes += len;
+		long t = System.currentTimeMillis();
+		if (t - reportStart >= REPORT_INTERVAL) {
+			throughput = reportBytes * 1000.0 / (t - reportStart);
+			Debug.writelog(String.format("BandwidthLimiter %s: %.1f MB/s (limit %s)", name,
+					throughput / 1024 / 1024, bytesPerSecond > 0 ? getMegaBytesPerSecond() + " MB/s" : "none"));
+			reportStart = t;
+			reportBytes = 0;
+		}
+	}
+
+	public InputStream wrap(InputStream inf) {
+		if (inf == null) {
+			return null;
+		}
+		return new ThrottledInputStream(inf, this);
+	}
+}
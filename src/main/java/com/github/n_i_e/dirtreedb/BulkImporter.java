@@ -0,0 +1,322 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.n_i_e.dirtreedb;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.github.n_i_e.dirtreedb.debug.Debug;
+import com.github.n_i_e.dirtreedb.lister.DirLister;
+
+/**
+ * Imports a whole folder tree at once; used for the first crawl of a new root.
+ * Folders are listed in parallel by a thread pool, and the children are inserted in batches.
+ * Children of a folder inserted in the same run are not looked up (noChildInDB).
+ * A folder becomes CLEAN when all its children are inserted, so that importRoot() resumes
+ * an interrupted import from where it stopped.
+ */
+public class BulkImporter {
+	private static final long PROGRESS_INTERVAL = 60*1000;
+
+	private final Updater db;
+	private int numThreads = PreferenceRW.getNumCrawlingThreads();
+	private int batchSize = 1000;
+	private boolean deferIndexes = false;
+	private boolean refreshAtEnd = true;
+
+	private long folderCount = 0;
+	private long fileCount = 0;
+	private long byteCount = 0;
+	private long resumedFolderCount = 0;
+	private String lastFinishedPath = null;
+
+	public BulkImporter(Updater db) {
+		Assertion.assertNullPointerException(db != null);
+		this.db = db;
+	}
+
+	public void setNumThreads(int numThreads) { this.numThreads = numThreads > 0 ? numThreads : 1; }
+	public int getNumThreads() { return numThreads; }
+
+	public void setBatchSize(int batchSize) { this.batchSize = batchSize > 0 ? batchSize : 1; }
+	public int getBatchSize() { return batchSize; }
+
+	/**
+	 * Drop secondary indexes of directory table while importing, and create them at the end.
+	 */
+	public void setDeferIndexes(boolean deferIndexes) { this.deferIndexes = deferIndexes; }
+	public boolean isDeferIndexes() { return deferIndexes; }
+
+	/**
+	 * Compute upperlower entries and folder sizes at the end, instead of leaving them to the maintainer.
+	 */
+	public void setRefreshAtEnd(boolean refreshAtEnd) { this.refreshAtEnd = refreshAtEnd; }
+	public boolean isRefreshAtEnd() { return refreshAtEnd; }
+
+	public long getFolderCount() { return folderCount; }
+	public long getFileCount() { return fileCount; }
+	public long getByteCount() { return byteCount; }
+	public long getResumedFolderCount() { return resumedFolderCount; }
+
+	/**
+	 * The folder most recently marked CLEAN; everything listed before it survives an interruption.
+	 */
+	public String getLastFinishedPath() { return lastFinishedPath; }
+
+	/**
+	 * Called once per folder on the importing thread; override to yield or to throw InterruptedException.
+	 */
+	protected void beacon() throws InterruptedException {}
+
+	private static class ListedFolder {
+		final DBPathEntry entry;
+		final boolean hasNoChildInDB;
+		final PathEntry newentry;
+		final List<PathEntry> children;
+		final IOException exception;
+
+		ListedFolder(DBPathEntry entry, boolean hasNoChildInDB, PathEntry newentry, List<PathEntry> children) {
+			this.entry = entry;
+			this.hasNoChildInDB = hasNoChildInDB;
+			this.newentry = newentry;
+			this.children = children;
+			this.exception = null;
+		}
+
+		ListedFolder(DBPathEntry entry, IOException exception) {
+			this.entry = entry;
+			this.hasNoChildInDB = false;
+			this.newentry = null;
+			this.children = null;
+			this.exception = exception;
+		}
+	}
+
+	public void importRoot(DBPathEntry root) throws SQLException, InterruptedException {
+		Assertion.assertNullPointerException(root != null);
+		Assertion.assertAssertionError(root.isFolder(), "!! bulk import root is not a folder: " + root.getPath());
+
+		final BlockingQueue<ListedFolder> listed = new ArrayBlockingQueue<ListedFolder>(numThreads*4);
+		final ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		long t0 = new Date().getTime();
+		long t1 = t0;
+		if (deferIndexes) {
+			db.dropSecondaryIndexes();
+		}
+		try {
+			int pending = enqueue(pool, listed, root, false);
+			while (pending > 0) {
+				ListedFolder f = listed.take();
+				pending--;
+				pending += store(pool, listed, f);
+				beacon();
+				long t2 = new Date().getTime();
+				if (t2 - t1 >= PROGRESS_INTERVAL) {
+					writeProgress(t2 - t0, pending);
+					t1 = t2;
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			if (deferIndexes) {
+				db.createSecondaryIndexes();
+			}
+		}
+		writeProgress(new Date().getTime() - t0, 0);
+
+		if (refreshAtEnd) {
+			refresh();
+			Debug.writelog("BulkImporter refresh finished: " + root.getPath());
+		}
+	}
+
+	private int enqueue(ExecutorService pool, final BlockingQueue<ListedFolder> listed,
+			DBPathEntry folder, boolean hasNoChildInDB) throws SQLException, InterruptedException {
+		int count = 0;
+		Deque<DBPathEntry> stack = new ArrayDeque<DBPathEntry>();
+		stack.push(folder);
+		while (stack.size() > 0) {
+			final DBPathEntry f = stack.pop();
+			final boolean n = (f == folder) && hasNoChildInDB;
+			if (!n && f.isClean()) { // finished in a former run
+				resumedFolderCount++;
+				for (DBPathEntry child: getChildFolders(f)) {
+					stack.push(child);
+				}
+				continue;
+			}
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					ListedFolder result;
+					try {
+						File fileobj = Updater.getFileIfExists(f);
+						if (fileobj == null) {
+							throw new FileNotFoundException("!! Folder not found: " + f.getPath());
+						}
+						PathEntry newentry = Updater.getNewPathEntry(f, fileobj);
+						DirLister lister = new DirLister(f, fileobj);
+						List<PathEntry> children = new ArrayList<PathEntry>();
+						while (lister.hasNext()) {
+							children.add(lister.next());
+						}
+						lister.close();
+						result = new ListedFolder(f, n, newentry, children);
+					} catch (IOException e) {
+						result = new ListedFolder(f, e);
+					} catch (SQLException e) {
+						result = new ListedFolder(f, new IOException(e));
+					}
+					try {
+						listed.put(result);
+					} catch (InterruptedException e) {
+						return; // shutdown
+					}
+				}
+			});
+			count++;
+		}
+		return count;
+	}
+
+	private int store(ExecutorService pool, BlockingQueue<ListedFolder> listed, ListedFolder f)
+			throws SQLException, InterruptedException {
+		if (f.exception != null) {
+			Debug.writelog("BulkImporter cannot list <" + f.entry.getPath() + ">: " + f.exception.toString());
+			db.disable(f.entry);
+			return 0;
+		}
+
+		final Map<String, DBPathEntry> oldfolder;
+		if (f.hasNoChildInDB) {
+			oldfolder = new HashMap<String, DBPathEntry>();
+		} else {
+			oldfolder = db.childrenList(f.entry);
+		}
+
+		long new_size = 0;
+		long new_compressedsize = 0;
+		Set<String> inserted = new HashSet<String>();
+		List<PathEntry> batch = new ArrayList<PathEntry>();
+		for (PathEntry newchild: f.children) {
+			if (newchild.isFolder()) {
+				folderCount++;
+			} else {
+				fileCount++;
+				if (newchild.getSize() >= 0) {
+					byteCount += newchild.getSize();
+					new_size += newchild.getSize();
+					new_compressedsize += newchild.getCompressedSize();
+				}
+			}
+			DBPathEntry oldchild = oldfolder.remove(newchild.getPath());
+			if (oldchild == null) {
+				inserted.add(newchild.getPath());
+				batch.add(newchild);
+				if (batch.size() >= batchSize) {
+					db.insertBatch(f.entry, batch);
+					batch = new ArrayList<PathEntry>();
+				}
+			} else if (newchild.isFile() && !PathEntry.dscMatch(oldchild, newchild)) {
+				db.update(oldchild, newchild);
+			}
+		}
+		db.insertBatch(f.entry, batch);
+		for (DBPathEntry p: oldfolder.values()) {
+			db.orphanize(p);
+		}
+
+		f.newentry.setSize(new_size);
+		f.newentry.setCompressedSize(new_compressedsize);
+		f.newentry.setStatus(PathEntry.CLEAN);
+		db.update(f.entry, f.newentry);
+		consumeUpdateQueue();
+		lastFinishedPath = f.entry.getPath();
+
+		int count = 0;
+		for (DBPathEntry child: getChildFolders(f.entry)) {
+			count += enqueue(pool, listed, child, inserted.contains(child.getPath()));
+		}
+		return count;
+	}
+
+	private List<DBPathEntry> getChildFolders(DBPathEntry entry) throws SQLException, InterruptedException {
+		List<DBPathEntry> result = new ArrayList<DBPathEntry>();
+		PreparedStatement ps = db.prepareStatement("SELECT * FROM directory WHERE parentid=? AND type=0");
+		ps.setLong(1, entry.getPathId());
+		ResultSet rs = ps.executeQuery();
+		try {
+			while (rs.next()) {
+				result.add(db.rsToPathEntry(rs));
+			}
+		} finally {
+			rs.close();
+			ps.close();
+		}
+		return result;
+	}
+
+	private void consumeUpdateQueue() throws SQLException, InterruptedException {
+		if (db instanceof UpdaterWithUpdateQueue) {
+			((UpdaterWithUpdateQueue)db).consumeUpdateQueue();
+		}
+	}
+
+	private void refresh() throws SQLException, InterruptedException {
+		int c;
+		do {
+			c = db.refreshDirectUpperLower();
+			consumeUpdateQueue();
+			beacon();
+		} while (c > 0);
+		do {
+			c = db.refreshIndirectUpperLower();
+			consumeUpdateQueue();
+			beacon();
+		} while (c > 0);
+		do {
+			c = db.refreshFolderSizes();
+			consumeUpdateQueue();
+			beacon();
+		} while (c > 0);
+	}
+
+	private void writeProgress(long elapsed, int pending) {
+		long sec = elapsed / 1000;
+		long rate = sec > 0 ? (folderCount + fileCount) / sec : 0;
+		Debug.writelog(String.format("BulkImporter progress: folders=%d files=%d bytes=%d resumed=%d pending=%d "
+				+ "elapsed=%ds rate=%d/s last=<%s>",
+				folderCount, fileCount, byteCount, resumedFolderCount, pending, sec, rate, lastFinishedPath));
+	}
+}
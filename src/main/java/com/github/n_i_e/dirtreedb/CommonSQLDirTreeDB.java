@@ -19,11 +19,17 @@ package com.github.n_i_e.dirtreedb;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import com.github.n_i_e.dirtreedb.debug.Debug;
 import com.github.n_i_e.dirtreedb.debug.PreparedStatementWithDebugLog;
@@ -31,6 +37,14 @@ import com.github.n_i_e.dirtreedb.debug.StatementWithDebugLog;
 
 public abstract class CommonSQLDirTreeDB implements IDirTreeDB {
 	Connection conn;
+	private boolean folderStatsAvailable = false;
+	private boolean equalityGroupAvailable = false;
+	private boolean chunkIndexAvailable = false;
+	private boolean fileInodeAvailable = false;
+	private boolean memberIndexAvailable = false;
+	private boolean nativeCrcAvailable = false;
+	private boolean listingCacheAvailable = false;
+	private boolean listingCheckpointAvailable = false;
 
 	@Override
 	public void close() throws SQLException {
@@ -83,6 +97,13 @@ public abstract class CommonSQLDirTreeDB implements IDirTreeDB {
 			result.setCsum(newcsum);
 		}
 
+		if (nativeCrcAvailable) {
+			int newnativecrc = rs.getInt(prefix + "nativecrc");
+			if (!rs.wasNull()) {
+				result.setNativeCrc(newnativecrc);
+			}
+		}
+
 		result.setStatus(rs.getInt(prefix + "status"));
 
 		return result;
@@ -108,13 +129,17 @@ public abstract class CommonSQLDirTreeDB implements IDirTreeDB {
 			} else {
 				assert(basedir.getPath().equals(newentry.getPath().substring(0, basedir.getPath().length())));
 				PreparedStatement ps;
+				String nativecrc = nativeCrcAvailable ? ", nativecrc" : "";
+				String nativecrcValue = nativeCrcAvailable ? ", ?" : "";
 				if (newentry.isCsumNull()) {
-					sql = "INSERT INTO directory (parentid, rootid, datelastmodified, size, compressedsize, path, type, status, duplicate, dedupablesize) VALUES (?, ?, ?, ?, ?, ?, ?, 1, 0, 0)";
+					sql = "INSERT INTO directory (parentid, rootid, datelastmodified, size, compressedsize, path, type, status, duplicate, dedupablesize" + nativecrc + ") VALUES (?, ?, ?, ?, ?, ?, ?, 1, 0, 0" + nativecrcValue + ")";
 					ps = prepareStatement(sql);
+					setNativeCrc(ps, 8, newentry);
 				} else {
-					sql = "INSERT INTO directory (parentid, rootid, datelastmodified, size, compressedsize, path, type, status, duplicate, dedupablesize, csum) VALUES (?, ?, ?, ?, ?, ?, ?, 1, 0, 0, ?)";
+					sql = "INSERT INTO directory (parentid, rootid, datelastmodified, size, compressedsize, path, type, status, duplicate, dedupablesize, csum" + nativecrc + ") VALUES (?, ?, ?, ?, ?, ?, ?, 1, 0, 0, ?" + nativecrcValue + ")";
 					ps = prepareStatement(sql);
 					ps.setInt(8, newentry.getCsum());
+					setNativeCrc(ps, 9, newentry);
 				}
 				ps.setLong(1, basedir.getPathId());
 				ps.setLong(2, basedir.getRootId());
@@ -138,21 +163,69 @@ public abstract class CommonSQLDirTreeDB implements IDirTreeDB {
 		}
 	}
 
+	@Override
+	public void insertBatch(DBPathEntry basedir, List<PathEntry> newentries) throws SQLException, InterruptedException {
+		Assertion.assertNullPointerException(basedir != null);
+		Assertion.assertNullPointerException(newentries != null);
+		if (newentries.size() == 0) {
+			return;
+		}
+		String sql = "INSERT INTO directory (parentid, rootid, datelastmodified, size, compressedsize, path, type, status, duplicate, dedupablesize, csum"
+				+ (nativeCrcAvailable ? ", nativecrc) VALUES (?, ?, ?, ?, ?, ?, ?, 1, 0, 0, ?, ?)" : ") VALUES (?, ?, ?, ?, ?, ?, ?, 1, 0, 0, ?)");
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		try {
+			PreparedStatement ps = prepareStatement(sql);
+			try {
+				for (PathEntry newentry: newentries) {
+					assert(basedir.getPath().equals(newentry.getPath().substring(0, basedir.getPath().length())));
+					ps.setLong(1, basedir.getPathId());
+					ps.setLong(2, basedir.getRootId());
+					ps.setTimestamp(3, new Timestamp(newentry.getDateLastModified()));
+					ps.setLong(4, newentry.getSize());
+					ps.setLong(5, newentry.getCompressedSize());
+					ps.setString(6, newentry.getPath());
+					ps.setInt(7, newentry.getType());
+					if (newentry.isCsumNull()) {
+						ps.setNull(8, Types.INTEGER);
+					} else {
+						ps.setInt(8, newentry.getCsum());
+					}
+					setNativeCrc(ps, 9, newentry);
+					ps.addBatch();
+				}
+				ps.executeBatch();
+				conn.commit();
+			} finally {
+				ps.close();
+			}
+		} catch (SQLException e) {
+			Debug.writelog("!! SQL batch insert failed at CommonSQLDirTreeDB, basedir.path = " + basedir.getPath());
+			conn.rollback();
+			throw e;
+		} finally {
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
 	@Override
 	public void update(DBPathEntry oldentry, PathEntry newentry) throws SQLException, InterruptedException
 	{
 		Assertion.assertAssertionError(oldentry.getPath().equals(newentry.getPath()));
 
 		PreparedStatement ps;
+		String nativecrc = nativeCrcAvailable ? ", nativecrc=?" : "";
 		if (newentry.isCsumNull()) {
 			ps = prepareStatement("UPDATE directory SET "
-					+ "datelastmodified=?, size=?, compressedsize=?, status=?,  csum=NULL WHERE pathid=?");
-			ps.setLong(5, oldentry.getPathId());
+					+ "datelastmodified=?, size=?, compressedsize=?, status=?,  csum=NULL" + nativecrc + " WHERE pathid=?");
+			setNativeCrc(ps, 5, newentry);
+			ps.setLong(nativeCrcAvailable ? 6 : 5, oldentry.getPathId());
 		} else {
 			ps = prepareStatement("UPDATE directory SET "
-					+ "datelastmodified=?, size=?, compressedsize=?, status=?, csum=? WHERE pathid=?");
+					+ "datelastmodified=?, size=?, compressedsize=?, status=?, csum=?" + nativecrc + " WHERE pathid=?");
 			ps.setLong(5, newentry.getCsum());
-			ps.setLong(6, oldentry.getPathId());
+			setNativeCrc(ps, 6, newentry);
+			ps.setLong(nativeCrcAvailable ? 7 : 6, oldentry.getPathId());
 		}
 		ps.setTimestamp(1, new Timestamp(newentry.getDateLastModified()));
 		ps.setLong(2, newentry.getSize());
@@ -190,6 +263,49 @@ public abstract class CommonSQLDirTreeDB implements IDirTreeDB {
 		} finally {
 			ps.close();
 		}
+		if (entry.isFolder() && folderStatsAvailable) {
+			ps = prepareStatement("DELETE FROM folderstats WHERE pathid=?");
+			try {
+				ps.setLong(1, entry.getPathId());
+				ps.executeUpdate();
+			} finally {
+				ps.close();
+			}
+		}
+		if ((entry.isFile() || entry.isCompressedFile()) && equalityGroupAvailable) {
+			ps = prepareStatement("DELETE FROM equalitygroupmember WHERE pathid=?");
+			try {
+				ps.setLong(1, entry.getPathId());
+				ps.executeUpdate();
+			} finally {
+				ps.close();
+			}
+		}
+		if ((entry.isFile() || entry.isCompressedFile()) && chunkIndexAvailable) {
+			deleteChunks(entry.getPathId());
+		}
+		if ((entry.isFile() || entry.isCompressedFile()) && memberIndexAvailable) {
+			ps = prepareStatement("DELETE FROM memberindex WHERE pathid=? OR parentid=?");
+			try {
+				ps.setLong(1, entry.getPathId());
+				ps.setLong(2, entry.getPathId());
+				ps.executeUpdate();
+			} finally {
+				ps.close();
+			}
+		}
+		if ((entry.isFile() || entry.isCompressedFile()) && listingCacheAvailable) {
+			ps = prepareStatement("DELETE FROM listingcache WHERE pathid=?");
+			try {
+				ps.setLong(1, entry.getPathId());
+				ps.executeUpdate();
+			} finally {
+				ps.close();
+			}
+		}
+		if ((entry.isFile() || entry.isCompressedFile()) && listingCheckpointAvailable) {
+			deleteListingCheckpoint(entry.getPathId());
+		}
 	}
 
 	@Override
@@ -241,6 +357,22 @@ public abstract class CommonSQLDirTreeDB implements IDirTreeDB {
 		}
 	}
 
+	@Override
+	public void updatePath(DBPathEntry entry, String newpath, long newrootid) throws SQLException, InterruptedException {
+		Assertion.assertNullPointerException(entry != null);
+		Assertion.assertNullPointerException(newpath != null);
+		PreparedStatement ps;
+		ps = prepareStatement("UPDATE directory SET path=?, rootid=? WHERE pathid=?");
+		try {
+			ps.setString(1, newpath);
+			ps.setLong(2, newrootid);
+			ps.setLong(3, entry.getPathId());
+			ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+	}
+
 	@Override
 	public void orphanize(DBPathEntry entry) throws SQLException, InterruptedException {
 		updateParentId(entry, -1);
@@ -348,4 +480,818 @@ public abstract class CommonSQLDirTreeDB implements IDirTreeDB {
 			ps.close();
 		}
 	}
+
+	/**
+	 * Indexes on directory table which are not needed while bulk importing (parentid, rootid and path are kept).
+	 */
+	private static final String[][] secondaryIndexes = {
+			{"directory_datelastmodified", "directory (datelastmodified)"},
+			{"directory_size", "directory (size)"},
+			{"directory_compressedsize", "directory (compressedsize)"},
+			{"directory_csum", "directory (csum)"},
+			{"directory_size_csum", "directory (size, csum)"},
+			{"directory_type", "directory (type)"},
+			{"directory_status", "directory (status)"},
+			{"directory_duplicate", "directory (duplicate)"},
+			{"directory_dedupablesize", "directory (dedupablesize)"},
+	};
+
+	@Override
+	public void dropSecondaryIndexes() throws SQLException, InterruptedException {
+		Statement stmt = createStatement();
+		try {
+			for (String[] index: secondaryIndexes) {
+				try {
+					stmt.executeUpdate("DROP INDEX " + index[0]);
+				} catch (SQLException e) {
+					Debug.writelog("SQLException at dropSecondaryIndexes: " + index[0] + " " + e.toString());
+				}
+			}
+		} finally {
+			stmt.close();
+		}
+	}
+
+	@Override
+	public void createSecondaryIndexes() throws SQLException, InterruptedException {
+		Statement stmt = createStatement();
+		try {
+			for (String[] index: secondaryIndexes) {
+				try {
+					stmt.executeUpdate("CREATE INDEX " + index[0] + " ON " + index[1]);
+				} catch (SQLException e) {
+					// already exists
+				}
+			}
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Called at the end of each constructor; folderstats table is added to existing DB files as well.
+	 */
+	protected void createFolderStatsTableIfNotExists() throws SQLException {
+		folderStatsAvailable = hasTable("folderstats");
+		if (folderStatsAvailable) {
+			return;
+		}
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.executeUpdate("CREATE TABLE folderstats (pathid BIGINT NOT NULL PRIMARY KEY, "
+					+ "datefirstchecked BIGINT NOT NULL, datelastchecked BIGINT NOT NULL, "
+					+ "datelastchanged BIGINT NOT NULL, changecount BIGINT NOT NULL, datenextcheck BIGINT NOT NULL)");
+			stmt.executeUpdate("CREATE INDEX folderstats_datenextcheck ON folderstats (datenextcheck)");
+			folderStatsAvailable = true;
+		} catch (SQLException e) {
+			Debug.writelog("!! Cannot create folderstats table: " + e.toString());
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Called at the end of each constructor, after createFolderStatsTableIfNotExists().
+	 * One equalitygroup row per set of files verified identical, with its members in equalitygroupmember.
+	 * samplecycles is the number of sampled checks since datelastfulltest, and samplecount/sampleblocksize
+	 * tell how the last check was done (0 for a full read).
+	 */
+	protected void createEqualityGroupTablesIfNotExists() throws SQLException {
+		equalityGroupAvailable = hasTable("equalitygroup") && hasTable("equalitygroupmember");
+		if (equalityGroupAvailable) {
+			if (!hasColumn("equalitygroup", "samplecycles")) {
+				Statement stmt = conn.createStatement();
+				try {
+					stmt.executeUpdate("ALTER TABLE equalitygroup ADD COLUMN samplecycles INTEGER DEFAULT 0");
+					stmt.executeUpdate("ALTER TABLE equalitygroup ADD COLUMN samplecount INTEGER DEFAULT 0");
+					stmt.executeUpdate("ALTER TABLE equalitygroup ADD COLUMN sampleblocksize INTEGER DEFAULT 0");
+					stmt.executeUpdate("ALTER TABLE equalitygroup ADD COLUMN datelastfulltest TIMESTAMP");
+				} catch (SQLException e) {
+					Debug.writelog("!! Cannot add sampling columns to equalitygroup table: " + e.toString());
+					equalityGroupAvailable = false;
+				} finally {
+					stmt.close();
+				}
+			}
+			return;
+		}
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.executeUpdate("CREATE TABLE equalitygroup (groupid BIGINT NOT NULL PRIMARY KEY, "
+					+ "size BIGINT NOT NULL, csum INTEGER NOT NULL, datelasttested TIMESTAMP NOT NULL, "
+					+ "samplecycles INTEGER DEFAULT 0, samplecount INTEGER DEFAULT 0, sampleblocksize INTEGER DEFAULT 0, "
+					+ "datelastfulltest TIMESTAMP)");
+			stmt.executeUpdate("CREATE INDEX equalitygroup_sizecsum ON equalitygroup (size, csum)");
+			stmt.executeUpdate("CREATE INDEX equalitygroup_datelasttested ON equalitygroup (datelasttested)");
+			stmt.executeUpdate("CREATE TABLE equalitygroupmember (groupid BIGINT NOT NULL, pathid BIGINT NOT NULL, "
+					+ "PRIMARY KEY (groupid, pathid))");
+			stmt.executeUpdate("CREATE INDEX equalitygroupmember_pathid ON equalitygroupmember (pathid)");
+			equalityGroupAvailable = true;
+		} catch (SQLException e) {
+			Debug.writelog("!! Cannot create equalitygroup tables: " + e.toString());
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Called at the end of each constructor, after createEqualityGroupTablesIfNotExists().
+	 * chunk holds the ContentDefinedChunker chunks of a file in order, and chunkedfile the size and csum
+	 * the file had when it was chunked; rows are stale once the directory row has another size or csum.
+	 */
+	protected void createChunkTablesIfNotExists() throws SQLException {
+		chunkIndexAvailable = hasTable("chunk") && hasTable("chunkedfile");
+		if (chunkIndexAvailable) {
+			return;
+		}
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.executeUpdate("CREATE TABLE chunkedfile (pathid BIGINT NOT NULL PRIMARY KEY, "
+					+ "size BIGINT NOT NULL, csum INTEGER NOT NULL)");
+			stmt.executeUpdate("CREATE TABLE chunk (pathid BIGINT NOT NULL, seq INTEGER NOT NULL, "
+					+ "chunkhash BIGINT NOT NULL, chunksize INTEGER NOT NULL, PRIMARY KEY (pathid, seq))");
+			stmt.executeUpdate("CREATE INDEX chunk_chunkhash ON chunk (chunkhash)");
+			chunkIndexAvailable = true;
+		} catch (SQLException e) {
+			Debug.writelog("!! Cannot create chunk tables: " + e.toString());
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Called at the end of each constructor, after createChunkTablesIfNotExists().
+	 * fileinode holds the device and inode of local files with the size, date last modified and csum
+	 * they had then. Rows are left behind when their directory rows are deleted, so that a file moved
+	 * elsewhere is still found by inode; see Updater.cleanupFileInodeOrphans().
+	 */
+	protected void createFileInodeTableIfNotExists() throws SQLException {
+		fileInodeAvailable = hasTable("fileinode");
+		if (fileInodeAvailable) {
+			return;
+		}
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.executeUpdate("CREATE TABLE fileinode (pathid BIGINT NOT NULL PRIMARY KEY, "
+					+ "dev BIGINT NOT NULL, ino BIGINT NOT NULL, size BIGINT NOT NULL, "
+					+ "datelastmodified TIMESTAMP NOT NULL, csum INTEGER)");
+			stmt.executeUpdate("CREATE INDEX fileinode_devino ON fileinode (dev, ino)");
+			fileInodeAvailable = true;
+		} catch (SQLException e) {
+			Debug.writelog("!! Cannot create fileinode table: " + e.toString());
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Called at the end of each constructor, after createFileInodeTableIfNotExists().
+	 * memberindex holds where the data of each member (pathid) of a tar file (parentid) starts,
+	 * with the size and date last modified the tar file had when it was listed.
+	 */
+	protected void createMemberIndexTableIfNotExists() throws SQLException {
+		memberIndexAvailable = hasTable("memberindex");
+		if (memberIndexAvailable) {
+			return;
+		}
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.executeUpdate("CREATE TABLE memberindex (pathid BIGINT NOT NULL PRIMARY KEY, "
+					+ "parentid BIGINT NOT NULL, size BIGINT NOT NULL, datelastmodified TIMESTAMP NOT NULL, "
+					+ "dataoffset BIGINT NOT NULL)");
+			stmt.executeUpdate("CREATE INDEX memberindex_parentid ON memberindex (parentid)");
+			memberIndexAvailable = true;
+		} catch (SQLException e) {
+			Debug.writelog("!! Cannot create memberindex table: " + e.toString());
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Called at the end of each constructor, after createMemberIndexTableIfNotExists().
+	 * directory.nativecrc is the CRC-32 of a COMPRESSEDFILE as stored in the headers of its archive (zip, 7z),
+	 * read without decompressing it; NULL for other rows and for archives with no CRC.
+	 */
+	protected void createNativeCrcColumnIfNotExists() throws SQLException {
+		nativeCrcAvailable = hasColumn("directory", "nativecrc");
+		if (nativeCrcAvailable) {
+			return;
+		}
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.executeUpdate("ALTER TABLE directory ADD COLUMN nativecrc INTEGER");
+			nativeCrcAvailable = true;
+			stmt.executeUpdate("CREATE INDEX directory_size_nativecrc ON directory (size, nativecrc)");
+		} catch (SQLException e) {
+			Debug.writelog("!! Cannot add nativecrc column to directory table: " + e.toString());
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Called at the end of each constructor, after createNativeCrcColumnIfNotExists().
+	 * listingcache holds the MD5 digest (in hex) of each archive (pathid) listed to the end, with the size
+	 * and date last modified it had then, so that another copy of the same archive can take its listing.
+	 */
+	protected void createListingCacheTableIfNotExists() throws SQLException {
+		listingCacheAvailable = hasTable("listingcache");
+		if (listingCacheAvailable) {
+			return;
+		}
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.executeUpdate("CREATE TABLE listingcache (pathid BIGINT NOT NULL PRIMARY KEY, "
+					+ "size BIGINT NOT NULL, datelastmodified TIMESTAMP NOT NULL, digest VARCHAR(32) NOT NULL)");
+			stmt.executeUpdate("CREATE INDEX listingcache_sizedigest ON listingcache (size, digest)");
+			listingCacheAvailable = true;
+		} catch (SQLException e) {
+			Debug.writelog("!! Cannot create listingcache table: " + e.toString());
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Called at the end of each constructor, after createListingCacheTableIfNotExists().
+	 * listingcheckpoint holds how far the listing of an archive (pathid) of the given size and date last modified
+	 * had got and committed, while it is being listed; the row is deleted once it is listed to the end.
+	 */
+	protected void createListingCheckpointTableIfNotExists() throws SQLException {
+		listingCheckpointAvailable = hasTable("listingcheckpoint");
+		if (listingCheckpointAvailable) {
+			return;
+		}
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.executeUpdate("CREATE TABLE listingcheckpoint (pathid BIGINT NOT NULL PRIMARY KEY, "
+					+ "size BIGINT NOT NULL, datelastmodified TIMESTAMP NOT NULL, "
+					+ "entrycount BIGINT NOT NULL, dataoffset BIGINT NOT NULL)");
+			listingCheckpointAvailable = true;
+		} catch (SQLException e) {
+			Debug.writelog("!! Cannot create listingcheckpoint table: " + e.toString());
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Sets parameter i of ps to datelastmodified, as it is stored in directory.datelastmodified.
+	 */
+	@Override
+	public void setDateLastModified(PreparedStatement ps, int i, long datelastmodified) throws SQLException {
+		ps.setTimestamp(i, new Timestamp(datelastmodified));
+	}
+
+	/**
+	 * Sets parameter i of ps to the nativecrc of entry, or NULL; does nothing without the nativecrc column.
+	 */
+	protected void setNativeCrc(PreparedStatement ps, int i, PathEntry entry) throws SQLException {
+		if (!nativeCrcAvailable) {
+			return;
+		} else if (entry.isNativeCrcNull()) {
+			ps.setNull(i, Types.INTEGER);
+		} else {
+			ps.setInt(i, entry.getNativeCrc());
+		}
+	}
+
+	/**
+	 * table must exist.
+	 */
+	private boolean hasColumn(String table, String column) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT * FROM " + table + " WHERE 1=0");
+			try {
+				ResultSetMetaData meta = rs.getMetaData();
+				for (int i=1; i<=meta.getColumnCount(); i++) {
+					if (column.equalsIgnoreCase(meta.getColumnName(i))) {
+						return true;
+					}
+				}
+			} finally {
+				rs.close();
+			}
+		} finally {
+			stmt.close();
+		}
+		return false;
+	}
+
+	private boolean hasTable(String name) throws SQLException {
+		ResultSet rs = conn.getMetaData().getTables(null, null, "%", new String[] {"TABLE"});
+		try {
+			while (rs.next()) {
+				if (name.equalsIgnoreCase(rs.getString("TABLE_NAME"))) {
+					return true;
+				}
+			}
+		} finally {
+			rs.close();
+		}
+		return false;
+	}
+
+	@Override
+	public boolean isEqualityGroupAvailable() {
+		return equalityGroupAvailable;
+	}
+
+	/**
+	 * Deletes all groups of (size, csum) and inserts the given ones, each a list of pathids, tested now.
+	 */
+	@Override
+	public void replaceEqualityGroups(long size, int csum, List<List<Long>> groups)
+			throws SQLException, InterruptedException {
+		if (!equalityGroupAvailable) {
+			return;
+		}
+		PreparedStatement ps = prepareStatement("DELETE FROM equalitygroupmember WHERE groupid IN "
+				+ "(SELECT groupid FROM equalitygroup WHERE size=? AND csum=?)");
+		try {
+			ps.setLong(1, size);
+			ps.setInt(2, csum);
+			ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+		ps = prepareStatement("DELETE FROM equalitygroup WHERE size=? AND csum=?");
+		try {
+			ps.setLong(1, size);
+			ps.setInt(2, csum);
+			ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+
+		Timestamp now = new Timestamp(new Date().getTime());
+		for (List<Long> group: groups) {
+			long groupid = getNewGroupId();
+			ps = prepareStatement("INSERT INTO equalitygroup (groupid, size, csum, datelasttested, "
+					+ "samplecycles, samplecount, sampleblocksize, datelastfulltest) VALUES (?, ?, ?, ?, 0, 0, 0, ?)");
+			try {
+				ps.setLong(1, groupid);
+				ps.setLong(2, size);
+				ps.setInt(3, csum);
+				ps.setTimestamp(4, now);
+				ps.setTimestamp(5, now);
+				ps.executeUpdate();
+			} finally {
+				ps.close();
+			}
+			ps = prepareStatement("INSERT INTO equalitygroupmember (groupid, pathid) VALUES (?, ?)");
+			try {
+				for (long pathid: group) {
+					ps.setLong(1, groupid);
+					ps.setLong(2, pathid);
+					ps.executeUpdate();
+				}
+			} finally {
+				ps.close();
+			}
+		}
+	}
+
+	/**
+	 * Records a sampled check that found all groups of (size, csum) unchanged.
+	 */
+	@Override
+	public void updateEqualityGroupsSampled(long size, int csum, int samplecount, int sampleblocksize)
+			throws SQLException, InterruptedException {
+		if (!equalityGroupAvailable) {
+			return;
+		}
+		PreparedStatement ps = prepareStatement("UPDATE equalitygroup SET datelasttested=?, samplecycles=samplecycles+1, "
+				+ "samplecount=?, sampleblocksize=? WHERE size=? AND csum=?");
+		try {
+			ps.setTimestamp(1, new Timestamp(new Date().getTime()));
+			ps.setInt(2, samplecount);
+			ps.setInt(3, sampleblocksize);
+			ps.setLong(4, size);
+			ps.setInt(5, csum);
+			ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+	}
+
+	@Override
+	public boolean isChunkIndexAvailable() {
+		return chunkIndexAvailable;
+	}
+
+	/**
+	 * Replaces the chunk rows of pathid with chunks, read from contents of the given size and csum.
+	 */
+	@Override
+	public void replaceChunks(long pathid, long size, int csum, List<ContentDefinedChunker.Chunk> chunks)
+			throws SQLException, InterruptedException {
+		if (!chunkIndexAvailable) {
+			return;
+		}
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		try {
+			deleteChunks(pathid);
+			PreparedStatement ps = prepareStatement("INSERT INTO chunk (pathid, seq, chunkhash, chunksize) VALUES (?, ?, ?, ?)");
+			try {
+				int seq = 0;
+				for (ContentDefinedChunker.Chunk chunk: chunks) {
+					ps.setLong(1, pathid);
+					ps.setInt(2, seq++);
+					ps.setLong(3, chunk.getHash());
+					ps.setInt(4, chunk.getLength());
+					ps.addBatch();
+				}
+				ps.executeBatch();
+			} finally {
+				ps.close();
+			}
+			ps = prepareStatement("INSERT INTO chunkedfile (pathid, size, csum) VALUES (?, ?, ?)");
+			try {
+				ps.setLong(1, pathid);
+				ps.setLong(2, size);
+				ps.setInt(3, csum);
+				ps.executeUpdate();
+			} finally {
+				ps.close();
+			}
+			conn.commit();
+		} catch (SQLException e) {
+			Debug.writelog("!! SQL chunk insert failed at CommonSQLDirTreeDB, pathid = " + pathid);
+			conn.rollback();
+			throw e;
+		} finally {
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
+	@Override
+	public boolean isFileInodeAvailable() {
+		return fileInodeAvailable;
+	}
+
+	/**
+	 * Records pathid as the file id with csum; rows of deleted files with the same device and inode are dropped.
+	 */
+	@Override
+	public void updateFileInode(long pathid, FileIdentity id, int csum) throws SQLException, InterruptedException {
+		if (!fileInodeAvailable) {
+			return;
+		}
+		PreparedStatement ps = prepareStatement("DELETE FROM fileinode WHERE pathid=? OR (dev=? AND ino=?"
+				+ " AND NOT EXISTS (SELECT * FROM directory WHERE directory.pathid=fileinode.pathid))");
+		try {
+			ps.setLong(1, pathid);
+			ps.setLong(2, id.getDevice());
+			ps.setLong(3, id.getInode());
+			ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+		ps = prepareStatement("INSERT INTO fileinode (pathid, dev, ino, size, datelastmodified, csum) VALUES (?, ?, ?, ?, ?, ?)");
+		try {
+			ps.setLong(1, pathid);
+			ps.setLong(2, id.getDevice());
+			ps.setLong(3, id.getInode());
+			ps.setLong(4, id.getSize());
+			ps.setTimestamp(5, new Timestamp(id.getDateLastModified()));
+			ps.setInt(6, csum);
+			ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+	}
+
+	@Override
+	public void deleteFileInode(long pathid) throws SQLException, InterruptedException {
+		if (!fileInodeAvailable) {
+			return;
+		}
+		PreparedStatement ps = prepareStatement("DELETE FROM fileinode WHERE pathid=?");
+		try {
+			ps.setLong(1, pathid);
+			ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+	}
+
+	@Override
+	public boolean isNativeCrcAvailable() {
+		return nativeCrcAvailable;
+	}
+
+	@Override
+	public boolean isListingCacheAvailable() {
+		return listingCacheAvailable;
+	}
+
+	/**
+	 * True if an archive of this size is in listingcache, whatever its digest; cheaper than hashing a new one.
+	 */
+	@Override
+	public boolean hasListingCacheSize(long size) throws SQLException, InterruptedException {
+		if (!listingCacheAvailable) {
+			return false;
+		}
+		PreparedStatement ps = prepareStatement("SELECT pathid FROM listingcache WHERE size=?");
+		try {
+			ps.setLong(1, size);
+			ResultSet rs = ps.executeQuery();
+			try {
+				return rs.next();
+			} finally {
+				rs.close();
+			}
+		} finally {
+			ps.close();
+		}
+	}
+
+	/**
+	 * The archives of this size and digest that are CLEAN, with the size and date last modified
+	 * they were listed with.
+	 */
+	@Override
+	public List<DBPathEntry> getListingCacheSources(long size, String digest) throws SQLException, InterruptedException {
+		List<DBPathEntry> result = new ArrayList<DBPathEntry>();
+		if (!listingCacheAvailable) {
+			return result;
+		}
+		PreparedStatement ps = prepareStatement("SELECT d1.*, c.datelastmodified AS listeddate"
+				+ " FROM directory AS d1, listingcache AS c WHERE c.pathid=d1.pathid AND c.size=? AND c.digest=?"
+				+ " AND d1.size=c.size AND (d1.type=1 OR d1.type=3) AND d1.status=0");
+		try {
+			ps.setLong(1, size);
+			ps.setString(2, digest);
+			ResultSet rs = ps.executeQuery();
+			try {
+				while (rs.next()) {
+					DBPathEntry entry = rsToPathEntry(rs, "");
+					if (entry != null && entry.getDateLastModified() == rs.getTimestamp("listeddate").getTime()) {
+						result.add(entry);
+					}
+				}
+			} finally {
+				rs.close();
+			}
+		} finally {
+			ps.close();
+		}
+		return result;
+	}
+
+	@Override
+	public void updateListingCache(long pathid, long size, long datelastmodified, String digest)
+			throws SQLException, InterruptedException {
+		if (!listingCacheAvailable) {
+			return;
+		}
+		PreparedStatement ps = prepareStatement("DELETE FROM listingcache WHERE pathid=?");
+		try {
+			ps.setLong(1, pathid);
+			ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+		ps = prepareStatement("INSERT INTO listingcache (pathid, size, datelastmodified, digest) VALUES (?, ?, ?, ?)");
+		try {
+			ps.setLong(1, pathid);
+			ps.setLong(2, size);
+			ps.setTimestamp(3, new Timestamp(datelastmodified));
+			ps.setString(4, digest);
+			ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+	}
+
+	@Override
+	public boolean isListingCheckpointAvailable() {
+		return listingCheckpointAvailable;
+	}
+
+	/**
+	 * Returns null unless the archive pathid has a checkpoint taken with this size and date last modified.
+	 */
+	@Override
+	public ListingCheckpoint getListingCheckpoint(long pathid, long size, long datelastmodified)
+			throws SQLException, InterruptedException {
+		if (!listingCheckpointAvailable) {
+			return null;
+		}
+		PreparedStatement ps = prepareStatement("SELECT * FROM listingcheckpoint WHERE pathid=?");
+		try {
+			ps.setLong(1, pathid);
+			ResultSet rs = ps.executeQuery();
+			try {
+				if (!rs.next() || rs.getLong("size") != size
+						|| rs.getTimestamp("datelastmodified").getTime() != datelastmodified) {
+					return null;
+				}
+				return new ListingCheckpoint(rs.getLong("entrycount"), rs.getLong("dataoffset"));
+			} finally {
+				rs.close();
+			}
+		} finally {
+			ps.close();
+		}
+	}
+
+	@Override
+	public void updateListingCheckpoint(long pathid, long size, long datelastmodified, ListingCheckpoint checkpoint)
+			throws SQLException, InterruptedException {
+		if (!listingCheckpointAvailable) {
+			return;
+		}
+		deleteListingCheckpoint(pathid);
+		PreparedStatement ps = prepareStatement("INSERT INTO listingcheckpoint (pathid, size, datelastmodified, "
+				+ "entrycount, dataoffset) VALUES (?, ?, ?, ?, ?)");
+		try {
+			ps.setLong(1, pathid);
+			ps.setLong(2, size);
+			ps.setTimestamp(3, new Timestamp(datelastmodified));
+			ps.setLong(4, checkpoint.getEntryCount());
+			ps.setLong(5, checkpoint.getDataOffset());
+			ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+	}
+
+	@Override
+	public void deleteListingCheckpoint(long pathid) throws SQLException, InterruptedException {
+		if (!listingCheckpointAvailable) {
+			return;
+		}
+		PreparedStatement ps = prepareStatement("DELETE FROM listingcheckpoint WHERE pathid=?");
+		try {
+			ps.setLong(1, pathid);
+			ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+	}
+
+	@Override
+	public boolean isMemberIndexAvailable() {
+		return memberIndexAvailable;
+	}
+
+	/**
+	 * Replaces the memberindex rows of the archive pathid, listed with the given size and date last modified.
+	 * dataoffsets is by member path; the members are looked up among the children of pathid.
+	 */
+	@Override
+	public void updateMemberIndex(long pathid, long size, long datelastmodified, Map<String, Long> dataoffsets)
+			throws SQLException, InterruptedException {
+		if (!memberIndexAvailable) {
+			return;
+		}
+		Map<Long, Long> rows = new HashMap<Long, Long>();
+		PreparedStatement ps = prepareStatement("SELECT pathid, path FROM directory WHERE parentid=?");
+		try {
+			ps.setLong(1, pathid);
+			ResultSet rs = ps.executeQuery();
+			try {
+				while (rs.next()) {
+					Long dataoffset = dataoffsets.get(rs.getString("path"));
+					if (dataoffset != null) {
+						rows.put(rs.getLong("pathid"), dataoffset);
+					}
+				}
+			} finally {
+				rs.close();
+			}
+		} finally {
+			ps.close();
+		}
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		try {
+			ps = prepareStatement("DELETE FROM memberindex WHERE parentid=?");
+			try {
+				ps.setLong(1, pathid);
+				ps.executeUpdate();
+			} finally {
+				ps.close();
+			}
+			ps = prepareStatement("INSERT INTO memberindex (pathid, parentid, size, datelastmodified, dataoffset) "
+					+ "VALUES (?, ?, ?, ?, ?)");
+			try {
+				Timestamp t = new Timestamp(datelastmodified);
+				for (Map.Entry<Long, Long> row: rows.entrySet()) {
+					ps.setLong(1, row.getKey());
+					ps.setLong(2, pathid);
+					ps.setLong(3, size);
+					ps.setTimestamp(4, t);
+					ps.setLong(5, row.getValue());
+					ps.addBatch();
+				}
+				ps.executeBatch();
+			} finally {
+				ps.close();
+			}
+			conn.commit();
+		} catch (SQLException e) {
+			Debug.writelog("!! SQL memberindex insert failed at CommonSQLDirTreeDB, pathid = " + pathid);
+			conn.rollback();
+			throw e;
+		} finally {
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
+	private void deleteChunks(long pathid) throws SQLException, InterruptedException {
+		PreparedStatement ps = prepareStatement("DELETE FROM chunk WHERE pathid=?");
+		try {
+			ps.setLong(1, pathid);
+			ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+		ps = prepareStatement("DELETE FROM chunkedfile WHERE pathid=?");
+		try {
+			ps.setLong(1, pathid);
+			ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+	}
+
+	private long getNewGroupId() throws SQLException, InterruptedException {
+		Statement stmt = createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT MAX(groupid) FROM equalitygroup");
+			try {
+				return rs.next() ? rs.getLong(1) + 1 : 1;
+			} finally {
+				rs.close();
+			}
+		} finally {
+			stmt.close();
+		}
+	}
+
+	@Override
+	public boolean isFolderStatsAvailable() {
+		return folderStatsAvailable;
+	}
+
+	@Override
+	public FolderStats getFolderStats(long pathid) throws SQLException, InterruptedException {
+		if (!folderStatsAvailable) {
+			return null;
+		}
+		PreparedStatement ps = prepareStatement("SELECT * FROM folderstats WHERE pathid=?");
+		try {
+			ps.setLong(1, pathid);
+			ResultSet rs = ps.executeQuery();
+			try {
+				if (!rs.next()) {
+					return null;
+				}
+				return new FolderStats(pathid, rs.getLong("datefirstchecked"), rs.getLong("datelastchecked"),
+						rs.getLong("datelastchanged"), rs.getLong("changecount"), rs.getLong("datenextcheck"));
+			} finally {
+				rs.close();
+			}
+		} finally {
+			ps.close();
+		}
+	}
+
+	@Override
+	public void updateFolderStats(long pathid, boolean changed) throws SQLException, InterruptedException {
+		if (!folderStatsAvailable) {
+			return;
+		}
+		long now = new Date().getTime();
+		FolderStats stats = getFolderStats(pathid);
+		PreparedStatement ps;
+		if (stats == null) {
+			stats = new FolderStats(pathid, now);
+			stats.checked(now, changed);
+			ps = prepareStatement("INSERT INTO folderstats (datefirstchecked, datelastchecked, datelastchanged, "
+					+ "changecount, datenextcheck, pathid) VALUES (?, ?, ?, ?, ?, ?)");
+		} else {
+			stats.checked(now, changed);
+			ps = prepareStatement("UPDATE folderstats SET datefirstchecked=?, datelastchecked=?, datelastchanged=?, "
+					+ "changecount=?, datenextcheck=? WHERE pathid=?");
+		}
+		try {
+			ps.setLong(1, stats.getDateFirstChecked());
+			ps.setLong(2, stats.getDateLastChecked());
+			ps.setLong(3, stats.getDateLastChanged());
+			ps.setLong(4, stats.getChangeCount());
+			ps.setLong(5, stats.getDateNextCheck());
+			ps.setLong(6, pathid);
+			ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+	}
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.n_i_e.dirtreedb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Splits a stream into content-defined chunks with a gear rolling hash (as in FastCDC), so that
+ * an insertion or deletion only changes the chunks around it. Cut points are looked for between
+ * MIN_SIZE and MAX_SIZE, with a stricter mask before AVG_SIZE and a looser one after it.
+ * The gear table and the chunk hash (the first 8 bytes of MD5) are stored in the DB; don't change them.
+ */
+public class ContentDefinedChunker {
+	public static final int MIN_SIZE = 16*1024;
+	public static final int AVG_SIZE = 64*1024;
+	public static final int MAX_SIZE = 256*1024;
+
+	// the top bits of the gear hash depend on the last 64 bytes
+	private static final long MASK_STRICT = -1L << (64 - 18);
+	private static final long MASK_LOOSE = -1L << (64 - 14);
+	private static final int WINDOW = 64;
+
+	private static final long[] GEAR = new long[256];
+	static {
+		Random random = new Random(0x6765617254ab1eL);
+		for (int i=0; i<GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	public static class Chunk {
+		private final long offset;
+		private final int length;
+		private final long hash;
+
+		public Chunk(long offset, int length, long hash) {
+			this.offset = offset;
+			this.length = length;
+			this.hash = hash;
+		}
+
+		public long getOffset() { return offset; }
+		public int getLength() { return length; }
+		public long getHash() { return hash; }
+	}
+
+	private final MessageDigest md;
+	private final List<Chunk> chunks = new ArrayList<Chunk>();
+	private long offset = 0;
+	private int length = 0;
+	private long gear = 0;
+
+	public ContentDefinedChunker() throws NoSuchAlgorithmException {
+		md = MessageDigest.getInstance("MD5");
+	}
+
+	public void update(byte[] buff, int off, int len) {
+		int start = off;
+		int end = off + len;
+		int i = off;
+		while (i < end) {
+			// nothing before MIN_SIZE - WINDOW can affect a cut point
+			int skip = Math.min(MIN_SIZE - WINDOW - length, end - i);
+			if (skip > 0) {
+				length += skip;
+				i += skip;
+				continue;
+			}
+			gear = (gear << 1) + GEAR[buff[i] & 0xff];
+			length++;
+			i++;
+			if (length >= MIN_SIZE && ((gear & (length < AVG_SIZE ? MASK_STRICT : MASK_LOOSE)) == 0
+					|| length >= MAX_SIZE)) {
+				md.update(buff, start, i - start);
+				start = i;
+				cut();
+			}
+		}
+		md.update(buff, start, end - start);
+	}
+
+	private void cut() {
+		chunks.add(new Chunk(offset, length, ByteBuffer.wrap(md.digest()).getLong()));
+		offset += length;
+		length = 0;
+		gear = 0;
+	}
+
+	/**
+	 * Ends the last chunk and returns all of them, in order.
+	 */
+	public List<Chunk> finish() {
+		if (length > 0) {
+			cut();
+		}
+		return chunks;
+	}
+
+	public long getSize() {
+		return offset + length;
+	}
+
+	/**
+	 * Reads inf to the end; inf is not closed here.
+	 */
+	public static List<Chunk> chunk(InputStream inf) throws IOException, NoSuchAlgorithmException {
+		ContentDefinedChunker chunker = new ContentDefinedChunker();
+		byte[] buff = new byte[PipelinedHasher.BUFFER_SIZE];
+		int len;
+		while ((len = PipelinedHasher.readBlock(inf, buff)) > 0) {
+			chunker.update(buff, 0, len);
+		}
+		return chunker.finish();
+	}
+}
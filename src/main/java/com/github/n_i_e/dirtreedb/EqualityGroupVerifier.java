@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.n_i_e.dirtreedb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads N streams block by block in lockstep and splits them into classes of identical contents
+ * at the first block where they diverge. Each stream is read once, and only one digest is computed per class.
+ */
+public class EqualityGroupVerifier {
+	public static final int BUFFER_SIZE = 256*1024;
+
+	public static class Result {
+		private final List<Integer> members;
+		private final byte[] digest;
+		private final long length;
+
+		Result(List<Integer> members, byte[] digest, long length) {
+			this.members = members;
+			this.digest = digest;
+			this.length = length;
+		}
+
+		/**
+		 * Indices into the stream list.
+		 */
+		public List<Integer> getMembers() { return members; }
+
+		/**
+		 * null if this single member matched no other (it diverged, or all others failed).
+		 */
+		public byte[] getDigest() { return digest; }
+		public long getLength() { return length; }
+
+		public boolean isDiverged() {
+			return digest == null;
+		}
+	}
+
+	private static class Klass {
+		final List<Integer> members;
+		final MessageDigest md;
+		long length = 0;
+
+		Klass(List<Integer> members, MessageDigest md) {
+			this.members = members;
+			this.md = md;
+		}
+	}
+
+	/**
+	 * A null stream, or one that throws IOException, is added to failed and left out.
+	 * The streams are not closed here.
+	 */
+	public static List<Result> verify(List<InputStream> streams, String algorithm, Set<Integer> failed)
+			throws NoSuchAlgorithmException {
+		int n = streams.size();
+		byte[][] buffs = new byte[n][];
+		int[] lens = new int[n];
+		List<Result> result = new ArrayList<Result>();
+
+		List<Integer> all = new ArrayList<Integer>();
+		for (int i=0; i<n; i++) {
+			if (streams.get(i) == null) {
+				failed.add(i);
+			} else {
+				all.add(i);
+			}
+		}
+		List<Klass> live = new ArrayList<Klass>();
+		live.add(new Klass(all, MessageDigest.getInstance(algorithm)));
+
+		while (!live.isEmpty()) {
+			List<Klass> next = new ArrayList<Klass>();
+			for (Klass k: live) {
+				List<List<Integer>> parts = new ArrayList<List<Integer>>();
+				for (int i: k.members) {
+					if (buffs[i] == null) {
+						buffs[i] = new byte[BUFFER_SIZE];
+					}
+					try {
+						lens[i] = PipelinedHasher.readBlock(streams.get(i), buffs[i]);
+					} catch (IOException e) {
+						failed.add(i);
+						buffs[i] = null;
+						continue;
+					}
+					List<Integer> part = null;
+					for (List<Integer> p: parts) {
+						int j = p.get(0);
+						if (lens[i] == lens[j] && ByteBuffer.wrap(buffs[i], 0, lens[i]).equals(ByteBuffer.wrap(buffs[j], 0, lens[j]))) {
+							part = p;
+							break;
+						}
+					}
+					if (part == null) {
+						part = new ArrayList<Integer>();
+						parts.add(part);
+					}
+					part.add(i);
+				}
+
+				for (int p=0; p<parts.size(); p++) {
+					List<Integer> part = parts.get(p);
+					int first = part.get(0);
+					if (part.size() < 2) {
+						result.add(new Result(part, null, -1));
+						buffs[first] = null;
+						continue;
+					}
+					// the last part inherits the digest; the others start from a copy of its state before this block
+					MessageDigest md = (p == parts.size() - 1) ? k.md : cloneDigest(k.md, algorithm);
+					Klass c = new Klass(part, md);
+					c.length = k.length;
+					if (lens[first] == 0) {
+						result.add(new Result(part, md.digest(), c.length));
+						for (int i: part) {
+							buffs[i] = null;
+						}
+						continue;
+					}
+					md.update(buffs[first], 0, lens[first]);
+					c.length += lens[first];
+					next.add(c);
+				}
+			}
+			live = next;
+		}
+		return result;
+	}
+
+	private static MessageDigest cloneDigest(MessageDigest md, String algorithm) throws NoSuchAlgorithmException {
+		try {
+			return (MessageDigest)md.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new NoSuchAlgorithmException("!! digest not cloneable: " + algorithm);
+		}
+	}
+}
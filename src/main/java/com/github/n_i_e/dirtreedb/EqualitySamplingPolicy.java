@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.n_i_e.dirtreedb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Re-verification of equality groups by sampling: metadata of every member, plus the first,
+ * the last and (sampleBlocks - 2) random blocks read from each. A full read is still done
+ * every fullCheckCycles-th time, when metadata changed, or for anything but local files.
+ * sampleBlocks 0 turns sampling off.
+ */
+public class EqualitySamplingPolicy {
+	public static final int SAMPLE_BLOCK_SIZE = 64*1024;
+
+	private static int sampleBlocks = 16;
+	private static int fullCheckCycles = 8;
+	private static final Random random = new Random();
+
+	static {
+		PreferenceRW.addObserver(new IPreferenceObserver() {
+			@Override public void setEqualitySampleBlocks(int sampleBlocks) {
+				EqualitySamplingPolicy.setSampleBlocks(sampleBlocks);
+			}
+			@Override public void setEqualityFullCheckCycles(int fullCheckCycles) {
+				EqualitySamplingPolicy.setFullCheckCycles(fullCheckCycles);
+			}
+		});
+	}
+
+	public static int getSampleBlocks() {
+		return sampleBlocks;
+	}
+
+	public static void setSampleBlocks(int sampleBlocks) {
+		EqualitySamplingPolicy.sampleBlocks = sampleBlocks;
+	}
+
+	public static int getFullCheckCycles() {
+		return fullCheckCycles;
+	}
+
+	public static void setFullCheckCycles(int fullCheckCycles) {
+		EqualitySamplingPolicy.fullCheckCycles = fullCheckCycles;
+	}
+
+	/**
+	 * samplecycles is the number of sampled checks since the last full one, as recorded in equalitygroup.
+	 */
+	public static boolean isSamplingAllowed(int samplecycles) {
+		return sampleBlocks > 0 && samplecycles + 1 < fullCheckCycles;
+	}
+
+	/**
+	 * Block offsets to read from every member of a group; sorted, and the same for all members.
+	 */
+	public static long[] chooseOffsets(long size) {
+		long numBlocks = (size + SAMPLE_BLOCK_SIZE - 1) / SAMPLE_BLOCK_SIZE;
+		TreeSet<Long> blocks = new TreeSet<Long>();
+		if (numBlocks > 0) {
+			blocks.add(0L);
+			blocks.add(numBlocks - 1);
+		}
+		if (numBlocks <= sampleBlocks) {
+			for (long i=0; i<numBlocks; i++) {
+				blocks.add(i);
+			}
+		} else {
+			synchronized (random) {
+				while (blocks.size() < sampleBlocks) {
+					blocks.add((long)(random.nextDouble() * numBlocks));
+				}
+			}
+		}
+		long[] result = new long[blocks.size()];
+		int i = 0;
+		for (long b: blocks) {
+			result[i++] = b * SAMPLE_BLOCK_SIZE;
+		}
+		return result;
+	}
+
+	/**
+	 * Checks the member is still what the DB says, by size and date last modified.
+	 */
+	public static boolean isMetadataUnchanged(PathEntry entry) {
+		File file = new File(entry.getPath());
+		return file.isFile() && file.length() == entry.getSize()
+				&& (file.lastModified()/1000)*1000 == entry.getDateLastModified();
+	}
+
+	/**
+	 * Digest of the blocks at offsets; members with the same contents get the same digest.
+	 */
+	public static byte[] sampleDigest(File file, long[] offsets) throws IOException, NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		ByteBuffer buff = ByteBuffer.allocate(SAMPLE_BLOCK_SIZE);
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			for (long offset: offsets) {
+				buff.clear();
+				while (buff.hasRemaining()) {
+					if (channel.read(buff, offset + buff.position()) < 0) {
+						break;
+					}
+				}
+				buff.flip();
+				BandwidthLimiter.getEqualityLimiter().acquire(buff.remaining());
+				md.update(buff);
+			}
+		} finally {
+			channel.close();
+		}
+		return md.digest();
+	}
+}
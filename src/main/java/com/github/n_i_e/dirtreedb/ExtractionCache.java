@@ -0,0 +1,249 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.n_i_e.dirtreedb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Extracted copies of the archives nested in other archives, so that reading many members of a zip
+ * in a tar.gz decompresses the tar.gz once and not once per member. Copies up to MEMORY_THRESHOLD
+ * bytes are kept in memory, larger ones in temporary files; both are evicted least recently used
+ * first when over budget. Keyed by pathid, size and date last modified, so a changed archive
+ * is not read from a stale copy. A temporary file that cannot be deleted yet, still open on Windows,
+ * counts against the budget until a later retry deletes it.
+ */
+public class ExtractionCache {
+	public static final int MEMORY_THRESHOLD = 4*1024*1024;
+	public static final long MEMORY_BUDGET = 64L*1024*1024;
+
+	private static long diskBudget = 1024L*1024*1024;
+	private static final ExtractionCache instance = new ExtractionCache();
+
+	/*
+	 * Copy buffers of MEMORY_THRESHOLD bytes, taken back after each put.
+	 */
+	private static final BlockingQueue<byte[]> spareBuffers = new ArrayBlockingQueue<byte[]>(2);
+
+	static {
+		PreferenceRW.addObserver(new IPreferenceObserver() {
+			@Override public void setExtractionCacheSize(int megaBytes) {
+				ExtractionCache.setDiskBudget(megaBytes);
+			}
+		});
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				instance.clear();
+			}
+		});
+	}
+
+	public static ExtractionCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * In megabytes; 0 turns the cache off.
+	 */
+	public static void setDiskBudget(int megaBytes) {
+		diskBudget = megaBytes * 1024L * 1024;
+		instance.evict();
+	}
+
+	public static boolean isEnabled() {
+		return diskBudget > 0;
+	}
+
+	private static class CachedCopy {
+		private final byte[] bytes;
+		private final File file;
+		private final long size;
+
+		CachedCopy(byte[] bytes) {
+			this.bytes = bytes;
+			this.file = null;
+			this.size = bytes.length;
+		}
+
+		CachedCopy(File file) {
+			this.bytes = null;
+			this.file = file;
+			this.size = file.length();
+		}
+
+		InputStream open() throws IOException {
+			if (bytes != null) {
+				return new ByteArrayInputStream(bytes);
+			} else {
+				return new BufferedInputStream(new FileInputStream(file), 1*1024*1024);
+			}
+		}
+	}
+
+	private final LinkedHashMap<String, CachedCopy> copies = new LinkedHashMap<String, CachedCopy>(16, 0.75f, true);
+	private final List<CachedCopy> undeleted = new ArrayList<CachedCopy>();
+	private long memorySize = 0;
+	private long diskSize = 0;
+
+	private static String getKey(DBPathEntry entry) {
+		return entry.getPathId() + ":" + entry.getSize() + ":" + entry.getDateLastModified();
+	}
+
+	/**
+	 * Returns null unless a copy of entry is cached.
+	 */
+	public InputStream getInputStream(DBPathEntry entry) throws IOException {
+		CachedCopy copy;
+		synchronized (this) {
+			copy = copies.get(getKey(entry));
+		}
+		if (copy == null) {
+			return null;
+		}
+		try {
+			return copy.open();
+		} catch (IOException e) {
+			remove(entry); // temporary file deleted behind us
+			return null;
+		}
+	}
+
+	/**
+	 * Reads inf, the contents of entry, to the end into the cache and returns a stream on the copy.
+	 * inf is closed. If entry is too large for the budget, inf is returned as is.
+	 */
+	public InputStream put(DBPathEntry entry, InputStream inf) throws IOException {
+		if (!isEnabled() || entry.getSize() > diskBudget) {
+			return inf;
+		}
+		CachedCopy copy;
+		byte[] buff = spareBuffers.poll();
+		if (buff == null) {
+			buff = new byte[MEMORY_THRESHOLD];
+		}
+		try {
+			int len = readFully(inf, buff);
+			if (len < buff.length) {
+				copy = new CachedCopy(Arrays.copyOf(buff, len));
+			} else {
+				File toFile = File.createTempFile("DTDB", ".extracted");
+				OutputStream outf = new BufferedOutputStream(new FileOutputStream(toFile), 1*1024*1024);
+				try {
+					outf.write(buff, 0, len);
+					while ((len = inf.read(buff)) > 0) {
+						outf.write(buff, 0, len);
+					}
+				} catch (IOException e) {
+					outf.close();
+					toFile.delete();
+					throw e;
+				}
+				outf.close();
+				copy = new CachedCopy(toFile);
+			}
+		} finally {
+			spareBuffers.offer(buff);
+			inf.close();
+		}
+		InputStream result = copy.open();
+		synchronized (this) {
+			CachedCopy old = copies.put(getKey(entry), copy);
+			if (old != null) {
+				forget(old);
+			}
+			if (copy.bytes != null) {
+				memorySize += copy.size;
+			} else {
+				diskSize += copy.size;
+			}
+		}
+		evict();
+		return result;
+	}
+
+	private static int readFully(InputStream inf, byte[] buff) throws IOException {
+		int off = 0;
+		int len;
+		while (off < buff.length && (len = inf.read(buff, off, buff.length - off)) >= 0) {
+			off += len;
+		}
+		return off;
+	}
+
+	public synchronized void remove(DBPathEntry entry) {
+		CachedCopy old = copies.remove(getKey(entry));
+		if (old != null) {
+			forget(old);
+		}
+	}
+
+	public synchronized void clear() {
+		for (CachedCopy copy: copies.values()) {
+			forget(copy);
+		}
+		copies.clear();
+		retryDelete();
+	}
+
+	private synchronized void evict() {
+		retryDelete();
+		Iterator<CachedCopy> iter = copies.values().iterator();
+		while (iter.hasNext() && (memorySize > MEMORY_BUDGET || diskSize > diskBudget)) {
+			CachedCopy copy = iter.next();
+			if (copy.bytes != null ? memorySize > MEMORY_BUDGET : diskSize > diskBudget) {
+				iter.remove();
+				forget(copy);
+			}
+		}
+	}
+
+	private void forget(CachedCopy copy) {
+		if (copy.bytes != null) {
+			memorySize -= copy.size;
+		} else if (copy.file.delete() || !copy.file.exists()) {
+			diskSize -= copy.size;
+		} else {
+			undeleted.add(copy); // still open on Windows
+		}
+	}
+
+	private void retryDelete() {
+		Iterator<CachedCopy> iter = undeleted.iterator();
+		while (iter.hasNext()) {
+			CachedCopy copy = iter.next();
+			if (copy.file.delete() || !copy.file.exists()) {
+				diskSize -= copy.size;
+				iter.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.n_i_e.dirtreedb;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+/**
+ * Device and inode of a local file, with the size and date last modified they were read with,
+ * from the "unix" file attribute view. Not available on Windows.
+ */
+public class FileIdentity {
+	private static volatile boolean supported = true;
+
+	private final long device;
+	private final long inode;
+	private final long size;
+	private final long dateLastModified;
+
+	public FileIdentity(long device, long inode, long size, long dateLastModified) {
+		this.device = device;
+		this.inode = inode;
+		this.size = size;
+		this.dateLastModified = dateLastModified;
+	}
+
+	public long getDevice() { return device; }
+	public long getInode() { return inode; }
+	public long getSize() { return size; }
+	public long getDateLastModified() { return dateLastModified; }
+
+	public static boolean isSupported() {
+		return supported;
+	}
+
+	/**
+	 * Returns null if the file cannot be read or the platform has no inodes.
+	 */
+	public static FileIdentity get(String path) {
+		if (!supported) {
+			return null;
+		}
+		try {
+			Map<String, Object> attrs = Files.readAttributes(Paths.get(path), "unix:dev,ino,size,lastModifiedTime");
+			long lastModified = ((FileTime)attrs.get("lastModifiedTime")).toMillis();
+			return new FileIdentity((Long)attrs.get("dev"), (Long)attrs.get("ino"), (Long)attrs.get("size"),
+					(lastModified/1000)*1000);
+		} catch (UnsupportedOperationException e) {
+			supported = false;
+			return null;
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * True if the file still has the size and date last modified of entry.
+	 */
+	public boolean matches(PathEntry entry) {
+		return size == entry.getSize() && dateLastModified == entry.getDateLastModified();
+	}
+}
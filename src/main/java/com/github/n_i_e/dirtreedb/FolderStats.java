@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.n_i_e.dirtreedb;
+
+/**
+ * Change statistics of a folder (one row of folderstats table).
+ * The next check is scheduled after age/(changecount+1), and never later than the time
+ * since the last change; a folder that has been stable for long is checked rarely,
+ * a folder that changes often or changed recently is checked soon.
+ */
+public class FolderStats {
+	public static final long MIN_INTERVAL = 10*60*1000L;
+	public static final long MAX_INTERVAL = 7*24*60*60*1000L;
+
+	private final long pathid;
+	private long dateFirstChecked;
+	private long dateLastChecked;
+	private long dateLastChanged;
+	private long changeCount;
+	private long dateNextCheck;
+
+	public FolderStats(long pathid, long dateFirstChecked, long dateLastChecked,
+			long dateLastChanged, long changeCount, long dateNextCheck) {
+		this.pathid = pathid;
+		this.dateFirstChecked = dateFirstChecked;
+		this.dateLastChecked = dateLastChecked;
+		this.dateLastChanged = dateLastChanged;
+		this.changeCount = changeCount;
+		this.dateNextCheck = dateNextCheck;
+	}
+
+	public FolderStats(long pathid, long now) {
+		this(pathid, now, now, now, 0, now);
+	}
+
+	public long getPathId() { return pathid; }
+	public long getDateFirstChecked() { return dateFirstChecked; }
+	public long getDateLastChecked() { return dateLastChecked; }
+	public long getDateLastChanged() { return dateLastChanged; }
+	public long getChangeCount() { return changeCount; }
+	public long getDateNextCheck() { return dateNextCheck; }
+
+	/**
+	 * Each changed file of a folder reports the change, so changes reported within MIN_INTERVAL
+	 * (no checks are scheduled closer) of the one last counted are taken as found by the same check.
+	 */
+	public void checked(long now, boolean changed) {
+		dateLastChecked = now;
+		if (changed && (changeCount == 0 || now - dateLastChanged >= MIN_INTERVAL)) {
+			dateLastChanged = now;
+			changeCount++;
+		}
+		dateNextCheck = now + getInterval(now);
+	}
+
+	public long getInterval(long now) {
+		long interval = (now - dateFirstChecked) / (changeCount + 1);
+		interval = Math.min(interval, now - dateLastChanged);
+		if (interval < MIN_INTERVAL) {
+			return MIN_INTERVAL;
+		} else if (interval > MAX_INTERVAL) {
+			return MAX_INTERVAL;
+		} else {
+			return interval;
+		}
+	}
+}
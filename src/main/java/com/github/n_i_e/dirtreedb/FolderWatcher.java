@@ -0,0 +1,184 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.n_i_e.dirtreedb;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.github.n_i_e.dirtreedb.debug.Debug;
+
+/**
+ * Watches folders with WatchService (inotify on Linux) and marks a folder dirty as soon as
+ * anything in it is created, deleted or modified.
+ * Each registered folder is watched non-recursively; the caller registers every clean folder.
+ * When a registration fails (typically the inotify watch limit), the root of that folder is
+ * given up and left to the polling "touch" schedule.
+ */
+public class FolderWatcher implements Closeable {
+	private static final long FLUSH_INTERVAL = 1000;
+
+	private final IDirTreeDB db;
+	private final WatchService watcher;
+	private final Map<WatchKey, DBPathEntry> keys = new ConcurrentHashMap<WatchKey, DBPathEntry>();
+	private final Set<Long> registered = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+	private final Set<Long> pollingRootIds = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+	private Set<Long> watchedRootIds = Collections.emptySet();
+	private final Thread thread;
+	private volatile boolean isOpen = true;
+	private long eventCount = 0;
+
+	public FolderWatcher(IDirTreeDB db) throws IOException {
+		Assertion.assertNullPointerException(db != null);
+		this.db = db;
+		this.watcher = FileSystems.getDefault().newWatchService();
+		this.thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					watchLoop();
+				} catch (InterruptedException e) {
+					// closing
+				} catch (SQLException e) {
+					Debug.writelog("!! FolderWatcher stopped due to SQLException: " + e.toString());
+				} catch (ClosedWatchServiceException e) {
+					// closing
+				}
+			}
+		};
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Registers a clean folder. Returns false if the folder cannot be watched,
+	 * in which case its root falls back to polling.
+	 */
+	public boolean register(DBPathEntry folder) {
+		Assertion.assertAssertionError(folder.isFolder());
+		if (registered.contains(folder.getPathId())) {
+			return true;
+		}
+		if (pollingRootIds.contains(folder.getRootId())) {
+			return false;
+		}
+		try {
+			Path p = Paths.get(folder.getPath());
+			WatchKey key = p.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+			keys.put(key, folder);
+			registered.add(folder.getPathId());
+			return true;
+		} catch (IOException | RuntimeException e) {
+			Debug.writelog("FolderWatcher cannot watch <" + folder.getPath() + ">, falling back to polling for rootid="
+					+ folder.getRootId() + ": " + e.toString());
+			pollingRootIds.add(folder.getRootId());
+			return false;
+		}
+	}
+
+	public boolean isRegistered(long pathid) {
+		return registered.contains(pathid);
+	}
+
+	public int getNumRegistered() {
+		return registered.size();
+	}
+
+	public Set<Long> getPollingRootIds() {
+		return new HashSet<Long>(pollingRootIds);
+	}
+
+	/**
+	 * Called when all clean folders of the given roots are registered; the touch schedule skips them afterwards.
+	 */
+	public synchronized void setWatchedRootIds(Set<Long> rootIds) {
+		Set<Long> result = new HashSet<Long>(rootIds);
+		result.removeAll(pollingRootIds);
+		watchedRootIds = result;
+	}
+
+	public synchronized Set<Long> getWatchedRootIds() {
+		Set<Long> result = new HashSet<Long>(watchedRootIds);
+		result.removeAll(pollingRootIds);
+		return result;
+	}
+
+	public long getEventCount() {
+		return eventCount;
+	}
+
+	private void watchLoop() throws InterruptedException, SQLException {
+		Set<Long> dirty = new HashSet<Long>();
+		long t0 = System.currentTimeMillis();
+		while (isOpen) {
+			WatchKey key = watcher.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+			if (key != null) {
+				DBPathEntry folder = keys.get(key);
+				for (WatchEvent<?> event: key.pollEvents()) {
+					eventCount++;
+					if (folder == null) {
+						continue;
+					}
+					if (event.kind() == OVERFLOW) {
+						Debug.writelog("FolderWatcher event overflow at <" + folder.getPath() + ">");
+					}
+					dirty.add(folder.getPathId());
+				}
+				if (!key.reset()) { // folder deleted or not accessible; parent gets its own event
+					keys.remove(key);
+					if (folder != null) {
+						registered.remove(folder.getPathId());
+					}
+				}
+			}
+			long t1 = System.currentTimeMillis();
+			if (dirty.size() > 0 && t1 - t0 >= FLUSH_INTERVAL) {
+				for (long pathid: dirty) {
+					db.unsetClean(pathid);
+					db.updateFolderStats(pathid, true);
+				}
+				dirty.clear();
+				t0 = t1;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		isOpen = false;
+		watcher.close();
+		thread.interrupt();
+	}
+}
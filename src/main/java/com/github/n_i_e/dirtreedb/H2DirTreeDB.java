@@ -77,5 +77,13 @@ public class H2DirTreeDB extends CommonSQLDirTreeDB {
 				stmt.close();
 			}
 		}
+		createFolderStatsTableIfNotExists();
+		createEqualityGroupTablesIfNotExists();
+		createChunkTablesIfNotExists();
+		createFileInodeTableIfNotExists();
+		createMemberIndexTableIfNotExists();
+		createNativeCrcColumnIfNotExists();
+		createListingCacheTableIfNotExists();
+		createListingCheckpointTableIfNotExists();
 	}
 }
@@ -77,5 +77,13 @@ public class HSQLDBDirTreeDB extends CommonSQLDirTreeDB {
 				stmt.close();
 			}
 		}
+		createFolderStatsTableIfNotExists();
+		createEqualityGroupTablesIfNotExists();
+		createChunkTablesIfNotExists();
+		createFileInodeTableIfNotExists();
+		createMemberIndexTableIfNotExists();
+		createNativeCrcColumnIfNotExists();
+		createListingCacheTableIfNotExists();
+		createListingCheckpointTableIfNotExists();
 	}
 }
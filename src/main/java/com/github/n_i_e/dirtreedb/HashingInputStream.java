@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.n_i_e.dirtreedb;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Passes a stream through to its reader (an archive lister) and digests every byte on the way,
+ * so that the contents are hashed in the same pass as they are listed. finish() reads what the
+ * reader left unread, such as tar padding or a zip central directory, and returns the digest of
+ * the whole. close() before finish() abandons the digest and reads nothing more, so a listing
+ * aborted is not held up by the rest of a large stream; hand the reader getUnclosableStream()
+ * if it closes the stream before it is finished.
+ */
+public class HashingInputStream extends FilterInputStream {
+	private final PipelinedHasher.Session session;
+	private final boolean closeUnderlying;
+	private byte[] buff = null;
+	private int filled = 0;
+	private PipelinedHasher.Result result = null;
+	private IOException failure = null;
+
+	/**
+	 * If closeUnderlying is false, in is left open on close(), as for a member stream of an archive being listed.
+	 */
+	public HashingInputStream(InputStream in, boolean closeUnderlying) throws NoSuchAlgorithmException {
+		super(in);
+		this.session = PipelinedHasher.newSession("MD5");
+		this.closeUnderlying = closeUnderlying;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int c = in.read();
+		if (c >= 0) {
+			put(new byte[] {(byte)c}, 0, 1);
+		}
+		return c;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = in.read(b, off, len);
+		if (n > 0) {
+			put(b, off, n);
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		byte[] scratch = new byte[(int)Math.min(n, 64*1024)];
+		long skipped = 0;
+		while (skipped < n) {
+			int len = read(scratch, 0, (int)Math.min(n - skipped, scratch.length));
+			if (len < 0) {
+				break;
+			}
+			skipped += len;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		throw new IOException("!! mark/reset not supported");
+	}
+
+	private void put(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (buff == null) {
+				buff = session.takeBuffer();
+				filled = 0;
+			}
+			int n = Math.min(len, buff.length - filled);
+			System.arraycopy(b, off, buff, filled, n);
+			filled += n;
+			off += n;
+			len -= n;
+			if (filled == buff.length) {
+				session.submit(buff, filled);
+				buff = null;
+			}
+		}
+	}
+
+	/**
+	 * Reads the rest of the stream and returns the digest of all of it. Throws the same
+	 * IOException again if reading failed before, in close() or here.
+	 */
+	public PipelinedHasher.Result finish() throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+		if (result == null) {
+			try {
+				byte[] scratch = new byte[PipelinedHasher.BUFFER_SIZE];
+				int len;
+				while ((len = read(scratch, 0, scratch.length)) >= 0) {
+					BandwidthLimiter.getCsumLimiter().acquire(len);
+				}
+				if (buff != null) {
+					session.submit(buff, filled);
+					buff = null;
+				}
+				result = new PipelinedHasher.Result(session.digest(), session.getSize());
+			} catch (IOException e) {
+				failure = e;
+				throw e;
+			} finally {
+				session.close();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a stream on this one that close() leaves open, for a reader that closes the stream
+	 * before finish() is called.
+	 */
+	public InputStream getUnclosableStream() {
+		return new FilterInputStream(this) {
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (result == null && failure == null) {
+				failure = new IOException("!! closed before finish");
+				session.close();
+			}
+		} finally {
+			if (closeUnderlying) {
+				in.close();
+			}
+		}
+	}
+}
@@ -20,13 +20,17 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
 
 public interface IDirTreeDB extends AutoCloseable {
 	public abstract Statement createStatement() throws SQLException, InterruptedException;
 	public abstract PreparedStatement prepareStatement(final String sql) throws SQLException, InterruptedException;
 	public abstract void close() throws SQLException;
 	public abstract DBPathEntry rsToPathEntry(ResultSet rs, String prefix) throws SQLException, InterruptedException;
+	public abstract void setDateLastModified(PreparedStatement ps, int i, long datelastmodified) throws SQLException;
 	public abstract void insert(DBPathEntry basedir, PathEntry newentry) throws SQLException, InterruptedException;
+	public abstract void insertBatch(DBPathEntry basedir, List<PathEntry> newentries) throws SQLException, InterruptedException;
 	public abstract void update(DBPathEntry oldentry, PathEntry newentry) throws SQLException, InterruptedException;
 	public abstract void updateStatus(DBPathEntry entry, int newstatus) throws SQLException, InterruptedException;
 	public abstract void delete(DBPathEntry entry) throws SQLException, InterruptedException;
@@ -34,6 +38,7 @@ public interface IDirTreeDB extends AutoCloseable {
 	public abstract void disable(DBPathEntry entry) throws SQLException, InterruptedException;
 	public abstract void disable(DBPathEntry entry, PathEntry newentry) throws SQLException, InterruptedException;
 	public abstract void updateParentId(DBPathEntry entry, long newparentid) throws SQLException, InterruptedException;
+	public abstract void updatePath(DBPathEntry entry, String newpath, long newrootid) throws SQLException, InterruptedException;
 	public abstract void orphanize(DBPathEntry entry) throws SQLException, InterruptedException;
 	public abstract void insertUpperLower(long upper, long lower, int distance) throws SQLException, InterruptedException;
 	public abstract void deleteUpperLower(long upper, long lower) throws SQLException, InterruptedException;
@@ -41,5 +46,29 @@ public interface IDirTreeDB extends AutoCloseable {
 	public abstract void deleteEquality(long pathid1, long pathid2) throws InterruptedException, SQLException;
 	public abstract void updateEquality(long pathid1, long pathid2) throws InterruptedException, SQLException;
 	public abstract void updateDuplicateFields(long pathid, long duplicate, long dedupablesize) throws InterruptedException, SQLException;
+	public abstract void dropSecondaryIndexes() throws SQLException, InterruptedException;
+	public abstract void createSecondaryIndexes() throws SQLException, InterruptedException;
+	public abstract boolean isFolderStatsAvailable();
+	public abstract FolderStats getFolderStats(long pathid) throws SQLException, InterruptedException;
+	public abstract void updateFolderStats(long pathid, boolean changed) throws SQLException, InterruptedException;
+	public abstract boolean isEqualityGroupAvailable();
+	public abstract void replaceEqualityGroups(long size, int csum, List<List<Long>> groups) throws SQLException, InterruptedException;
+	public abstract void updateEqualityGroupsSampled(long size, int csum, int samplecount, int sampleblocksize) throws SQLException, InterruptedException;
+	public abstract boolean isChunkIndexAvailable();
+	public abstract void replaceChunks(long pathid, long size, int csum, List<ContentDefinedChunker.Chunk> chunks) throws SQLException, InterruptedException;
+	public abstract boolean isFileInodeAvailable();
+	public abstract void updateFileInode(long pathid, FileIdentity id, int csum) throws SQLException, InterruptedException;
+	public abstract void deleteFileInode(long pathid) throws SQLException, InterruptedException;
+	public abstract boolean isNativeCrcAvailable();
+	public abstract boolean isListingCacheAvailable();
+	public abstract boolean hasListingCacheSize(long size) throws SQLException, InterruptedException;
+	public abstract List<DBPathEntry> getListingCacheSources(long size, String digest) throws SQLException, InterruptedException;
+	public abstract void updateListingCache(long pathid, long size, long datelastmodified, String digest) throws SQLException, InterruptedException;
+	public abstract boolean isListingCheckpointAvailable();
+	public abstract ListingCheckpoint getListingCheckpoint(long pathid, long size, long datelastmodified) throws SQLException, InterruptedException;
+	public abstract void updateListingCheckpoint(long pathid, long size, long datelastmodified, ListingCheckpoint checkpoint) throws SQLException, InterruptedException;
+	public abstract void deleteListingCheckpoint(long pathid) throws SQLException, InterruptedException;
+	public abstract boolean isMemberIndexAvailable();
+	public abstract void updateMemberIndex(long pathid, long size, long datelastmodified, Map<String, Long> dataoffsets) throws SQLException, InterruptedException;
 
 }
@@ -18,10 +18,23 @@ package com.github.n_i_e.dirtreedb;
 
 import java.util.Map;
 
+/*
+ * Observers override only the preferences they follow; the others default to no-ops.
+ */
 public interface IPreferenceObserver {
-	public void setDBFilePath(String dbFilePath);
-	public void setExtensionAvailabilityMap(Map<String, Boolean> extensionAvailabilityMap);
-	public void setNumCrawlingThreads(int numCrawlingThreads);
-	public void setWindowsIdleSeconds(int windowsIdleSeconds);
-	public void setCharset(String newvalue);
+	public default void setDBFilePath(String dbFilePath) {}
+	public default void setExtensionAvailabilityMap(Map<String, Boolean> extensionAvailabilityMap) {}
+	public default void setNumCrawlingThreads(int numCrawlingThreads) {}
+	public default void setWindowsIdleSeconds(int windowsIdleSeconds) {}
+	public default void setCharset(String newvalue) {}
+	public default void setFolderWatcherEnabled(boolean folderWatcherEnabled) {}
+	public default void setNumSchedulerPermits(int numSchedulerPermits) {}
+	public default void setCsumBandwidthLimit(int megaBytesPerSecond) {}
+	public default void setEqualityBandwidthLimit(int megaBytesPerSecond) {}
+	public default void setNumOutstandingCsumReads(int numOutstandingCsumReads) {}
+	public default void setEqualitySampleBlocks(int sampleBlocks) {}
+	public default void setEqualityFullCheckCycles(int fullCheckCycles) {}
+	public default void setChunkIndexMinFileSize(int megaBytes) {}
+	public default void setExtractionCacheSize(int megaBytes) {}
+	public default void setArchiveSniffingEnabled(boolean archiveSniffingEnabled) {}
 }
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.n_i_e.dirtreedb;
+
+/**
+ * Tells how much of its capacity background work (crawling, hashing, maintenance) may use now.
+ */
+public interface IThrottlePolicy {
+	/**
+	 * For the maintainer: returns 1.0 to run at full speed, 0.0 to stop, or a value in between to slow down.
+	 */
+	public double getMaintainerCapacity();
+
+	/**
+	 * For crawling threads, which also serve interactive requests; 0.0 slows them down but never stops them.
+	 */
+	public double getCrawlerCapacity();
+}
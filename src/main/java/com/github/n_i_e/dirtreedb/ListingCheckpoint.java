@@ -0,0 +1,36 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.n_i_e.dirtreedb;
+
+/**
+ * How far the listing of an archive had got (one row of listingcheckpoint table): the number of entries
+ * listed and committed, and the offset in the uncompressed archive of the data of the last of them,
+ * or -1 where the lister cannot tell.
+ */
+public class ListingCheckpoint {
+	private final long entryCount;
+	private final long dataOffset;
+
+	public ListingCheckpoint(long entryCount, long dataOffset) {
+		this.entryCount = entryCount;
+		this.dataOffset = dataOffset;
+	}
+
+	public long getEntryCount() { return entryCount; }
+	public long getDataOffset() { return dataOffset; }
+}
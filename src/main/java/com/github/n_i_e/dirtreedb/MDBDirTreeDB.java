@@ -23,6 +23,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class MDBDirTreeDB extends CommonSQLDirTreeDB {
 	MDBDirTreeDB(String filename) throws ClassNotFoundException, SQLException, IOException {
@@ -44,6 +46,14 @@ public class MDBDirTreeDB extends CommonSQLDirTreeDB {
 		}
 		conn = DriverManager.getConnection("jdbc:ucanaccess://" + filename);
 		conn.setAutoCommit(true);
+		createFolderStatsTableIfNotExists();
+		createEqualityGroupTablesIfNotExists();
+		createChunkTablesIfNotExists();
+		createFileInodeTableIfNotExists();
+		createMemberIndexTableIfNotExists();
+		createNativeCrcColumnIfNotExists();
+		createListingCacheTableIfNotExists();
+		createListingCheckpointTableIfNotExists();
 	}
 
 	@Override
@@ -55,6 +65,20 @@ public class MDBDirTreeDB extends CommonSQLDirTreeDB {
 		}
 	}
 
+	@Override
+	public void insertBatch(DBPathEntry basedir, List<PathEntry> newentries) throws SQLException, InterruptedException {
+		if (hasSurrogatePair(basedir.getPath())) {
+			return; // don't do anything for Unicode surrogate pair.
+		}
+		List<PathEntry> e = new ArrayList<PathEntry>();
+		for (PathEntry newentry: newentries) {
+			if (! hasSurrogatePair(newentry.getPath())) {
+				e.add(newentry);
+			}
+		}
+		super.insertBatch(basedir, e);
+	}
+
 	private static boolean hasSurrogatePair(String str) {
 		int len = str.length();
 		for (int i=0; i<len; i++) {
@@ -23,7 +23,6 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 import com.github.n_i_e.dirtreedb.lister.PathEntryLister;
@@ -50,6 +49,8 @@ public class PathEntry {
 	private long compressedsize=0;
 	private int csum=0; // not long but int, for compatibility with MDB
 	private boolean csumIsNull=true;
+	private int nativecrc=0; // CRC-32 of a member from the headers of its archive
+	private boolean nativeCrcIsNull=true;
 	private String path=null;
 	/**
 	 * 0 = folder, 1 = file, 2 = folder in archive, 3 = file in archive.
@@ -109,6 +110,8 @@ public class PathEntry {
 		this.compressedsize = oldentry.compressedsize;
 		this.csum = oldentry.csum;
 		this.csumIsNull = oldentry.csumIsNull;
+		this.nativecrc = oldentry.nativecrc;
+		this.nativeCrcIsNull = oldentry.nativeCrcIsNull;
 		this.path = oldentry.path;
 		this.type = oldentry.type;
 		this.status = oldentry.status;
@@ -213,20 +216,7 @@ public class PathEntry {
 
 	public void setCsum(InputStream inf) throws IOException {
 		try {
-			long contentsize = 0;
-			MessageDigest md5digest = MessageDigest.getInstance("MD5");
-
-			byte[] buff = new byte[4096];
-			int len;
-			while ((len = inf.read(buff, 0, buff.length)) >= 0) {
-				md5digest.update(buff, 0, len);
-				contentsize += len;
-			}
-
-			byte[] md5all = md5digest.digest();
-			csum = ByteBuffer.wrap(md5all).getInt();
-			csumIsNull = false;
-			size = contentsize;
+			setCsum(PipelinedHasher.digest("MD5", inf, BandwidthLimiter.getCsumLimiter()));
 		} catch (NoSuchAlgorithmException e) {
 			csumIsNull = true;
 		} catch (IOException e) {
@@ -243,6 +233,30 @@ public class PathEntry {
 		}
 	}
 
+	/**
+	 * Same as setCsumAndClose(getInputStream()), but a FILE is hashed through its FileChannel.
+	 */
+	public void setCsumFromContents() throws IOException {
+		if (!isFile()) {
+			setCsumAndClose(getInputStream());
+			return;
+		}
+		try {
+			setCsum(PipelinedHasher.digest("MD5", new File(getPath()), BandwidthLimiter.getCsumLimiter()));
+		} catch (NoSuchAlgorithmException e) {
+			csumIsNull = true;
+		} catch (IOException e) {
+			csumIsNull = true;
+			throw e;
+		}
+	}
+
+	public void setCsum(PipelinedHasher.Result md5) {
+		csum = ByteBuffer.wrap(md5.getDigest()).getInt();
+		csumIsNull = false;
+		size = md5.getSize();
+	}
+
 	public InputStream getInputStream() throws IOException {
 		Assertion.assertAssertionError(isFile() || isCompressedFile());
 		if (isFile()) {
@@ -286,6 +300,27 @@ public class PathEntry {
 		return csumIsNull;
 	}
 
+	public int getNativeCrc() {
+		if (nativeCrcIsNull) {
+			throw new NullPointerException("!! nativecrc is null for: " + getPath());
+		} else {
+			return nativecrc;
+		}
+	}
+
+	public void setNativeCrc(long crc32) {
+		this.nativecrc = (int)crc32;
+		nativeCrcIsNull = false;
+	}
+
+	public void clearNativeCrc() {
+		nativeCrcIsNull = true;
+	}
+
+	public boolean isNativeCrcNull() {
+		return nativeCrcIsNull;
+	}
+
 	public static boolean dscMatch(PathEntry entry1, PathEntry entry2) {
 		if (entry1.getDateLastModified() == entry2.getDateLastModified()
 				&& entry1.getSize() == entry2.getSize()
@@ -319,6 +354,16 @@ public class PathEntry {
 		}
 	}
 
+	public static boolean nativeCrcMatch(PathEntry entry1, PathEntry entry2) {
+		if (entry1.isNativeCrcNull() != entry2.isNativeCrcNull()) {
+			return false;
+		} else if (entry1.isNativeCrcNull() && entry2.isNativeCrcNull()) {
+			return true;
+		} else {
+			return entry1.getNativeCrc() == entry2.getNativeCrc();
+		}
+	}
+
 	private static synchronized long win32_GetCompressedSize(String path) throws GetCompressedFileSizeException
 	{
 		Kernel32 kernel32 = Kernel32.INSTANCE;
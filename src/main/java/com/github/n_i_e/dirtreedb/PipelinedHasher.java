@@ -0,0 +1,420 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.n_i_e.dirtreedb;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.n_i_e.dirtreedb.debug.Debug;
+
+/**
+ * Two-stage hashing: the calling thread reads into a ring of large buffers, and a hasher
+ * thread digests them, so that I/O wait (or decompression in archive listers) and digest CPU overlap.
+ * Contents that fit in one buffer are digested on the calling thread.
+ * Local files have a stream-free path as well; see digest(String, File, BandwidthLimiter).
+ */
+public class PipelinedHasher {
+	public static final int BUFFER_SIZE = 1024*1024;
+	public static final int NUM_BUFFERS = 4;
+	public static final long MAP_THRESHOLD = 4L*1024*1024;
+	public static final long MAP_WINDOW = 64L*1024*1024;
+	private static final long REPORT_INTERVAL = 60*1000;
+
+	// Windows keeps a mapped file locked until the mapping is garbage collected
+	private static final boolean mappingEnabled =
+			!System.getProperty("os.name", "").toLowerCase().startsWith("windows");
+
+	private static final ThreadLocal<ByteBuffer> directBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+
+	/*
+	 * Buffers of finished sessions, for the next ones to take, so that hashing many small members
+	 * does not allocate BUFFER_SIZE each time; at most this many are kept.
+	 */
+	private static final BlockingQueue<byte[]> spareBuffers = new ArrayBlockingQueue<byte[]>(4*NUM_BUFFERS);
+
+	private static final ExecutorService hashers = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "PipelinedHasher");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private static final AtomicLong readBytes = new AtomicLong();
+	private static final AtomicLong readNanos = new AtomicLong();
+	private static final AtomicLong hashBytes = new AtomicLong();
+	private static final AtomicLong hashNanos = new AtomicLong();
+	private static long lastReport = System.currentTimeMillis();
+
+	public static class Result {
+		private final byte[] digest;
+		private final long size;
+
+		Result(byte[] digest, long size) {
+			this.digest = digest;
+			this.size = size;
+		}
+
+		public byte[] getDigest() { return digest; }
+		public long getSize() { return size; }
+	}
+
+	private static class Block {
+		final byte[] buff;
+		final int len;
+
+		Block(byte[] buff, int len) {
+			this.buff = buff;
+			this.len = len;
+		}
+	}
+
+	private static final Block END = new Block(null, -1);
+
+	/**
+	 * One digest computation. Get a buffer with takeBuffer(), fill it and hand it over with submit();
+	 * the buffer must not be touched after submit().
+	 */
+	public static class Session implements Closeable {
+		private final MessageDigest md;
+		private final int bufferSize;
+		private final int numBuffers;
+		private final BlockingQueue<byte[]> free;
+		private final BlockingQueue<Block> filled;
+		private int allocated = 0;
+		private long size = 0;
+		private Block pending = null; // first block, kept back until we know there is more than one
+		private Future<byte[]> result = null;
+		private boolean finished = false;
+
+		Session(String algorithm, int bufferSize, int numBuffers) throws NoSuchAlgorithmException {
+			this.md = MessageDigest.getInstance(algorithm);
+			this.bufferSize = bufferSize;
+			this.numBuffers = numBuffers;
+			this.free = new ArrayBlockingQueue<byte[]>(numBuffers);
+			this.filled = new ArrayBlockingQueue<Block>(numBuffers + 1);
+		}
+
+		public byte[] takeBuffer() throws InterruptedIOException {
+			byte[] buff = free.poll();
+			if (buff != null) {
+				return buff;
+			}
+			if (allocated < numBuffers) {
+				allocated++;
+				if (bufferSize == BUFFER_SIZE && (buff = spareBuffers.poll()) != null) {
+					return buff;
+				}
+				return new byte[bufferSize];
+			}
+			try {
+				return free.take();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+
+		public void submit(byte[] buff, int len) throws InterruptedIOException {
+			Assertion.assertAssertionError(!finished);
+			if (len <= 0) {
+				free.offer(buff);
+				return;
+			}
+			size += len;
+			if (result == null && pending == null) {
+				pending = new Block(buff, len);
+				return;
+			}
+			try {
+				if (result == null) {
+					result = hashers.submit(new Callable<byte[]>() {
+						@Override
+						public byte[] call() throws InterruptedException {
+							return hashLoop();
+						}
+					});
+					filled.put(pending);
+					pending = null;
+				}
+				filled.put(new Block(buff, len));
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+
+		/**
+		 * Reads the rest of inf into this session.
+		 */
+		public void submitAll(InputStream inf, BandwidthLimiter limiter) throws IOException {
+			for (;;) {
+				byte[] buff = takeBuffer();
+				long t0 = System.nanoTime();
+				int n = readBlock(inf, buff);
+				countRead(n, System.nanoTime() - t0);
+				if (limiter != null) {
+					limiter.acquire(n);
+				}
+				submit(buff, n);
+				if (n < buff.length) {
+					return;
+				}
+			}
+		}
+
+		private byte[] hashLoop() throws InterruptedException {
+			for (;;) {
+				Block b = filled.take();
+				if (b == END) {
+					return md.digest();
+				}
+				update(b);
+			}
+		}
+
+		private void update(Block b) {
+			long t0 = System.nanoTime();
+			md.update(b.buff, 0, b.len);
+			countHash(b.len, System.nanoTime() - t0);
+			free.offer(b.buff);
+		}
+
+		public byte[] digest() throws IOException {
+			Assertion.assertAssertionError(!finished);
+			finished = true;
+			if (result == null) {
+				if (pending != null) {
+					update(pending);
+					pending = null;
+				}
+				recycleBuffers();
+				return md.digest();
+			}
+			try {
+				filled.put(END);
+				byte[] digest = result.get();
+				recycleBuffers();
+				return digest;
+			} catch (InterruptedException e) {
+				result.cancel(true);
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			}
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Only after the hasher thread is done with them; a cancelled session leaves its buffers to GC.
+		 */
+		private void recycleBuffers() {
+			if (bufferSize == BUFFER_SIZE) {
+				byte[] buff;
+				while ((buff = free.poll()) != null) {
+					spareBuffers.offer(buff);
+				}
+			}
+		}
+
+		/**
+		 * Stops the hasher thread if digest() has not been called.
+		 */
+		@Override
+		public void close() {
+			if (!finished) {
+				finished = true;
+				if (result != null) {
+					result.cancel(true);
+				}
+			}
+		}
+	}
+
+	public static Session newSession(String algorithm) throws NoSuchAlgorithmException {
+		return new Session(algorithm, BUFFER_SIZE, NUM_BUFFERS);
+	}
+
+	/**
+	 * Digests the whole of inf (not closed here); limiter may be null.
+	 */
+	public static Result digest(String algorithm, InputStream inf, BandwidthLimiter limiter)
+			throws IOException, NoSuchAlgorithmException {
+		Session session = newSession(algorithm);
+		try {
+			session.submitAll(inf, limiter);
+			return new Result(session.digest(), session.getSize());
+		} finally {
+			session.close();
+		}
+	}
+
+	/**
+	 * Digests a local file: mapped windows for large files where mapping is safe,
+	 * direct buffer reads otherwise. Either way no bytes are copied through a heap buffer of ours.
+	 */
+	public static Result digest(String algorithm, File file, BandwidthLimiter limiter)
+			throws IOException, NoSuchAlgorithmException {
+		if (mappingEnabled && file.length() >= MAP_THRESHOLD) {
+			return digestMapped(algorithm, file, limiter);
+		} else {
+			return digestDirect(algorithm, file, limiter);
+		}
+	}
+
+	/**
+	 * Page-in happens inside MessageDigest.update(), so it is counted as the hash stage.
+	 */
+	public static Result digestMapped(String algorithm, File file, BandwidthLimiter limiter)
+			throws IOException, NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance(algorithm);
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			long pos = 0;
+			while (pos < size) {
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_WINDOW, size - pos));
+				while (window.hasRemaining()) {
+					int len = Math.min(BUFFER_SIZE, window.remaining());
+					ByteBuffer slice = window.slice();
+					slice.limit(len);
+					long t0 = System.nanoTime();
+					md.update(slice);
+					countHash(len, System.nanoTime() - t0);
+					window.position(window.position() + len);
+					if (limiter != null) {
+						limiter.acquire(len);
+					}
+				}
+				pos += window.capacity();
+			}
+			return new Result(md.digest(), size);
+		} catch (InternalError e) {
+			// access to a mapped page beyond EOF, i.e. the file was truncated while hashing
+			throw new IOException("!! file changed while hashing: " + file.getPath(), e);
+		} finally {
+			channel.close();
+		}
+	}
+
+	public static Result digestDirect(String algorithm, File file, BandwidthLimiter limiter)
+			throws IOException, NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance(algorithm);
+		ByteBuffer buff = directBuffer.get();
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long size = 0;
+			for (;;) {
+				buff.clear();
+				long t0 = System.nanoTime();
+				int n = channel.read(buff);
+				if (n < 0) {
+					break;
+				}
+				countRead(n, System.nanoTime() - t0);
+				buff.flip();
+				t0 = System.nanoTime();
+				md.update(buff);
+				countHash(n, System.nanoTime() - t0);
+				size += n;
+				if (limiter != null) {
+					limiter.acquire(n);
+				}
+			}
+			return new Result(md.digest(), size);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads until buff is full or EOF; returns the number of bytes read (0 at EOF).
+	 */
+	public static int readBlock(InputStream inf, byte[] buff) throws IOException {
+		int n = 0;
+		while (n < buff.length) {
+			int len = inf.read(buff, n, buff.length - n);
+			if (len < 0) {
+				break;
+			}
+			n += len;
+		}
+		return n;
+	}
+
+	private static void countRead(int len, long nanos) {
+		readBytes.addAndGet(len);
+		readNanos.addAndGet(nanos);
+		report();
+	}
+
+	private static void countHash(int len, long nanos) {
+		hashBytes.addAndGet(len);
+		hashNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Bytes per second while the read stage was busy.
+	 */
+	public static double getReadThroughput() {
+		long n = readNanos.get();
+		return n > 0 ? readBytes.get() * 1e9 / n : 0;
+	}
+
+	/**
+	 * Bytes per second while the hash stage was busy.
+	 */
+	public static double getHashThroughput() {
+		long n = hashNanos.get();
+		return n > 0 ? hashBytes.get() * 1e9 / n : 0;
+	}
+
+	private static synchronized void report() {
+		long t = System.currentTimeMillis();
+		if (t - lastReport >= REPORT_INTERVAL) {
+			lastReport = t;
+			Debug.writelog(String.format("PipelinedHasher read=%d bytes %.1f MB/s, hash=%d bytes %.1f MB/s",
+					readBytes.get(), getReadThroughput() / 1024 / 1024,
+					hashBytes.get(), getHashThroughput() / 1024 / 1024));
+		}
+	}
+}
@@ -38,6 +38,16 @@ public class PreferenceRW {
 		updater.setNumCrawlingThreads(getNumCrawlingThreads());
 		updater.setWindowsIdleSeconds(getWindowsIdleSeconds());
 		updater.setCharset(getZipListerCharset());
+		updater.setFolderWatcherEnabled(isFolderWatcherEnabled());
+		updater.setNumSchedulerPermits(getNumSchedulerPermits());
+		updater.setCsumBandwidthLimit(getCsumBandwidthLimit());
+		updater.setEqualityBandwidthLimit(getEqualityBandwidthLimit());
+		updater.setNumOutstandingCsumReads(getNumOutstandingCsumReads());
+		updater.setEqualitySampleBlocks(getEqualitySampleBlocks());
+		updater.setEqualityFullCheckCycles(getEqualityFullCheckCycles());
+		updater.setChunkIndexMinFileSize(getChunkIndexMinFileSize());
+		updater.setExtractionCacheSize(getExtractionCacheSize());
+		updater.setArchiveSniffingEnabled(isArchiveSniffingEnabled());
 	}
 
 	public static boolean unregist(IPreferenceObserver updater) {
@@ -111,6 +121,157 @@ public class PreferenceRW {
 		}
 	}
 
+	// FolderWatcherEnabled
+
+	private final static String FolderWatcherEnabled_KEY = "FolderWatcherEnabled";
+
+	public static boolean isFolderWatcherEnabled() {
+		return Boolean.parseBoolean(prefs.get(FolderWatcherEnabled_KEY, "false"));
+	}
+
+	public static void setFolderWatcherEnabled(boolean folderWatcherEnabled) {
+		prefs.put(FolderWatcherEnabled_KEY, String.valueOf(folderWatcherEnabled));
+		for (IPreferenceObserver p: updaters) {
+			p.setFolderWatcherEnabled(folderWatcherEnabled);
+		}
+	}
+
+	// NumSchedulerPermits
+
+	private final static String NumSchedulerPermits_KEY = "NumSchedulerPermits";
+	public final static int DEFAULT_NUM_SCHEDULER_PERMITS = 2;
+
+	public static int getNumSchedulerPermits() {
+		return Integer.parseInt(prefs.get(NumSchedulerPermits_KEY, String.valueOf(DEFAULT_NUM_SCHEDULER_PERMITS)));
+	}
+
+	public static void setNumSchedulerPermits(int numSchedulerPermits) {
+		prefs.put(NumSchedulerPermits_KEY, String.valueOf(numSchedulerPermits));
+		for (IPreferenceObserver p: updaters) {
+			p.setNumSchedulerPermits(numSchedulerPermits);
+		}
+	}
+
+	// CsumBandwidthLimit
+
+	private final static String CsumBandwidthLimit_KEY = "CsumBandwidthLimit";
+
+	public static int getCsumBandwidthLimit() {
+		return Integer.parseInt(prefs.get(CsumBandwidthLimit_KEY, "0"));
+	}
+
+	public static void setCsumBandwidthLimit(int megaBytesPerSecond) {
+		prefs.put(CsumBandwidthLimit_KEY, String.valueOf(megaBytesPerSecond));
+		for (IPreferenceObserver p: updaters) {
+			p.setCsumBandwidthLimit(megaBytesPerSecond);
+		}
+	}
+
+	// EqualityBandwidthLimit
+
+	private final static String EqualityBandwidthLimit_KEY = "EqualityBandwidthLimit";
+
+	public static int getEqualityBandwidthLimit() {
+		return Integer.parseInt(prefs.get(EqualityBandwidthLimit_KEY, "0"));
+	}
+
+	public static void setEqualityBandwidthLimit(int megaBytesPerSecond) {
+		prefs.put(EqualityBandwidthLimit_KEY, String.valueOf(megaBytesPerSecond));
+		for (IPreferenceObserver p: updaters) {
+			p.setEqualityBandwidthLimit(megaBytesPerSecond);
+		}
+	}
+
+	// NumOutstandingCsumReads
+
+	private final static String NumOutstandingCsumReads_KEY = "NumOutstandingCsumReads";
+
+	public static int getNumOutstandingCsumReads() {
+		return Integer.parseInt(prefs.get(NumOutstandingCsumReads_KEY, "16"));
+	}
+
+	public static void setNumOutstandingCsumReads(int numOutstandingCsumReads) {
+		prefs.put(NumOutstandingCsumReads_KEY, String.valueOf(numOutstandingCsumReads));
+		for (IPreferenceObserver p: updaters) {
+			p.setNumOutstandingCsumReads(numOutstandingCsumReads);
+		}
+	}
+
+	// EqualitySampleBlocks
+
+	private final static String EqualitySampleBlocks_KEY = "EqualitySampleBlocks";
+
+	public static int getEqualitySampleBlocks() {
+		return Integer.parseInt(prefs.get(EqualitySampleBlocks_KEY, "16"));
+	}
+
+	public static void setEqualitySampleBlocks(int sampleBlocks) {
+		prefs.put(EqualitySampleBlocks_KEY, String.valueOf(sampleBlocks));
+		for (IPreferenceObserver p: updaters) {
+			p.setEqualitySampleBlocks(sampleBlocks);
+		}
+	}
+
+	// EqualityFullCheckCycles
+
+	private final static String EqualityFullCheckCycles_KEY = "EqualityFullCheckCycles";
+
+	public static int getEqualityFullCheckCycles() {
+		return Integer.parseInt(prefs.get(EqualityFullCheckCycles_KEY, "8"));
+	}
+
+	public static void setEqualityFullCheckCycles(int fullCheckCycles) {
+		prefs.put(EqualityFullCheckCycles_KEY, String.valueOf(fullCheckCycles));
+		for (IPreferenceObserver p: updaters) {
+			p.setEqualityFullCheckCycles(fullCheckCycles);
+		}
+	}
+
+	// ChunkIndexMinFileSize
+
+	private final static String ChunkIndexMinFileSize_KEY = "ChunkIndexMinFileSize";
+
+	public static int getChunkIndexMinFileSize() {
+		return Integer.parseInt(prefs.get(ChunkIndexMinFileSize_KEY, "0"));
+	}
+
+	public static void setChunkIndexMinFileSize(int megaBytes) {
+		prefs.put(ChunkIndexMinFileSize_KEY, String.valueOf(megaBytes));
+		for (IPreferenceObserver p: updaters) {
+			p.setChunkIndexMinFileSize(megaBytes);
+		}
+	}
+
+	// ExtractionCacheSize
+
+	private final static String ExtractionCacheSize_KEY = "ExtractionCacheSize";
+
+	public static int getExtractionCacheSize() {
+		return Integer.parseInt(prefs.get(ExtractionCacheSize_KEY, "1024"));
+	}
+
+	public static void setExtractionCacheSize(int megaBytes) {
+		prefs.put(ExtractionCacheSize_KEY, String.valueOf(megaBytes));
+		for (IPreferenceObserver p: updaters) {
+			p.setExtractionCacheSize(megaBytes);
+		}
+	}
+
+	// ArchiveSniffingEnabled
+
+	private final static String ArchiveSniffingEnabled_KEY = "ArchiveSniffingEnabled";
+
+	public static boolean isArchiveSniffingEnabled() {
+		return Boolean.parseBoolean(prefs.get(ArchiveSniffingEnabled_KEY, "false"));
+	}
+
+	public static void setArchiveSniffingEnabled(boolean archiveSniffingEnabled) {
+		prefs.put(ArchiveSniffingEnabled_KEY, String.valueOf(archiveSniffingEnabled));
+		for (IPreferenceObserver p: updaters) {
+			p.setArchiveSniffingEnabled(archiveSniffingEnabled);
+		}
+	}
+
 	// ExtensionAvailabilityMap
 
 	private static final String ExtensionAvailabilityMap_KEY = "ArchiveListerExtensionAvailabilityList";
@@ -24,9 +24,11 @@ import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 
 import org.sqlite.SQLiteConfig;
 import org.sqlite.SQLiteException;
@@ -99,6 +101,14 @@ public class SQLiteDirTreeDB extends CommonSQLDirTreeDB {
 		} finally {
 			stmt.close();
 		}
+		createFolderStatsTableIfNotExists();
+		createEqualityGroupTablesIfNotExists();
+		createChunkTablesIfNotExists();
+		createFileInodeTableIfNotExists();
+		createMemberIndexTableIfNotExists();
+		createNativeCrcColumnIfNotExists();
+		createListingCacheTableIfNotExists();
+		createListingCheckpointTableIfNotExists();
 	}
 
 	@Override
@@ -119,6 +129,14 @@ public class SQLiteDirTreeDB extends CommonSQLDirTreeDB {
 		super.close();
 	}
 
+	/**
+	 * directory.datelastmodified is TEXT here, as insert() and update() write it.
+	 */
+	@Override
+	public void setDateLastModified(PreparedStatement ps, int i, long datelastmodified) throws SQLException {
+		ps.setString(i, sdf.format(new Date(datelastmodified)));
+	}
+
 	@Override
 	public DBPathEntry rsToPathEntry(ResultSet rs, String prefix) throws SQLException, InterruptedException
 	{
@@ -193,13 +211,17 @@ public class SQLiteDirTreeDB extends CommonSQLDirTreeDB {
 			} else {
 				assert(basedir.getPath().equals(newentry.getPath().substring(0, basedir.getPath().length())));
 				PreparedStatement ps;
+				String nativecrc = isNativeCrcAvailable() ? ", nativecrc" : "";
+				String nativecrcValue = isNativeCrcAvailable() ? ", ?" : "";
 				if (newentry.isCsumNull()) {
-					sql = "INSERT INTO directory (parentid, rootid, datelastmodified, size, compressedsize, path, type, status, duplicate, dedupablesize) VALUES (?, ?, ?, ?, ?, ?, ?, 1, 0, 0)";
+					sql = "INSERT INTO directory (parentid, rootid, datelastmodified, size, compressedsize, path, type, status, duplicate, dedupablesize" + nativecrc + ") VALUES (?, ?, ?, ?, ?, ?, ?, 1, 0, 0" + nativecrcValue + ")";
 					ps = conn.prepareStatement(sql);
+					setNativeCrc(ps, 8, newentry);
 				} else {
-					sql = "INSERT INTO directory (parentid, rootid, datelastmodified, size, compressedsize, path, type, status, duplicate, dedupablesize, csum) VALUES (?, ?, ?, ?, ?, ?, ?, 1, 0, 0, ?)";
+					sql = "INSERT INTO directory (parentid, rootid, datelastmodified, size, compressedsize, path, type, status, duplicate, dedupablesize, csum" + nativecrc + ") VALUES (?, ?, ?, ?, ?, ?, ?, 1, 0, 0, ?" + nativecrcValue + ")";
 					ps = conn.prepareStatement(sql);
 					ps.setInt(8, newentry.getCsum());
+					setNativeCrc(ps, 9, newentry);
 				}
 				ps.setLong(1, basedir.getPathId());
 				ps.setLong(2, basedir.getRootId());
@@ -230,19 +252,68 @@ public class SQLiteDirTreeDB extends CommonSQLDirTreeDB {
 		}
 	}
 
+	@Override
+	public void insertBatch(DBPathEntry basedir, List<PathEntry> newentries) throws SQLException, InterruptedException {
+		Assertion.assertNullPointerException(basedir != null);
+		Assertion.assertNullPointerException(newentries != null);
+		if (newentries.size() == 0) {
+			return;
+		}
+		String sql = "INSERT INTO directory (parentid, rootid, datelastmodified, size, compressedsize, path, type, status, duplicate, dedupablesize, csum"
+				+ (isNativeCrcAvailable() ? ", nativecrc) VALUES (?, ?, ?, ?, ?, ?, ?, 1, 0, 0, ?, ?)" : ") VALUES (?, ?, ?, ?, ?, ?, ?, 1, 0, 0, ?)");
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		try {
+			PreparedStatement ps = conn.prepareStatement(sql);
+			try {
+				for (PathEntry newentry: newentries) {
+					assert(basedir.getPath().equals(newentry.getPath().substring(0, basedir.getPath().length())));
+					ps.setLong(1, basedir.getPathId());
+					ps.setLong(2, basedir.getRootId());
+					Date d = new Date(newentry.getDateLastModified());
+					ps.setString(3, sdf.format(d));
+					ps.setLong(4, newentry.getSize());
+					ps.setLong(5, newentry.getCompressedSize());
+					ps.setString(6, newentry.getPath());
+					ps.setInt(7, newentry.getType());
+					if (newentry.isCsumNull()) {
+						ps.setNull(8, Types.INTEGER);
+					} else {
+						ps.setInt(8, newentry.getCsum());
+					}
+					setNativeCrc(ps, 9, newentry);
+					ps.addBatch();
+				}
+				ps.executeBatch();
+				conn.commit();
+			} finally {
+				ps.close();
+			}
+		} catch (SQLException e) {
+			Debug.writelog("!! SQL batch insert failed at SQLiteDirTreeDB, basedir.path = " + basedir.getPath());
+			conn.rollback();
+			throw e;
+		} finally {
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
 	@Override
 	public void update(DBPathEntry oldentry, PathEntry newentry) throws SQLException, InterruptedException
 	{
 		assert(oldentry.getPath().equals(newentry.getPath()));
 
 		PreparedStatement ps;
+		String nativecrc = isNativeCrcAvailable() ? ", nativecrc=?" : "";
 		if (newentry.isCsumNull()) {
-			ps = conn.prepareStatement("UPDATE directory SET datelastmodified=?, size=?, compressedsize=?, status=?, csum=NULL WHERE pathid=?");
-			ps.setLong(5, oldentry.getPathId());
+			ps = conn.prepareStatement("UPDATE directory SET datelastmodified=?, size=?, compressedsize=?, status=?, csum=NULL" + nativecrc + " WHERE pathid=?");
+			setNativeCrc(ps, 5, newentry);
+			ps.setLong(isNativeCrcAvailable() ? 6 : 5, oldentry.getPathId());
 		} else {
-			ps = conn.prepareStatement("UPDATE directory SET datelastmodified=?, size=?, compressedsize=?, status=?, csum=? WHERE pathid=?");
+			ps = conn.prepareStatement("UPDATE directory SET datelastmodified=?, size=?, compressedsize=?, status=?, csum=?" + nativecrc + " WHERE pathid=?");
 			ps.setLong(5, newentry.getCsum());
-			ps.setLong(6, oldentry.getPathId());
+			setNativeCrc(ps, 6, newentry);
+			ps.setLong(isNativeCrcAvailable() ? 7 : 6, oldentry.getPathId());
 		}
 		Date d = new Date(newentry.getDateLastModified());
 		ps.setString(1, sdf.format(d));
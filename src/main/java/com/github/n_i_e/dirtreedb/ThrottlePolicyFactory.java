@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.n_i_e.dirtreedb;
+
+import com.github.n_i_e.dirtreedb.linux.LinuxPressureThrottlePolicy;
+import com.github.n_i_e.dirtreedb.windows.Win32IdleThrottlePolicy;
+
+public class ThrottlePolicyFactory {
+
+	private static IThrottlePolicy policy = null;
+
+	public static synchronized IThrottlePolicy getThrottlePolicy() {
+		if (policy == null) {
+			policy = getDefaultThrottlePolicy();
+		}
+		return policy;
+	}
+
+	public static synchronized void setThrottlePolicy(IThrottlePolicy newpolicy) {
+		Assertion.assertNullPointerException(newpolicy != null);
+		policy = newpolicy;
+	}
+
+	public static IThrottlePolicy getDefaultThrottlePolicy() {
+		String os = System.getProperty("os.name", "").toLowerCase();
+		if (os.startsWith("windows")) {
+			return new Win32IdleThrottlePolicy();
+		} else if (os.startsWith("linux")) {
+			return new LinuxPressureThrottlePolicy();
+		} else {
+			return new IThrottlePolicy() {
+				@Override public double getMaintainerCapacity() { return 1.0; }
+				@Override public double getCrawlerCapacity() { return 1.0; }
+			};
+		}
+	}
+
+	/**
+	 * Sleeps up to maxMillis, longer as the capacity goes down; no sleep at full capacity.
+	 */
+	public static void pause(double capacity, long maxMillis) throws InterruptedException {
+		if (capacity < 1.0) {
+			Thread.sleep((long)((1.0 - Math.max(capacity, 0.0)) * maxMillis));
+		}
+	}
+
+	/**
+	 * Scales a number of crawling threads by the current capacity; at least 1 is returned.
+	 */
+	public static int scale(int n) {
+		int result = (int)Math.ceil(n * getThrottlePolicy().getCrawlerCapacity());
+		return result > 0 ? result : 1;
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.n_i_e.dirtreedb;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class ThrottledInputStream extends FilterInputStream {
+	private final BandwidthLimiter limiter;
+
+	public ThrottledInputStream(InputStream in, BandwidthLimiter limiter) {
+		super(in);
+		Assertion.assertNullPointerException(limiter != null);
+		this.limiter = limiter;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int result = super.read();
+		if (result >= 0) {
+			limiter.acquire(1);
+		}
+		return result;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int result = super.read(b, off, len);
+		limiter.acquire(result);
+		return result;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		return super.skip(n); // not counted; skipped bytes may not be read from disk
+	}
+}
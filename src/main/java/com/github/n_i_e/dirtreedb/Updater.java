@@ -16,28 +16,36 @@
 
 package com.github.n_i_e.dirtreedb;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.github.n_i_e.dirtreedb.debug.Debug;
 import com.github.n_i_e.dirtreedb.lister.DirLister;
+import com.github.n_i_e.dirtreedb.lister.AbstractCompressorLister;
+import com.github.n_i_e.dirtreedb.lister.IMemberIndexedLister;
+import com.github.n_i_e.dirtreedb.lister.ListingCopyLister;
 import com.github.n_i_e.dirtreedb.lister.PathEntryLister;
 import com.github.n_i_e.dirtreedb.lister.PathEntryListerFactory;
 
@@ -68,6 +76,11 @@ public class Updater implements IDirTreeDB {
 		return parent.rsToPathEntry(rs, prefix);
 	}
 
+	@Override
+	public void setDateLastModified(PreparedStatement ps, int i, long datelastmodified) throws SQLException {
+		parent.setDateLastModified(ps, i, datelastmodified);
+	}
+
 	public DBPathEntry rsToPathEntry(ResultSet rs) throws SQLException, InterruptedException {
 		return rsToPathEntry(rs, "");
 	}
@@ -84,6 +97,41 @@ public class Updater implements IDirTreeDB {
 		}
 	}
 
+	@Override
+	public void insertBatch(DBPathEntry basedir, List<PathEntry> newentries) throws SQLException, InterruptedException {
+		Assertion.assertNullPointerException(basedir != null);
+		Assertion.assertNullPointerException(newentries != null);
+		try {
+			parent.insertBatch(basedir, newentries);
+		} catch (SQLException e) {
+			// some of them may be orphans to revive; fall back to one by one
+			for (PathEntry newentry: newentries) {
+				insert(basedir, newentry);
+			}
+		}
+	}
+
+	/**
+	 * Inserts newentry, and if it is an archive listed while it was hashed, its entries as listed,
+	 * down to the archives nested in it, which are then CLEAN without being read again.
+	 */
+	public void insertListed(DBPathEntry basedir, PathEntry newentry, Map<String, List<PathEntry>> listings)
+			throws SQLException, InterruptedException {
+		insert(basedir, newentry);
+		List<PathEntry> children = listings.get(newentry.getPath());
+		if (children == null) {
+			return;
+		}
+		DBPathEntry newdir = getDBPathEntryByPath(newentry.getPath());
+		if (newdir == null) {
+			return;
+		}
+		for (PathEntry child: children) {
+			insertListed(newdir, child, listings);
+		}
+		updateStatus(newdir, PathEntry.CLEAN);
+	}
+
 	@Override
 	public void update(DBPathEntry oldentry, PathEntry newentry) throws SQLException, InterruptedException {
 		Assertion.assertNullPointerException(oldentry != null);
@@ -95,6 +143,8 @@ public class Updater implements IDirTreeDB {
 		if ((!PathEntry.dscMatch(oldentry, newentry)) || (!PathEntry.csumMatch(oldentry, newentry))) {
 			deleteEquality(oldentry.getPathId());
 			parent.update(oldentry, newentry);
+		} else if (isNativeCrcAvailable() && !PathEntry.nativeCrcMatch(oldentry, newentry)) {
+			parent.update(oldentry, newentry);
 		} else if (oldentry.getStatus() != newentry.getStatus()) {
 			parent.updateStatus(oldentry, newentry.getStatus());
 		}
@@ -190,8 +240,20 @@ public class Updater implements IDirTreeDB {
 		parent.updateParentId(entry, newparentid);
 	};
 
+	@Override
+	public void updatePath(DBPathEntry entry, String newpath, long newrootid) throws SQLException, InterruptedException {
+		parent.updatePath(entry, newpath, newrootid);
+	}
+
+	/*
+	 * Set when a row is orphanized, cleared when cleanupOrphans() finds none. While it is clear, a new child
+	 * is matched only against the gone rows of its own folder for a move; see Dispatcher.findMovedEntry().
+	 */
+	protected volatile boolean orphansPending = false;
+
 	@Override
 	public void orphanize(DBPathEntry entry) throws SQLException, InterruptedException {
+		orphansPending = true;
 		parent.orphanize(entry);
 	}
 
@@ -268,6 +330,132 @@ public class Updater implements IDirTreeDB {
 		parent.updateDuplicateFields(pathid, duplicate, dedupablesize);
 	}
 
+	@Override
+	public void dropSecondaryIndexes() throws SQLException, InterruptedException {
+		parent.dropSecondaryIndexes();
+	}
+
+	@Override
+	public void createSecondaryIndexes() throws SQLException, InterruptedException {
+		parent.createSecondaryIndexes();
+	}
+
+	@Override
+	public boolean isFolderStatsAvailable() {
+		return parent.isFolderStatsAvailable();
+	}
+
+	@Override
+	public FolderStats getFolderStats(long pathid) throws SQLException, InterruptedException {
+		return parent.getFolderStats(pathid);
+	}
+
+	@Override
+	public void updateFolderStats(long pathid, boolean changed) throws SQLException, InterruptedException {
+		parent.updateFolderStats(pathid, changed);
+	}
+
+	@Override
+	public boolean isEqualityGroupAvailable() {
+		return parent.isEqualityGroupAvailable();
+	}
+
+	@Override
+	public void replaceEqualityGroups(long size, int csum, List<List<Long>> groups) throws SQLException, InterruptedException {
+		parent.replaceEqualityGroups(size, csum, groups);
+	}
+
+	@Override
+	public void updateEqualityGroupsSampled(long size, int csum, int samplecount, int sampleblocksize)
+			throws SQLException, InterruptedException {
+		parent.updateEqualityGroupsSampled(size, csum, samplecount, sampleblocksize);
+	}
+
+	@Override
+	public boolean isChunkIndexAvailable() {
+		return parent.isChunkIndexAvailable();
+	}
+
+	@Override
+	public void replaceChunks(long pathid, long size, int csum, List<ContentDefinedChunker.Chunk> chunks)
+			throws SQLException, InterruptedException {
+		parent.replaceChunks(pathid, size, csum, chunks);
+	}
+
+	@Override
+	public boolean isFileInodeAvailable() {
+		return parent.isFileInodeAvailable();
+	}
+
+	@Override
+	public void updateFileInode(long pathid, FileIdentity id, int csum) throws SQLException, InterruptedException {
+		parent.updateFileInode(pathid, id, csum);
+	}
+
+	@Override
+	public void deleteFileInode(long pathid) throws SQLException, InterruptedException {
+		parent.deleteFileInode(pathid);
+	}
+
+	@Override
+	public boolean isNativeCrcAvailable() {
+		return parent.isNativeCrcAvailable();
+	}
+
+	@Override
+	public boolean isListingCacheAvailable() {
+		return parent.isListingCacheAvailable();
+	}
+
+	@Override
+	public boolean hasListingCacheSize(long size) throws SQLException, InterruptedException {
+		return parent.hasListingCacheSize(size);
+	}
+
+	@Override
+	public List<DBPathEntry> getListingCacheSources(long size, String digest) throws SQLException, InterruptedException {
+		return parent.getListingCacheSources(size, digest);
+	}
+
+	@Override
+	public void updateListingCache(long pathid, long size, long datelastmodified, String digest)
+			throws SQLException, InterruptedException {
+		parent.updateListingCache(pathid, size, datelastmodified, digest);
+	}
+
+	@Override
+	public boolean isListingCheckpointAvailable() {
+		return parent.isListingCheckpointAvailable();
+	}
+
+	@Override
+	public ListingCheckpoint getListingCheckpoint(long pathid, long size, long datelastmodified)
+			throws SQLException, InterruptedException {
+		return parent.getListingCheckpoint(pathid, size, datelastmodified);
+	}
+
+	@Override
+	public void updateListingCheckpoint(long pathid, long size, long datelastmodified, ListingCheckpoint checkpoint)
+			throws SQLException, InterruptedException {
+		parent.updateListingCheckpoint(pathid, size, datelastmodified, checkpoint);
+	}
+
+	@Override
+	public void deleteListingCheckpoint(long pathid) throws SQLException, InterruptedException {
+		parent.deleteListingCheckpoint(pathid);
+	}
+
+	@Override
+	public boolean isMemberIndexAvailable() {
+		return parent.isMemberIndexAvailable();
+	}
+
+	@Override
+	public void updateMemberIndex(long pathid, long size, long datelastmodified, Map<String, Long> dataoffsets)
+			throws SQLException, InterruptedException {
+		parent.updateMemberIndex(pathid, size, datelastmodified, dataoffsets);
+	}
+
 	public DBPathEntry getParent(DBPathEntry basedir) throws SQLException, InterruptedException {
 		PreparedStatement ps = prepareStatement("select * from DIRECTORY where PATHID=?");
 		ps.setLong(1, basedir.getParentId());
@@ -339,7 +527,17 @@ public class Updater implements IDirTreeDB {
 			} else {
 				Assertion.assertAssertionError(entry.isFile());
 				InputStream result = null;
-				for (int i=stack.size()-2; i>=0; i--) {
+				int start = stack.size()-2;
+				for (int i=1; i<stack.size()-1; i++) { // innermost extracted archive first
+					InputStream cached = ExtractionCache.getInstance().getInputStream(stack.get(i));
+					if (cached != null) {
+						entry = stack.get(i);
+						result = cached;
+						start = i-1;
+						break;
+					}
+				}
+				for (int i=start; i>=0; i--) {
 					DBPathEntry parent = entry;
 					InputStream parentStream = result;
 					entry = stack.get(i);
@@ -351,8 +549,16 @@ public class Updater implements IDirTreeDB {
 					} else {
 						z = PathEntryListerFactory.getInstance(parent, parentStream);
 					}
-					result = z.getInputStream(entry);
+					Long dataoffset = z instanceof IMemberIndexedLister ? getMemberDataOffset(parent, entry) : null;
+					if (dataoffset != null) {
+						result = ((IMemberIndexedLister)z).getInputStream(entry, dataoffset);
+					} else {
+						result = z.getInputStream(entry);
+					}
 					Assertion.assertAssertionError(result != null);
+					if (i > 0) {
+						result = ExtractionCache.getInstance().put(entry, result);
+					}
 				}
 				return result;
 			}
@@ -362,6 +568,32 @@ public class Updater implements IDirTreeDB {
 		}
 	}
 
+	/**
+	 * Where the data of member starts in the archive file, as recorded when the archive was listed
+	 * with its current size and date last modified; null if not known.
+	 */
+	protected Long getMemberDataOffset(DBPathEntry archive, DBPathEntry member) throws SQLException, InterruptedException {
+		if (!archive.isFile() || !isMemberIndexAvailable()) {
+			return null;
+		}
+		PreparedStatement ps = prepareStatement("SELECT dataoffset FROM memberindex WHERE pathid=? AND parentid=?"
+				+ " AND size=? AND datelastmodified=?");
+		try {
+			ps.setLong(1, member.getPathId());
+			ps.setLong(2, archive.getPathId());
+			ps.setLong(3, archive.getSize());
+			ps.setTimestamp(4, new Timestamp(archive.getDateLastModified()));
+			ResultSet rs = ps.executeQuery();
+			try {
+				return rs.next() ? rs.getLong("dataoffset") : null;
+			} finally {
+				rs.close();
+			}
+		} finally {
+			ps.close();
+		}
+	}
+
 	public DBPathEntry getDBPathEntryByPathId(long pathid) throws SQLException, InterruptedException {
 		String sql = "SELECT * from DIRECTORY where PATHID=?";
 		PreparedStatement ps = prepareStatement(sql);
@@ -420,6 +652,79 @@ public class Updater implements IDirTreeDB {
 		}
 	}
 
+	public int cleanupFileInodeOrphans(IsEol isEol)
+			throws SQLException, InterruptedException {
+		if (!isFileInodeAvailable()) {
+			return 0;
+		}
+		String sql = "SELECT pathid FROM fileinode "
+				+ "WHERE NOT EXISTS (SELECT * FROM directory WHERE directory.pathid=fileinode.pathid)";
+		PreparedStatement ps = prepareStatement(sql);
+		ResultSet rs = ps.executeQuery();
+		try {
+			int count = 0;
+			while (rs.next()) {
+				deleteFileInode(rs.getLong("pathid"));
+				count ++;
+				if (isEol.isEol()) { break; }
+			}
+			return count;
+		} finally {
+			rs.close();
+			ps.close();
+		}
+	}
+
+	/**
+	 * Sets the csum of a local file from fileinode, if a file of the same device, inode, size and
+	 * date last modified was hashed before (a hard link, or the same file before a move or rename).
+	 * Returns false if the file has to be read.
+	 */
+	public boolean setCsumFromInodeCache(PathEntry entry) throws SQLException, InterruptedException {
+		Assertion.assertAssertionError(entry.isFile());
+		if (!isFileInodeAvailable()) {
+			return false;
+		}
+		FileIdentity id = FileIdentity.get(entry.getPath());
+		if (id == null || !id.matches(entry)) {
+			return false;
+		}
+		PreparedStatement ps = prepareStatement("SELECT csum FROM fileinode"
+				+ " WHERE dev=? AND ino=? AND size=? AND datelastmodified=? AND csum IS NOT NULL");
+		try {
+			ps.setLong(1, id.getDevice());
+			ps.setLong(2, id.getInode());
+			ps.setLong(3, id.getSize());
+			ps.setTimestamp(4, new Timestamp(id.getDateLastModified()));
+			ResultSet rs = ps.executeQuery();
+			try {
+				if (!rs.next()) {
+					return false;
+				}
+				entry.setCsum(rs.getInt("csum"));
+				return true;
+			} finally {
+				rs.close();
+			}
+		} finally {
+			ps.close();
+		}
+	}
+
+	/**
+	 * Records the device and inode of the local file of pathid, if it still is what entry says.
+	 */
+	public void recordFileInode(long pathid, PathEntry entry) throws SQLException, InterruptedException {
+		Assertion.assertAssertionError(entry.isFile());
+		if (!isFileInodeAvailable() || entry.isCsumNull()) {
+			return;
+		}
+		FileIdentity id = FileIdentity.get(entry.getPath());
+		if (id != null && id.matches(entry)) {
+			updateFileInode(pathid, id, entry.getCsum());
+		}
+	}
+
 	public int cleanupUpperLowerOrphans(IsEol isEol)
 			throws SQLException, InterruptedException {
 		String sql = "SELECT * FROM upperlower "
@@ -474,7 +779,12 @@ public class Updater implements IDirTreeDB {
 		String sql = "SELECT * FROM directory AS d1 WHERE parentid<>0 "
 				+ "AND NOT EXISTS (SELECT * FROM directory AS d2 WHERE d1.parentid=d2.pathid)";
 		ps = prepareStatement(sql);
-		return cleanupOrphans(ps, isEol);
+		orphansPending = false; // set again by any orphanize() meanwhile
+		int count = cleanupOrphans(ps, isEol);
+		if (count > 0) {
+			orphansPending = true;
+		}
+		return count;
 	}
 
 	public int cleanupOrphansWithChildren(IsEol isEol)
@@ -495,6 +805,78 @@ public class Updater implements IDirTreeDB {
 		while (cleanupOrphans() > 0) {}
 	}
 
+	/**
+	 * Moves entry under newparent as newpath, together with all rows below it (the contents of a folder,
+	 * or the members of an archive). The rows keep their pathids, and so their csums, listings, equality
+	 * and other side table rows. upperlower rows to the old ancestors are deleted; the new ones are
+	 * added by refreshDirectUpperLower() and refreshIndirectUpperLower() as for new rows.
+	 * Returns the number of rows moved, or 0, with nothing changed, if a row other than these has one of their new paths.
+	 */
+	public int moveSubtree(DBPathEntry entry, DBPathEntry newparent, String newpath)
+			throws SQLException, InterruptedException {
+		Assertion.assertNullPointerException(entry != null);
+		Assertion.assertNullPointerException(newparent != null);
+		String oldpath = entry.getPath();
+		List<DBPathEntry> rows = new ArrayList<DBPathEntry>();
+		Set<Long> moved = new HashSet<Long>();
+		List<DBPathEntry> todo = new ArrayList<DBPathEntry>();
+		todo.add(entry);
+		while (todo.size() > 0) {
+			DBPathEntry e = todo.remove(todo.size()-1);
+			Assertion.assertAssertionError(e.getPath().startsWith(oldpath),
+					"!! moved row not under moved path: " + e.getPath() + " not under " + oldpath);
+			rows.add(e);
+			moved.add(e.getPathId());
+			if (e.isFolder() || e.isCompressedFolder() || PathEntryListerFactory.isArchivable(e)) {
+				todo.addAll(childrenList(e).values());
+			}
+		}
+
+		PreparedStatement ps = prepareStatement("SELECT pathid FROM directory WHERE path=?");
+		try {
+			for (DBPathEntry e: rows) {
+				ps.setString(1, newpath + e.getPath().substring(oldpath.length()));
+				ResultSet rs = ps.executeQuery();
+				try {
+					if (rs.next() && !moved.contains(rs.getLong("pathid"))) {
+						Debug.writelog("!! cannot move " + oldpath + " -> " + newpath + ", path taken: " + rs.getLong("pathid"));
+						return 0;
+					}
+				} finally {
+					rs.close();
+				}
+			}
+		} finally {
+			ps.close();
+		}
+
+		updateParentId(entry, newparent.getPathId());
+		for (DBPathEntry e: rows) {
+			updatePath(e, newpath + e.getPath().substring(oldpath.length()), newparent.getRootId());
+		}
+
+		ps = prepareStatement("SELECT upper FROM upperlower WHERE lower=?");
+		try {
+			for (long lower: moved) {
+				ps.setLong(1, lower);
+				ResultSet rs = ps.executeQuery();
+				try {
+					while (rs.next()) {
+						long upper = rs.getLong("upper");
+						if (!moved.contains(upper)) {
+							deleteUpperLower(upper, lower);
+						}
+					}
+				} finally {
+					rs.close();
+				}
+			}
+		} finally {
+			ps.close();
+		}
+		return moved.size();
+	}
+
 	private int reviveOprhan(final DBPathEntry basedir, final PathEntry newentry)
 			throws SQLException, InterruptedException {
 		Assertion.assertNullPointerException(basedir != null);
@@ -667,6 +1049,73 @@ public class Updater implements IDirTreeDB {
 		}
 	}
 
+	/*
+	 * True for a file row of d that is a hard link of another row with a smaller pathid and the same
+	 * contents, going by fileinode rows that are up to date. Such rows take no space of their own.
+	 */
+	private static String getHardLinkSubSQL(String d) {
+		return "EXISTS (SELECT * FROM fileinode AS f1, fileinode AS f2, directory AS l1"
+				+ " WHERE f1.pathid=" + d + ".pathid AND f1.size=" + d + ".size"
+				+ " AND f1.datelastmodified=" + d + ".datelastmodified"
+				+ " AND f2.dev=f1.dev AND f2.ino=f1.ino AND f2.pathid<f1.pathid"
+				+ " AND l1.pathid=f2.pathid AND l1.type=1 AND l1.size=f2.size AND l1.datelastmodified=f2.datelastmodified"
+				+ " AND l1.size=" + d + ".size AND l1.csum=" + d + ".csum"
+				+ " AND EXISTS (SELECT * FROM directory AS l2 WHERE l2.pathid=l1.parentid))";
+	}
+
+	private String getChunkedFilesUnderSubSQL() {
+		return "SELECT c.pathid FROM chunkedfile AS c, directory AS d, upperlower AS u"
+				+ " WHERE u.upper=? AND u.lower=d.pathid AND c.pathid=d.pathid AND c.size=d.size AND c.csum=d.csum"
+				+ (isFileInodeAvailable() ? " AND NOT " + getHardLinkSubSQL("d") : "");
+	}
+
+	/**
+	 * Bytes a block-level deduplication would save inside the folder: every chunk occurrence after
+	 * the first of the same chunk hash, in the files under pathid that have up-to-date chunk rows.
+	 * Compare to getChunkIndexedSize() for the coverage of the chunk index. Hard links are counted once.
+	 */
+	public long getBlockDedupableSize(long pathid) throws SQLException, InterruptedException {
+		if (!isChunkIndexAvailable()) {
+			return 0;
+		}
+		PreparedStatement ps = prepareStatement("SELECT SUM((n-1)*chunksize) FROM"
+				+ " (SELECT chunkhash, COUNT(*) AS n, MAX(chunksize) AS chunksize FROM chunk"
+				+ "  WHERE pathid IN (" + getChunkedFilesUnderSubSQL() + ") GROUP BY chunkhash) AS t");
+		try {
+			ps.setLong(1, pathid);
+			ResultSet rs = ps.executeQuery();
+			try {
+				return rs.next() ? rs.getLong(1) : 0;
+			} finally {
+				rs.close();
+			}
+		} finally {
+			ps.close();
+		}
+	}
+
+	/**
+	 * Total size of the files under pathid that have up-to-date chunk rows.
+	 */
+	public long getChunkIndexedSize(long pathid) throws SQLException, InterruptedException {
+		if (!isChunkIndexAvailable()) {
+			return 0;
+		}
+		PreparedStatement ps = prepareStatement("SELECT SUM(size) FROM chunkedfile"
+				+ " WHERE pathid IN (" + getChunkedFilesUnderSubSQL() + ")");
+		try {
+			ps.setLong(1, pathid);
+			ResultSet rs = ps.executeQuery();
+			try {
+				return rs.next() ? rs.getLong(1) : 0;
+			} finally {
+				rs.close();
+			}
+		} finally {
+			ps.close();
+		}
+	}
+
 	public int refreshDuplicateFields() throws InterruptedException, SQLException {
 		return refreshDuplicateFields(null);
 	}
@@ -674,13 +1123,15 @@ public class Updater implements IDirTreeDB {
 	public int refreshDuplicateFields(IsEol isEol)
 			throws InterruptedException, SQLException {
 
+		// hard links of the same file are duplicates, but not dedupable
+		String links = isFileInodeAvailable() ? "-SUM(CASE WHEN " + getHardLinkSubSQL("d4") + " THEN 1 ELSE 0 END)" : "";
 		Statement stmt1 = createStatement();
 		int count = 0;
 		try {
 			ResultSet rs = stmt1.executeQuery("SELECT pathid, newduplicate, newdedupablesize FROM"
 					+ " (SELECT * FROM directory AS d1 WHERE (type=1 OR type=3) AND csum IS NOT NULL"
 					+ "  AND EXISTS (SELECT * FROM directory AS d2 WHERE d1.parentid=d2.pathid)) AS d3,"
-					+ " (SELECT size, csum, count(size)-1 AS newduplicate, (count(size)-1)*size AS newdedupablesize"
+					+ " (SELECT size, csum, count(size)-1 AS newduplicate, (count(size)-1" + links + ")*size AS newdedupablesize"
 					+ "  FROM directory AS d4 WHERE (type=1 OR type=3) AND csum IS NOT NULL"
 					+ "  AND EXISTS (SELECT * FROM directory AS d5 WHERE d4.parentid=d5.pathid)"
 					+ "  GROUP BY size, csum) AS d6"
@@ -771,7 +1222,7 @@ public class Updater implements IDirTreeDB {
 				}
 			} else { // isFile
 				if (entry.getSize() < 0) { // size is sometimes <0; JavaVM bug?
-					entry.setCsumAndClose(entry.getInputStream());
+					entry.setCsumFromContents();
 				}
 				if (PathEntry.dscMatch(entry, result)) {
 					if (!entry.isCsumNull()) {
@@ -791,6 +1242,52 @@ public class Updater implements IDirTreeDB {
 		return new Dispatcher();
 	}
 
+	/*
+	 * A listing copied from listingcache takes the entries of the archives nested in the copy too,
+	 * up to this many in all; the rest are listed on their own.
+	 */
+	private static final int MAX_COPIED_NESTED_ENTRIES = 10000;
+
+	/*
+	 * New entries of an archive being listed are inserted this many at a time, and a listingcheckpoint
+	 * taken after each lot, so that a listing interrupted is resumed from there.
+	 */
+	private static final int CHECKPOINT_ENTRIES = 1000;
+
+	private static final AtomicLong listingCacheLookups = new AtomicLong();
+	private static final AtomicLong listingCacheHits = new AtomicLong();
+	private static final AtomicLong listingCacheBytesSaved = new AtomicLong();
+
+	/**
+	 * Archives looked up in listingcache by digest, since startup.
+	 */
+	public static long getListingCacheLookups() {
+		return listingCacheLookups.get();
+	}
+
+	/**
+	 * Archives listed from a copy in listingcache, since startup.
+	 */
+	public static long getListingCacheHits() {
+		return listingCacheHits.get();
+	}
+
+	/**
+	 * The total size of the entries listed from copies in listingcache, not decompressed, since startup.
+	 */
+	public static long getListingCacheBytesSaved() {
+		return listingCacheBytesSaved.get();
+	}
+
+	private static String toHexString(byte[] digest) {
+		StringBuilder result = new StringBuilder();
+		for (byte b: digest) {
+			result.append(Character.forDigit((b >> 4) & 0xF, 16));
+			result.append(Character.forDigit(b & 0xF, 16));
+		}
+		return result.toString();
+	}
+
 	public class Dispatcher {
 		public static final int NONE = 0;
 
@@ -892,6 +1389,9 @@ public class Updater implements IDirTreeDB {
 			newentry.setCompressedSize(entry.getCompressedSize());
 
 			if (entry.isClean() && PathEntry.dMatch(entry, newentry)) {
+				if (!isList()) {
+					updateFolderStats(entry.getPathId(), false);
+				}
 				return newentry; // no change
 			}
 
@@ -915,6 +1415,7 @@ public class Updater implements IDirTreeDB {
 				if (!isList()) {
 					if (!entry.isDirty() && !PathEntry.dMatch(entry, newentry)) {
 						updateStatus(entry, PathEntry.DIRTY);
+						updateFolderStats(entry.getPathId(), true);
 					}
 				} else if (isList() && newfolderIter != null && oldfolder != null) {
 					dispatchFolderListCore(entry, fileobj, oldfolder, newentry, newfolderIter);
@@ -963,19 +1464,25 @@ public class Updater implements IDirTreeDB {
 					oldfolder = childrenList(entry);
 				}
 
+				boolean hashed = false;
 				if (oldfolder == null) { // not isList()
 					if (!entry.isDirty() && !PathEntry.dscMatch(entry, newentry)) {
 						newentry.setStatus(PathEntry.DIRTY);
+						updateFolderStats(entry.getParentId(), true);
 					}
 				} else {
 					assert(newfolderIter != null);
-					dispatchFileListCore(entry, oldfolder, newentry, newfolderIter);
+					hashed = dispatchFileListCore(entry, oldfolder, newentry, newfolderIter,
+							isCsumForce() || (isCsum() && (entry.isCsumNull() || !PathEntry.dscMatch(entry, newentry))));
 				}
-				if (isCsumForce() || (isCsum() && (entry.isCsumNull() || !PathEntry.dscMatch(entry, newentry)))) {
-					newentry.setCsumAndClose(newentry.getInputStream());
+				if (hashed || isCsumForce() || (isCsum() && (entry.isCsumNull() || !PathEntry.dscMatch(entry, newentry)))) {
+					if (!hashed && (!entry.isCsumNull() || !setCsumFromInodeCache(newentry))) {
+						newentry.setCsumFromContents();
+					}
 					if (newentry.isNoAccess()) {
 						newentry.setStatus(PathEntry.DIRTY);
 					}
+					recordFileInode(entry.getPathId(), newentry);
 				}
 				update(entry, newentry);
 			} catch (IOException e) {
@@ -990,33 +1497,23 @@ public class Updater implements IDirTreeDB {
 			final List<DBPathEntry> stack = getCompressionStack(entry);
 			if (stack == null) { return newentry; } // orphan
 			try {
-				if (isList()) {
-					final PathEntryLister newfolderIter;
-					if (!entry.isClean()) {
-						newfolderIter = PathEntryListerFactory.getInstance(entry, getInputStream(stack));
-						newfolderIter.setCsumRequested(PathEntryListerFactory.isCsumRecommended(entry));
-					} else {
-						newfolderIter = null;
-					}
-
+				boolean hashed = false;
+				if (isList() && !entry.isClean()) {
 					final Map<String, DBPathEntry> oldfolder;
-					if (newfolderIter == null) {
-						oldfolder = null;
-					} else if (isNoChildInDB()) {
+					if (isNoChildInDB()) {
 						oldfolder = new HashMap<String, DBPathEntry>();
 					} else {
 						oldfolder = childrenList(entry);
 					}
-
-					if (oldfolder != null) { // isList()
-						assert(newfolderIter != null);
-						dispatchFileListCore(entry, oldfolder, newentry, newfolderIter);
-					}
+					hashed = dispatchCompressedFileListCore(entry, stack, oldfolder, newentry,
+							isCsumForce() || (isCsum() && entry.isCsumNull()));
 				}
 
-				if (isCsumForce() || (isCsum() && (entry.isCsumNull() || !PathEntry.dscMatch(entry, newentry)))) {
+				if (hashed || isCsumForce() || (isCsum() && (entry.isCsumNull() || !PathEntry.dscMatch(entry, newentry)))) {
 					assert(stack != null);
-					newentry.setCsumAndClose(getInputStream(stack));
+					if (!hashed) {
+						newentry.setCsumAndClose(getInputStream(stack));
+					}
 					if (newentry.isNoAccess()) {
 						newentry.setStatus(PathEntry.DIRTY);
 					}
@@ -1039,6 +1536,7 @@ public class Updater implements IDirTreeDB {
 			long new_compressedsize = 0;
 
 			final List<DBPathEntry> updatedfolders = new ArrayList<DBPathEntry>();
+			final List<PathEntry> newchildren = new ArrayList<PathEntry>();
 			long t0 = new Date().getTime();
 			long count=0;
 			while (newfolderIter.hasNext()) {
@@ -1073,7 +1571,7 @@ public class Updater implements IDirTreeDB {
 						assert(newchild.isFile());
 						if (isListCsumForce() || (isListCsum() && (oldchild.isCsumNull() || !PathEntry.dscMatch(oldchild, newchild)))) {
 							try {
-								newchild.setCsumAndClose(newchild.getInputStream());
+								newchild.setCsumFromContents();
 							} catch (IOException e) {
 								newchild.setStatus(PathEntry.NOACCESS);
 							}
@@ -1089,10 +1587,24 @@ public class Updater implements IDirTreeDB {
 						}
 					}
 					oldfolder.remove(newchild.getPath());
-				} else { // not in oldfolder - insert
-					if (isListCsum() && newchild.isFile()) {
+				} else { // not in oldfolder - after the others, as it may be one of them moved or renamed
+					newchildren.add(newchild);
+				}
+			}
+
+			for (PathEntry newchild: newchildren) {
+				DBPathEntry oldchild = findMovedEntry(newchild, oldfolder.values());
+				if (oldchild != null && moveSubtree(oldchild, entry, newchild.getPath()) > 0) { // moved or renamed here - relinked
+					Debug.writelog("moved: " + oldchild.getPath() + " -> " + newchild.getPath());
+					oldfolder.remove(oldchild.getPath());
+					if (oldchild.getSize() >= 0) {
+						new_size += oldchild.getSize();
+						new_compressedsize += oldchild.getCompressedSize();
+					}
+				} else { // insert
+					if (isListCsum() && newchild.isFile() && newchild.isCsumNull()) { // not hashed by findMovedEntry()
 						try {
-							newchild.setCsumAndClose(newchild.getInputStream());
+							newchild.setCsumFromContents();
 						} catch (IOException e) {
 							newchild.setStatus(PathEntry.NOACCESS);
 						}
@@ -1121,6 +1633,371 @@ public class Updater implements IDirTreeDB {
 			update(entry, newentry);
 		}
 
+		/**
+		 * Looks for the row that newchild had before it was moved or renamed: a row whose file or folder
+		 * is gone, of the same size and date last modified (for a folder, the same date last modified and
+		 * child names). Those in gone, the rows of the folder being listed that were not listed again, are
+		 * looked at first; the whole DB only while orphansPending, as a row moved from another folder is
+		 * orphanized when that folder is listed. A file row whose fileinode has another device and inode
+		 * is not taken; among several, those of the same device and inode, then of the same name, then of
+		 * the same csum are. A file row not vouched for by its inode is taken only if its csum, if any,
+		 * matches that of newchild, hashed for this if need be. Returns null unless exactly one row matches.
+		 */
+		protected DBPathEntry findMovedEntry(PathEntry newchild, Collection<DBPathEntry> gone)
+				throws SQLException, InterruptedException {
+			List<DBPathEntry> candidates = new ArrayList<DBPathEntry>();
+			Set<Long> goneIds = new HashSet<Long>();
+			for (DBPathEntry c: gone) {
+				goneIds.add(c.getPathId());
+				if (c.getType() == newchild.getType() && c.getDateLastModified() == newchild.getDateLastModified()
+						&& (newchild.isFolder() || c.getSize() == newchild.getSize())) {
+					candidates.add(c);
+				}
+			}
+			if (orphansPending) {
+				String sql = newchild.isFile() ? "SELECT * FROM directory WHERE type=1 AND size=? AND datelastmodified=?"
+						: "SELECT * FROM directory WHERE type=0 AND datelastmodified=?";
+				for (DBPathEntry c: getGoneEntries(sql, newchild)) {
+					if (!goneIds.contains(c.getPathId())) {
+						candidates.add(c);
+					}
+				}
+			}
+			if (candidates.size() == 0) {
+				return null;
+			}
+			if (newchild.isFile()) {
+				Map<Long, Boolean> inodeMatches = getInodeMatches(candidates, newchild);
+				List<DBPathEntry> sameInode = new ArrayList<DBPathEntry>();
+				List<DBPathEntry> notOther = new ArrayList<DBPathEntry>();
+				for (DBPathEntry c: candidates) {
+					Boolean matches = inodeMatches.get(c.getPathId());
+					if (matches == null || matches) {
+						notOther.add(c);
+					}
+					if (matches != null && matches) {
+						sameInode.add(c);
+					}
+				}
+				candidates = sameInode.size() > 0 ? sameInode : notOther;
+				if (candidates.size() > 1) {
+					candidates = filterByName(candidates, newchild);
+				}
+				boolean vouched = candidates.size() == 1 && sameInode.contains(candidates.get(0));
+				if (!vouched && candidates.size() > 0 && newchild.isCsumNull()) {
+					try {
+						newchild.setCsumFromContents();
+					} catch (IOException e) {
+						return null;
+					}
+				}
+				if (!vouched && candidates.size() > 0) {
+					List<DBPathEntry> sameCsum = new ArrayList<DBPathEntry>();
+					for (DBPathEntry c: candidates) {
+						if (!c.isCsumNull() && c.getCsum() == newchild.getCsum()) {
+							sameCsum.add(c);
+						}
+					}
+					if (candidates.size() > 1 || !candidates.get(0).isCsumNull()) {
+						candidates = sameCsum;
+					}
+				}
+			} else {
+				String[] names = new File(newchild.getPath()).list();
+				if (names == null || names.length == 0) {
+					return null;
+				}
+				Set<String> newNames = new HashSet<String>(Arrays.asList(names));
+				List<DBPathEntry> sameNames = new ArrayList<DBPathEntry>();
+				for (DBPathEntry c: candidates) {
+					Set<String> oldNames = new HashSet<String>();
+					for (String path: childrenList(c).keySet()) {
+						oldNames.add(getName(path));
+					}
+					if (oldNames.equals(newNames)) {
+						sameNames.add(c);
+					}
+				}
+				candidates = sameNames;
+				if (candidates.size() > 1) {
+					candidates = filterByName(candidates, newchild);
+				}
+			}
+			if (candidates.size() != 1) {
+				return null;
+			}
+			return candidates.get(0);
+		}
+
+		/*
+		 * sql takes (size, datelastmodified) for a file, or datelastmodified alone for a folder.
+		 */
+		private List<DBPathEntry> getGoneEntries(String sql, PathEntry newchild)
+				throws SQLException, InterruptedException {
+			List<DBPathEntry> result = new ArrayList<DBPathEntry>();
+			PreparedStatement ps = prepareStatement(sql);
+			try {
+				int i = 1;
+				if (newchild.isFile()) {
+					ps.setLong(i++, newchild.getSize());
+				}
+				setDateLastModified(ps, i++, newchild.getDateLastModified());
+				ResultSet rs = ps.executeQuery();
+				try {
+					while (rs.next()) {
+						DBPathEntry c = rsToPathEntry(rs);
+						if (isGone(c)) {
+							result.add(c);
+						}
+					}
+				} finally {
+					rs.close();
+				}
+			} finally {
+				ps.close();
+			}
+			return result;
+		}
+
+		private boolean isGone(DBPathEntry entry) {
+			if (entry.getParentId() == 0 || !isReachableRoot(entry.getRootId())) {
+				return false;
+			}
+			String root = getReachableRootPath(entry.getRootId());
+			if (root == null || !new File(root).exists()) {
+				return false; // cannot tell a moved file from an unmounted one
+			}
+			return getFileIfExists(entry) == null;
+		}
+
+		/*
+		 * pathids of the candidates with a fileinode row of the size and date last modified of newchild,
+		 * to true if it has the device and inode of newchild too, or to false if not.
+		 */
+		private Map<Long, Boolean> getInodeMatches(List<DBPathEntry> candidates, PathEntry newchild)
+				throws SQLException, InterruptedException {
+			Map<Long, Boolean> result = new HashMap<Long, Boolean>();
+			FileIdentity id = isFileInodeAvailable() ? FileIdentity.get(newchild.getPath()) : null;
+			if (id == null || !id.matches(newchild)) {
+				return result;
+			}
+			PreparedStatement ps = prepareStatement("SELECT dev, ino FROM fileinode WHERE pathid=?"
+					+ " AND size=? AND datelastmodified=?");
+			try {
+				for (DBPathEntry c: candidates) {
+					ps.setLong(1, c.getPathId());
+					ps.setLong(2, id.getSize());
+					ps.setTimestamp(3, new Timestamp(id.getDateLastModified()));
+					ResultSet rs = ps.executeQuery();
+					try {
+						if (rs.next()) {
+							result.put(c.getPathId(), rs.getLong("dev") == id.getDevice() && rs.getLong("ino") == id.getInode());
+						}
+					} finally {
+						rs.close();
+					}
+				}
+			} finally {
+				ps.close();
+			}
+			return result;
+		}
+
+		private List<DBPathEntry> filterByName(List<DBPathEntry> candidates, PathEntry newchild) {
+			List<DBPathEntry> result = new ArrayList<DBPathEntry>();
+			for (DBPathEntry c: candidates) {
+				if (getName(c.getPath()).equals(getName(newchild.getPath()))) {
+					result.add(c);
+				}
+			}
+			return result;
+		}
+
+		private String getName(String path) {
+			if (path.endsWith("\\")) {
+				path = path.substring(0, path.length()-1);
+			}
+			return new File(path).getName();
+		}
+
+		/**
+		 * Lists the archive entry by dispatchFileListCore(), or from a copy of it in listingcache if an archive
+		 * of its size is there, which needs it hashed first. If csumNow, or with listingcache, its csum is set
+		 * from the same decompressed stream as it is listed; true is returned if its csum has been set.
+		 */
+		protected boolean dispatchCompressedFileListCore(
+				DBPathEntry entry,
+				List<DBPathEntry> stack,
+				Map<String, DBPathEntry> oldfolder,
+				PathEntry newentry,
+				boolean csumNow
+				) throws InterruptedException, SQLException, IOException {
+			String digest = null;
+			if (hasListingCacheSize(newentry.getSize())) {
+				digest = digestArchive(newentry, stack);
+				if (digest != null && dispatchListingCopy(entry, oldfolder, newentry, digest)) {
+					return true;
+				}
+			}
+			InputStream inf = getInputStream(stack);
+			HashingInputStream tee = null;
+			if (digest == null && (csumNow || isListingCacheAvailable())) {
+				try {
+					tee = new HashingInputStream(inf, true);
+					inf = new BufferedInputStream(tee.getUnclosableStream());
+				} catch (NoSuchAlgorithmException e) {
+					tee = null;
+				}
+			}
+			try {
+				PathEntryLister newfolderIter = PathEntryListerFactory.getInstance(entry, inf);
+				newfolderIter.setCsumRequested(PathEntryListerFactory.isCsumRecommended(entry));
+				dispatchFileListCore(entry, oldfolder, newentry, newfolderIter);
+				if (tee != null) {
+					PipelinedHasher.Result result = tee.finish();
+					newentry.setCsum(result);
+					digest = toHexString(result.getDigest());
+				}
+			} finally {
+				if (tee != null) {
+					tee.close();
+				}
+			}
+			if (digest == null) {
+				return false;
+			}
+			updateListingCache(entry.getPathId(), newentry.getSize(), newentry.getDateLastModified(), digest);
+			return true;
+		}
+
+		/**
+		 * Same as dispatchFileListCore() for entry, a FILE, but from a copy of it in listingcache if any.
+		 * The file is hashed first, for that and for listingcache, if csumNow or an archive of its size is there;
+		 * true is returned if the csum of newentry has been set then.
+		 */
+		protected boolean dispatchFileListCore(
+				DBPathEntry entry,
+				Map<String, DBPathEntry> oldfolder,
+				PathEntry newentry,
+				PathEntryLister newfolderIter,
+				boolean csumNow
+				) throws InterruptedException, SQLException, IOException {
+			String digest = null;
+			if (isListingCacheAvailable() && (csumNow || hasListingCacheSize(newentry.getSize()))) {
+				digest = digestArchive(newentry, null);
+			}
+			if (digest != null && dispatchListingCopy(entry, oldfolder, newentry, digest)) {
+				newfolderIter.close();
+				return true;
+			}
+			dispatchFileListCore(entry, oldfolder, newentry, newfolderIter);
+			if (digest == null) {
+				return false;
+			}
+			updateListingCache(entry.getPathId(), newentry.getSize(), newentry.getDateLastModified(), digest);
+			return true;
+		}
+
+		/**
+		 * Sets the csum of newentry, an archive, and returns its MD5 digest in hex; stack is not used for a FILE.
+		 */
+		private String digestArchive(PathEntry newentry, List<DBPathEntry> stack)
+				throws InterruptedException, SQLException, IOException {
+			PipelinedHasher.Result result;
+			try {
+				if (newentry.isFile()) {
+					result = PipelinedHasher.digest("MD5", new File(newentry.getPath()), BandwidthLimiter.getCsumLimiter());
+				} else {
+					InputStream inf = getInputStream(stack);
+					try {
+						result = PipelinedHasher.digest("MD5", inf, BandwidthLimiter.getCsumLimiter());
+					} finally {
+						inf.close();
+					}
+				}
+			} catch (NoSuchAlgorithmException e) {
+				return null;
+			}
+			newentry.setCsum(result);
+			return toHexString(result.getDigest());
+		}
+
+		/**
+		 * Lists entry by dispatchFileListCore() from the listing of a CLEAN copy of it found in listingcache
+		 * by size and digest: its entries, and those of the CLEAN archives nested in it, are read from the DB
+		 * and rebased, checksums and all, so nothing is decompressed. Returns false if there is no such copy
+		 * listed alike; a copy of another name whose entry is named after it (gz, for one) is not.
+		 */
+		protected boolean dispatchListingCopy(
+				DBPathEntry entry,
+				Map<String, DBPathEntry> oldfolder,
+				PathEntry newentry,
+				String digest
+				) throws InterruptedException, SQLException, IOException {
+			listingCacheLookups.incrementAndGet();
+			for (DBPathEntry source: getListingCacheSources(newentry.getSize(), digest)) {
+				if (source.getPathId() == entry.getPathId() || !PathEntryListerFactory.isListedAlike(source, entry)) {
+					continue;
+				}
+				Map<String, List<PathEntry>> listings = new HashMap<String, List<PathEntry>>();
+				collectListing(source, listings, new int[] {0});
+				String sourcename = AbstractCompressorLister.getBasename(source);
+				if (!sourcename.equals(AbstractCompressorLister.getBasename(entry))
+						&& childrenContain(listings.get(source.getPath()), source.getPath() + "/" + sourcename)) {
+					continue;
+				}
+				long saved = 0;
+				for (List<PathEntry> l: listings.values()) {
+					for (PathEntry p: l) {
+						if (p.isCompressedFile()) {
+							saved += p.getSize();
+						}
+					}
+				}
+				Debug.writelog("listing copied: " + source.getPath() + " -> " + entry.getPath());
+				dispatchFileListCore(entry, oldfolder, newentry,
+						new ListingCopyLister(entry, source.getPath(), listings));
+				updateListingCache(entry.getPathId(), newentry.getSize(), newentry.getDateLastModified(), digest);
+				listingCacheHits.incrementAndGet();
+				listingCacheBytesSaved.addAndGet(saved);
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Puts the children of archive, and of the CLEAN archives in it, into listings by the path of the archive;
+		 * count[0] is the number of entries put so far.
+		 */
+		private void collectListing(DBPathEntry archive, Map<String, List<PathEntry>> listings, int[] count)
+				throws SQLException, InterruptedException {
+			List<PathEntry> children = new ArrayList<PathEntry>(childrenList(archive).values());
+			listings.put(archive.getPath(), children);
+			count[0] += children.size();
+			for (PathEntry child: children) {
+				if (count[0] <= MAX_COPIED_NESTED_ENTRIES && child.isCompressedFile() && child.isClean()
+						&& PathEntryListerFactory.isArchivable(child)) {
+					collectListing((DBPathEntry)child, listings, count);
+				}
+			}
+		}
+
+		private void flushPending(DBPathEntry entry, List<PathEntry> pending) throws SQLException, InterruptedException {
+			if (pending.size() > 0) {
+				insertBatch(entry, pending);
+				pending.clear();
+			}
+		}
+
+		private boolean childrenContain(List<PathEntry> children, String path) {
+			for (PathEntry child: children) {
+				if (child.getPath().equals(path)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
 		protected void dispatchFileListCore(
 				DBPathEntry entry,
 				Map<String, DBPathEntry> oldfolder,
@@ -1129,6 +2006,19 @@ public class Updater implements IDirTreeDB {
 				) throws InterruptedException, SQLException, IOException {
 			long t0 = new Date().getTime();
 			long count=0;
+			newfolderIter.setNestedListingRequested(true);
+			newfolderIter.setNativeCrcPreferred(isNativeCrcAvailable());
+			ListingCheckpoint checkpoint = getListingCheckpoint(entry.getPathId(),
+					newentry.getSize(), newentry.getDateLastModified());
+			boolean checkpointed = checkpoint != null;
+			if (checkpoint != null) {
+				Debug.writelog("resuming listing: " + entry.getPath() + ", after " + checkpoint.getEntryCount() + " entries");
+				if (oldfolder.size() == 0) {
+					oldfolder.putAll(childrenList(entry));
+				}
+				newfolderIter.setResumePoint(checkpoint.getEntryCount(), checkpoint.getDataOffset());
+			}
+			List<PathEntry> pending = new ArrayList<PathEntry>();
 			while (newfolderIter.hasNext()) {
 				PathEntry newchild = newfolderIter.next();
 				Assertion.assertNullPointerException(newchild != null, "newchild is null, entry=" + entry.getPath());
@@ -1148,19 +2038,48 @@ public class Updater implements IDirTreeDB {
 				if (oldchild != null) {
 					if (!PathEntry.dscMatch(oldchild, newchild)) {
 						update(oldchild, newchild);
+					} else if (isNativeCrcAvailable() && !PathEntry.nativeCrcMatch(oldchild, newchild)) {
+						if (newchild.isCsumNull() && !oldchild.isCsumNull()
+								&& (oldchild.isNativeCrcNull() || newchild.isNativeCrcNull())) { // no sign of change
+							newchild.setCsum(oldchild.getCsum());
+						}
+						update(oldchild, newchild);
 					} else if (oldchild.isNoAccess() != newchild.isNoAccess()) {
 						updateStatus(oldchild, newchild.getStatus());
 					}
 					oldfolder.remove(newchild.getPath());
 				} else {
-					insert(entry, newchild);
+					Map<String, List<PathEntry>> listings = newfolderIter.takeNestedListings(newchild.getPath());
+					if (listings != null) {
+						insertListed(entry, newchild, listings);
+					} else {
+						pending.add(newchild);
+					}
+				}
+				if (count % CHECKPOINT_ENTRIES == 0) {
+					flushPending(entry, pending);
+					if (isListingCheckpointAvailable() && (checkpoint == null || count > checkpoint.getEntryCount())) {
+						updateListingCheckpoint(entry.getPathId(), newentry.getSize(), newentry.getDateLastModified(),
+								new ListingCheckpoint(count, newfolderIter.getUncompressedOffset()));
+						checkpointed = true;
+					}
 				}
 			}
+			flushPending(entry, pending);
 			newfolderIter.close();
+			if (checkpointed) {
+				deleteListingCheckpoint(entry.getPathId());
+			}
 			for (DBPathEntry p: oldfolder.values()) {
 				Assertion.assertAssertionError(p.getParentId()!=0);
 				orphanize(p);
 			}
+			if (entry.isFile() && newfolderIter instanceof IMemberIndexedLister) {
+				Map<String, Long> dataoffsets = ((IMemberIndexedLister)newfolderIter).getMemberOffsets();
+				if (dataoffsets.size() > 0) {
+					updateMemberIndex(entry.getPathId(), newentry.getSize(), newentry.getDateLastModified(), dataoffsets);
+				}
+			}
 			newentry.setStatus(PathEntry.CLEAN);
 			update(entry, newentry);
 		}
@@ -1210,37 +2129,56 @@ public class Updater implements IDirTreeDB {
 				long count=0L;
 				boolean isEqual = true;
 
-				MessageDigest md1 = MessageDigest.getInstance("MD5");
-				MessageDigest md2 = MessageDigest.getInstance("MD5");
+				PipelinedHasher.Session hasher1 = PipelinedHasher.newSession("MD5");
+				PipelinedHasher.Session hasher2 = PipelinedHasher.newSession("MD5");
+				byte[] digest1, digest2;
 
 				re = entry1;
-				InputStream stream1 = getInputStream(stack1);
+				InputStream stream1 = BandwidthLimiter.getEqualityLimiter().wrap(getInputStream(stack1));
 				re = entry2;
-				InputStream stream2 = getInputStream(stack2);
+				InputStream stream2 = BandwidthLimiter.getEqualityLimiter().wrap(getInputStream(stack2));
 				re = null;
 
 				try {
 					for (;;) {
+						byte[] buff1 = hasher1.takeBuffer();
+						byte[] buff2 = hasher2.takeBuffer();
 						re = entry1;
-						int s1 = stream1.read();
+						int n1 = PipelinedHasher.readBlock(stream1, buff1);
 						re = entry2;
-						int s2 = stream2.read();
+						int n2 = PipelinedHasher.readBlock(stream2, buff2);
 						re = null;
-						if (s1 != s2) {
+						boolean isBlockEqual = n1 == n2
+								&& ByteBuffer.wrap(buff1, 0, n1).equals(ByteBuffer.wrap(buff2, 0, n2));
+						// buffers belong to the hashers after submit()
+						hasher1.submit(buff1, n1);
+						hasher2.submit(buff2, n2);
+						if (!isBlockEqual) {
 							isEqual = false;
+							break;
 						}
-						if (s1 == -1 && s2 == -1) {
+						if (n1 == 0) {
 							break;
 						}
-						if (s1 != -1) {
-							md1.update((byte) s1);
+						count += n1;
+					}
+					if (!isEqual) {
+						// stop comparing at the first difference, but a NULL csum is still filled in
+						if (entry1.isCsumNull()) {
+							re = entry1;
+							hasher1.submitAll(stream1, null);
 						}
-						if (s2 != -1) {
-							md2.update((byte) s2);
+						if (entry2.isCsumNull()) {
+							re = entry2;
+							hasher2.submitAll(stream2, null);
 						}
-						count++;
+						re = null;
 					}
+					digest1 = hasher1.digest();
+					digest2 = hasher2.digest();
 				} finally {
+					hasher1.close();
+					hasher2.close();
 					re = entry1;
 					stream1.close();
 					re = entry2;
@@ -1248,13 +2186,13 @@ public class Updater implements IDirTreeDB {
 					re = null;
 				}
 
-				int csum1 = ByteBuffer.wrap(md1.digest()).getInt();
+				int csum1 = ByteBuffer.wrap(digest1).getInt();
 				if (entry1.isCsumNull()) {
 					PathEntry newentry = new PathEntry(entry1);
 					newentry.setCsum(csum1);
 					update(entry1, newentry);
 				}
-				int csum2 = ByteBuffer.wrap(md2.digest()).getInt();
+				int csum2 = ByteBuffer.wrap(digest2).getInt();
 				if (entry2.isCsumNull()) {
 					PathEntry newentry = new PathEntry(entry2);
 					newentry.setCsum(csum2);
@@ -1323,5 +2261,201 @@ public class Updater implements IDirTreeDB {
 				return false; // this does not happen
 			}
 		}
+
+		public static final int CHECKEQUALITYGROUP_MAX_STREAMS = 32;
+
+		/**
+		 * Verifies all files of one size and csum at once, reading each of them once, and replaces
+		 * the equalitygroup rows of that size and csum with the classes found; a file that matched
+		 * no other is recorded as a group of its own, so it is not picked up as new again.
+		 * Groups larger than CHECKEQUALITYGROUP_MAX_STREAMS are verified in chunks that share the first file.
+		 */
+		public List<List<DBPathEntry>> checkEqualityGroup(List<List<DBPathEntry>> stacks)
+				throws SQLException, InterruptedException {
+			return checkEqualityGroup(stacks, null);
+		}
+
+		/**
+		 * Given recordedGroups (pathid to groupid of the current rows), tries EqualitySamplingPolicy first
+		 * and returns null if the sample found every group unchanged.
+		 */
+		public List<List<DBPathEntry>> checkEqualityGroup(List<List<DBPathEntry>> stacks, Map<Long, Long> recordedGroups)
+				throws SQLException, InterruptedException {
+			Assertion.assertAssertionError(stacks.size() > 0);
+			final DBPathEntry anchor = stacks.get(0).get(0);
+			final long size = anchor.getSize();
+			final int csum = anchor.getCsum();
+
+			if (recordedGroups != null) {
+				int samplecount = checkEqualityGroupSampled(stacks, recordedGroups);
+				if (samplecount >= 0) {
+					updateEqualityGroupsSampled(size, csum, samplecount, EqualitySamplingPolicy.SAMPLE_BLOCK_SIZE);
+					return null;
+				}
+			}
+
+			List<List<DBPathEntry>> result = new ArrayList<List<DBPathEntry>>();
+			List<DBPathEntry> anchorGroup = null;
+			int from = 1;
+			do {
+				int to = Math.min(from + CHECKEQUALITYGROUP_MAX_STREAMS - 1, stacks.size());
+				List<List<DBPathEntry>> chunk = new ArrayList<List<DBPathEntry>>();
+				chunk.add(stacks.get(0));
+				chunk.addAll(stacks.subList(from, to));
+				for (List<DBPathEntry> group: checkEqualityGroupChunk(chunk, size, csum)) {
+					if (group.get(0) != anchor) {
+						result.add(group);
+					} else if (anchorGroup == null) {
+						anchorGroup = group;
+					} else if (group.size() > 1) {
+						anchorGroup.addAll(group.subList(1, group.size()));
+					}
+				}
+				from = to;
+			} while (from < stacks.size());
+			if (anchorGroup != null) {
+				result.add(anchorGroup);
+			}
+
+			List<List<Long>> groupIds = new ArrayList<List<Long>>();
+			for (List<DBPathEntry> group: result) {
+				List<Long> ids = new ArrayList<Long>();
+				for (DBPathEntry entry: group) {
+					ids.add(entry.getPathId());
+				}
+				groupIds.add(ids);
+			}
+			replaceEqualityGroups(size, csum, groupIds);
+			return result;
+		}
+
+		/**
+		 * Returns the number of blocks read from each file, or -1 if a full verification is needed.
+		 */
+		private int checkEqualityGroupSampled(List<List<DBPathEntry>> stacks, Map<Long, Long> recordedGroups) {
+			if (stacks.size() != recordedGroups.size()) {
+				return -1;
+			}
+			long[] offsets = EqualitySamplingPolicy.chooseOffsets(stacks.get(0).get(0).getSize());
+			Map<Long, byte[]> groupDigests = new HashMap<Long, byte[]>();
+			for (List<DBPathEntry> stack: stacks) {
+				DBPathEntry entry = stack.get(0);
+				Long groupid = recordedGroups.get(entry.getPathId());
+				if (groupid == null || !entry.isFile() || !EqualitySamplingPolicy.isMetadataUnchanged(entry)) {
+					return -1;
+				}
+				byte[] digest;
+				try {
+					digest = EqualitySamplingPolicy.sampleDigest(new File(entry.getPath()), offsets);
+				} catch (IOException | NoSuchAlgorithmException e) {
+					return -1; // errors are handled by the full verification
+				}
+				byte[] groupDigest = groupDigests.get(groupid);
+				if (groupDigest == null) {
+					groupDigests.put(groupid, digest);
+				} else if (!Arrays.equals(groupDigest, digest)) {
+					return -1;
+				}
+			}
+			return offsets.length;
+		}
+
+		private List<List<DBPathEntry>> checkEqualityGroupChunk(List<List<DBPathEntry>> stacks, long size, int csum)
+				throws SQLException, InterruptedException {
+			List<List<DBPathEntry>> result = new ArrayList<List<DBPathEntry>>();
+			List<InputStream> streams = new ArrayList<InputStream>();
+			Set<Integer> failed = new HashSet<Integer>();
+			try {
+				for (List<DBPathEntry> stack: stacks) {
+					try {
+						streams.add(BandwidthLimiter.getEqualityLimiter().wrap(getInputStream(stack)));
+					} catch (IOException e) {
+						streams.add(null);
+					}
+				}
+				for (EqualityGroupVerifier.Result r: EqualityGroupVerifier.verify(streams, "MD5", failed)) {
+					List<DBPathEntry> group = new ArrayList<DBPathEntry>();
+					for (int i: r.getMembers()) {
+						group.add(stacks.get(i).get(0));
+					}
+					if (r.isDiverged()) {
+						Debug.writelog("!! WARNING NOT EQUAL");
+						Debug.writelog(group.get(0).getPath());
+						unsetClean(group.get(0).getParentId());
+					} else if (r.getLength() != size || ByteBuffer.wrap(r.getDigest()).getInt() != csum) {
+						Debug.writelog("!! EQUAL, BUT UPDATED");
+						for (DBPathEntry entry: group) {
+							Debug.writelog(entry.getPath());
+							unsetClean(entry.getParentId());
+						}
+						continue;
+					}
+					for (DBPathEntry entry: group) {
+						if (entry.isNoAccess()) {
+							updateStatus(entry, PathEntry.DIRTY);
+						}
+					}
+					result.add(group);
+				}
+			} catch (NoSuchAlgorithmException e) {
+				return result; // this does not happen
+			} finally {
+				for (InputStream stream: streams) {
+					if (stream != null) {
+						try {
+							stream.close();
+						} catch (IOException e) {}
+					}
+				}
+			}
+			for (int i: failed) {
+				checkRootAndDisable(stacks.get(i).get(0));
+			}
+			return result;
+		}
+
+		/**
+		 * Reads the file once through ContentDefinedChunker and replaces its chunk rows.
+		 * Returns null if the file could not be read or is not what the DB says any more.
+		 */
+		public List<ContentDefinedChunker.Chunk> chunkFile(DBPathEntry entry)
+				throws SQLException, InterruptedException {
+			Assertion.assertAssertionError(entry.isFile() || entry.isCompressedFile());
+			if (!isReachableRoot(entry.getRootId())) {
+				return null;
+			}
+			List<DBPathEntry> stack = getCompressionStack(entry);
+			if (stack == null) {
+				return null; // orphan
+			}
+			List<ContentDefinedChunker.Chunk> chunks;
+			PipelinedHasher.Result md5;
+			InputStream inf = null;
+			try {
+				inf = BandwidthLimiter.getCsumLimiter().wrap(getInputStream(stack));
+				HashingInputStream tee = new HashingInputStream(inf, true);
+				inf = tee;
+				chunks = ContentDefinedChunker.chunk(tee);
+				md5 = tee.finish();
+			} catch (IOException e) {
+				checkRootAndDisable(entry);
+				return null;
+			} catch (NoSuchAlgorithmException e) {
+				return null; // this does not happen
+			} finally {
+				if (inf != null) {
+					try {
+						inf.close();
+					} catch (IOException e) {}
+				}
+			}
+			if (md5.getSize() != entry.getSize() || entry.isCsumNull()
+					|| ByteBuffer.wrap(md5.getDigest()).getInt() != entry.getCsum()) {
+				unsetClean(entry.getParentId());
+				return null;
+			}
+			replaceChunks(entry.getPathId(), entry.getSize(), entry.getCsum(), chunks);
+			return chunks;
+		}
 	}
 }
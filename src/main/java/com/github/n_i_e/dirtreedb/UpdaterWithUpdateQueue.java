@@ -17,6 +17,10 @@
 package com.github.n_i_e.dirtreedb;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class UpdaterWithUpdateQueue extends Updater {
@@ -148,6 +152,37 @@ public class UpdaterWithUpdateQueue extends Updater {
 		}
 	}
 
+	@Override
+	public void insertBatch(final DBPathEntry basedir, final List<PathEntry> newentries) throws SQLException, InterruptedException {
+		Assertion.assertNullPointerException(newentries != null);
+		if (isConsumeUpdateQueueMode()) {
+			super.insertBatch(basedir, newentries);
+		} else {
+			final List<PathEntry> e = new ArrayList<PathEntry>(newentries);
+			enqueueUpdate(new RunnableWithException2<SQLException, InterruptedException> () {
+				public void run() throws SQLException, InterruptedException {
+					UpdaterWithUpdateQueue.super.insertBatch(basedir, e);
+				}
+			});
+		}
+	}
+
+	@Override
+	public void insertListed(final DBPathEntry basedir, final PathEntry newentry,
+			final Map<String, List<PathEntry>> listings) throws SQLException, InterruptedException {
+		Assertion.assertNullPointerException(newentry != null);
+		if (isConsumeUpdateQueueMode()) {
+			super.insertListed(basedir, newentry, listings);
+		} else {
+			final Map<String, List<PathEntry>> l = new HashMap<String, List<PathEntry>>(listings);
+			enqueueUpdate(new RunnableWithException2<SQLException, InterruptedException> () {
+				public void run() throws SQLException, InterruptedException {
+					UpdaterWithUpdateQueue.super.insertListed(basedir, newentry, l);
+				}
+			});
+		}
+	}
+
 	@Override
 	public void update(final DBPathEntry oldentry, final PathEntry newentry) throws SQLException, InterruptedException {
 		Assertion.assertNullPointerException(oldentry != null);
@@ -159,6 +194,7 @@ public class UpdaterWithUpdateQueue extends Updater {
 		if (! PathEntry.dscMatch(oldentry, newentry)
 				|| oldentry.isCsumNull() != newentry.isCsumNull()
 				|| (!oldentry.isCsumNull() && !newentry.isCsumNull() && oldentry.getCsum() != newentry.getCsum())
+				|| (isNativeCrcAvailable() && !PathEntry.nativeCrcMatch(oldentry, newentry))
 				|| oldentry.getStatus() != newentry.getStatus()
 				) {
 			if (isConsumeUpdateQueueMode()) {
@@ -173,6 +209,32 @@ public class UpdaterWithUpdateQueue extends Updater {
 		}
 	}
 
+	/**
+	 * Same as update() for each pair, but queued as one element.
+	 */
+	public void updateBatch(final List<DBPathEntry> oldentries, final List<PathEntry> newentries)
+			throws SQLException, InterruptedException {
+		Assertion.assertAssertionError(oldentries.size() == newentries.size());
+		if (oldentries.size() == 0) {
+			return;
+		}
+		final List<DBPathEntry> o = new ArrayList<DBPathEntry>(oldentries);
+		final List<PathEntry> n = new ArrayList<PathEntry>(newentries);
+		if (isConsumeUpdateQueueMode()) {
+			for (int i=0; i<o.size(); i++) {
+				UpdaterWithUpdateQueue.super.update(o.get(i), n.get(i));
+			}
+		} else {
+			enqueueUpdate(new RunnableWithException2<SQLException, InterruptedException> () {
+				public void run() throws SQLException, InterruptedException {
+					for (int i=0; i<o.size(); i++) {
+						UpdaterWithUpdateQueue.super.update(o.get(i), n.get(i));
+					}
+				}
+			});
+		}
+	}
+
 	@Override
 	public void updateStatus(final DBPathEntry entry, final int newstatus)
 			throws SQLException, InterruptedException {
@@ -248,6 +310,148 @@ public class UpdaterWithUpdateQueue extends Updater {
 
 	}
 
+	@Override
+	public void updateFolderStats(final long pathid, final boolean changed) throws SQLException, InterruptedException {
+		if (isConsumeUpdateQueueMode()) {
+			super.updateFolderStats(pathid, changed);
+		} else {
+			enqueueUpdate(new RunnableWithException2<SQLException, InterruptedException> () {
+				public void run() throws SQLException, InterruptedException {
+					UpdaterWithUpdateQueue.super.updateFolderStats(pathid, changed);
+				}
+			});
+		}
+	}
+
+	@Override
+	public void replaceEqualityGroups(final long size, final int csum, final List<List<Long>> groups)
+			throws SQLException, InterruptedException {
+		Assertion.assertNullPointerException(groups != null);
+		if (isConsumeUpdateQueueMode()) {
+			super.replaceEqualityGroups(size, csum, groups);
+		} else {
+			enqueueUpdate(new RunnableWithException2<SQLException, InterruptedException> () {
+				public void run() throws SQLException, InterruptedException {
+					UpdaterWithUpdateQueue.super.replaceEqualityGroups(size, csum, groups);
+				}
+			});
+		}
+	}
+
+	@Override
+	public void updateEqualityGroupsSampled(final long size, final int csum, final int samplecount,
+			final int sampleblocksize) throws SQLException, InterruptedException {
+		if (isConsumeUpdateQueueMode()) {
+			super.updateEqualityGroupsSampled(size, csum, samplecount, sampleblocksize);
+		} else {
+			enqueueUpdate(new RunnableWithException2<SQLException, InterruptedException> () {
+				public void run() throws SQLException, InterruptedException {
+					UpdaterWithUpdateQueue.super.updateEqualityGroupsSampled(size, csum, samplecount, sampleblocksize);
+				}
+			});
+		}
+	}
+
+	@Override
+	public void replaceChunks(final long pathid, final long size, final int csum,
+			final List<ContentDefinedChunker.Chunk> chunks) throws SQLException, InterruptedException {
+		Assertion.assertNullPointerException(chunks != null);
+		if (isConsumeUpdateQueueMode()) {
+			super.replaceChunks(pathid, size, csum, chunks);
+		} else {
+			enqueueUpdate(new RunnableWithException2<SQLException, InterruptedException> () {
+				public void run() throws SQLException, InterruptedException {
+					UpdaterWithUpdateQueue.super.replaceChunks(pathid, size, csum, chunks);
+				}
+			});
+		}
+	}
+
+	@Override
+	public void updateFileInode(final long pathid, final FileIdentity id, final int csum)
+			throws SQLException, InterruptedException {
+		Assertion.assertNullPointerException(id != null);
+		if (isConsumeUpdateQueueMode()) {
+			super.updateFileInode(pathid, id, csum);
+		} else {
+			enqueueUpdate(new RunnableWithException2<SQLException, InterruptedException> () {
+				public void run() throws SQLException, InterruptedException {
+					UpdaterWithUpdateQueue.super.updateFileInode(pathid, id, csum);
+				}
+			});
+		}
+	}
+
+	@Override
+	public void deleteFileInode(final long pathid) throws SQLException, InterruptedException {
+		if (isConsumeUpdateQueueMode()) {
+			super.deleteFileInode(pathid);
+		} else {
+			enqueueUpdate(new RunnableWithException2<SQLException, InterruptedException> () {
+				public void run() throws SQLException, InterruptedException {
+					UpdaterWithUpdateQueue.super.deleteFileInode(pathid);
+				}
+			});
+		}
+	}
+
+	@Override
+	public void updateListingCache(final long pathid, final long size, final long datelastmodified,
+			final String digest) throws SQLException, InterruptedException {
+		if (isConsumeUpdateQueueMode()) {
+			super.updateListingCache(pathid, size, datelastmodified, digest);
+		} else {
+			enqueueUpdate(new RunnableWithException2<SQLException, InterruptedException> () {
+				public void run() throws SQLException, InterruptedException {
+					UpdaterWithUpdateQueue.super.updateListingCache(pathid, size, datelastmodified, digest);
+				}
+			});
+		}
+	}
+
+	@Override
+	public void updateListingCheckpoint(final long pathid, final long size, final long datelastmodified,
+			final ListingCheckpoint checkpoint) throws SQLException, InterruptedException {
+		if (isConsumeUpdateQueueMode()) {
+			super.updateListingCheckpoint(pathid, size, datelastmodified, checkpoint);
+		} else {
+			enqueueUpdate(new RunnableWithException2<SQLException, InterruptedException> () {
+				public void run() throws SQLException, InterruptedException {
+					UpdaterWithUpdateQueue.super.updateListingCheckpoint(pathid, size, datelastmodified, checkpoint);
+				}
+			});
+		}
+	}
+
+	@Override
+	public void deleteListingCheckpoint(final long pathid) throws SQLException, InterruptedException {
+		if (isConsumeUpdateQueueMode()) {
+			super.deleteListingCheckpoint(pathid);
+		} else {
+			enqueueUpdate(new RunnableWithException2<SQLException, InterruptedException> () {
+				public void run() throws SQLException, InterruptedException {
+					UpdaterWithUpdateQueue.super.deleteListingCheckpoint(pathid);
+				}
+			});
+		}
+	}
+
+	@Override
+	public void updateMemberIndex(final long pathid, final long size, final long datelastmodified,
+			final Map<String, Long> dataoffsets) throws SQLException, InterruptedException {
+		Assertion.assertNullPointerException(dataoffsets != null);
+		if (isConsumeUpdateQueueMode()) {
+			super.updateMemberIndex(pathid, size, datelastmodified, dataoffsets);
+		} else {
+			final Map<String, Long> d = new HashMap<String, Long>(dataoffsets);
+			enqueueUpdate(new RunnableWithException2<SQLException, InterruptedException> () {
+				public void run() throws SQLException, InterruptedException {
+					UpdaterWithUpdateQueue.super.updateMemberIndex(pathid, size, datelastmodified, d);
+				}
+			});
+		}
+	}
+
 	@Override
 	public void disable(final DBPathEntry entry) throws SQLException, InterruptedException {
 		Assertion.assertNullPointerException(entry != null);
@@ -291,10 +495,27 @@ public class UpdaterWithUpdateQueue extends Updater {
 		}
 	}
 
+	@Override
+	public void updatePath(final DBPathEntry entry, final String newpath, final long newrootid)
+			throws SQLException, InterruptedException {
+		Assertion.assertNullPointerException(entry != null);
+		Assertion.assertNullPointerException(newpath != null);
+		if (isConsumeUpdateQueueMode()) {
+			super.updatePath(entry, newpath, newrootid);
+		} else {
+			enqueueUpdate(new RunnableWithException2<SQLException, InterruptedException> () {
+				public void run() throws SQLException, InterruptedException {
+					UpdaterWithUpdateQueue.super.updatePath(entry, newpath, newrootid);
+				}
+			});
+		}
+	}
+
 	@Override
 	public void orphanize(final DBPathEntry entry) throws SQLException, InterruptedException {
 		Assertion.assertNullPointerException(entry != null);
 		Assertion.assertAssertionError(entry.getParentId() != 0);
+		orphansPending = true;
 		if (isConsumeUpdateQueueMode()) {
 			super.orphanize(entry);
 		} else {
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.n_i_e.dirtreedb.lazy;
+
+import java.sql.SQLException;
+
+import com.github.n_i_e.dirtreedb.Assertion;
+import com.github.n_i_e.dirtreedb.BulkImporter;
+import com.github.n_i_e.dirtreedb.DBPathEntry;
+import com.github.n_i_e.dirtreedb.PathEntry;
+import com.github.n_i_e.dirtreedb.debug.Debug;
+
+/**
+ * Runs BulkImporter for a new (or partially imported) root; use with LazyUpdaterProvider.getThread(r).
+ */
+public class LazyBulkImportRunnable extends LazyRunnable {
+
+	private final String rootPath;
+	private boolean deferIndexes = false;
+
+	public LazyBulkImportRunnable(String rootPath) {
+		Assertion.assertNullPointerException(rootPath != null);
+		Assertion.assertAssertionError(rootPath.endsWith("\\"), "!! root path must end with \\: " + rootPath);
+		this.rootPath = rootPath;
+	}
+
+	public void setDeferIndexes(boolean deferIndexes) {
+		this.deferIndexes = deferIndexes;
+	}
+
+	@Override
+	public void run() throws SQLException, InterruptedException {
+		LazyUpdater db = getDB();
+		DBPathEntry root = db.getDBPathEntryByPath(rootPath);
+		if (root == null) {
+			db.insert(null, new PathEntry(rootPath, PathEntry.FOLDER));
+			db.consumeUpdateQueue();
+			root = db.getDBPathEntryByPath(rootPath);
+		}
+		Assertion.assertNullPointerException(root != null, "!! Cannot insert root: " + rootPath);
+
+		Debug.writelog("--- Bulk Import Start: " + rootPath + " ---");
+		BulkImporter importer = new BulkImporter(db) {
+			@Override protected void beacon() throws InterruptedException {
+				threadWait();
+			}
+		};
+		importer.setNumThreads(LazyUpdater.getNumCrawlingThreads());
+		importer.setDeferIndexes(deferIndexes);
+		importer.importRoot(root);
+		Debug.writelog("--- Bulk Import End: " + rootPath + " ---");
+	}
+}
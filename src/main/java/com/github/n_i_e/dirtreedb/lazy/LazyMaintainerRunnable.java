@@ -16,6 +16,7 @@
 
 package com.github.n_i_e.dirtreedb.lazy;
 
+import java.io.File;
 import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -23,6 +24,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -30,16 +32,33 @@ import java.util.Map.Entry;
 import java.util.Set;
 
 import com.github.n_i_e.dirtreedb.Assertion;
+import com.github.n_i_e.dirtreedb.AsyncHashService;
+import com.github.n_i_e.dirtreedb.BandwidthLimiter;
 import com.github.n_i_e.dirtreedb.DBPathEntry;
+import com.github.n_i_e.dirtreedb.EqualitySamplingPolicy;
+import com.github.n_i_e.dirtreedb.FileIdentity;
+import com.github.n_i_e.dirtreedb.FolderWatcher;
 import com.github.n_i_e.dirtreedb.InterSetOperation;
 import com.github.n_i_e.dirtreedb.IsEol;
 import com.github.n_i_e.dirtreedb.PathEntry;
+import com.github.n_i_e.dirtreedb.ThrottlePolicyFactory;
+import com.github.n_i_e.dirtreedb.Updater;
 import com.github.n_i_e.dirtreedb.lazy.LazyUpdater.Dispatcher;
 import com.github.n_i_e.dirtreedb.lister.PathEntryListerFactory;
-import com.github.n_i_e.dirtreedb.windows.IsWin32Idle;
+import com.github.n_i_e.dirtreedb.lister.TemporaryFileArchiveLister;
 
 class LazyMaintainerRunnable extends LazyRunnable {
 
+	private static class CsumRequest {
+		final DBPathEntry entry;
+		final PathEntry newentry;
+
+		CsumRequest(DBPathEntry entry, PathEntry newentry) {
+			this.entry = entry;
+			this.newentry = newentry;
+		}
+	}
+
 	private static final int UPDATE_QUEUE_SIZE_LOW_THRESHOLD = 9000;
 	private static final int UPDATE_QUEUE_SIZE_HIGH_THRESHOLD = 10000;
 
@@ -51,6 +70,8 @@ class LazyMaintainerRunnable extends LazyRunnable {
 	private static final int DONT_INSERT_QUEUE_SIZE_LOW_THRESHOLD = 9000;
 	private static final int DONT_INSERT_QUEUE_SIZE_HIGH_THRESHOLD = 10000;
 
+	private static final int ASYNC_CSUM_WINDOW = 1000;
+
 	private void writelog2(String message) {
 		getDB().writelog2(message);
 	}
@@ -67,6 +88,7 @@ class LazyMaintainerRunnable extends LazyRunnable {
 					cI++;
 					if (cI >= scheduleInsertable.length) {
 						cI = 0;
+						writeListingStats();
 					}
 				}
 			} else {
@@ -95,6 +117,7 @@ class LazyMaintainerRunnable extends LazyRunnable {
 					cI++;
 					if (cI >= scheduleInsertable.length) {
 						cI = 0;
+						writeListingStats();
 					}
 				}
 			} else {
@@ -115,6 +138,15 @@ class LazyMaintainerRunnable extends LazyRunnable {
 		}
 	}
 
+	/*
+	 * Once per round of the insertable schedules, which list the archives.
+	 */
+	private void writeListingStats() {
+		writelog2("listing cache hits " + Updater.getListingCacheHits() + " of " + Updater.getListingCacheLookups()
+				+ " lookups, " + Updater.getListingCacheBytesSaved() + " bytes not decompressed; "
+				+ TemporaryFileArchiveLister.getTemporaryFileBytesAvoided() + " bytes not written to temporary files");
+	}
+
 	private void consumeUpdateQueueLowThreshold() throws InterruptedException, SQLException {
 		getDB().consumeSomeUpdateQueue();
 		beacon();
@@ -124,12 +156,16 @@ class LazyMaintainerRunnable extends LazyRunnable {
 		}
 	}
 
+	private static final long BEACON_MAX_PAUSE = 500;
+
 	long debugBeaconMessageTimer = 0L;
 	private void beacon() throws InterruptedException {
 		threadWait();
-		if (!IsWin32Idle.isWin32Idle()) {
+		double capacity = ThrottlePolicyFactory.getThrottlePolicy().getMaintainerCapacity();
+		if (capacity <= 0.0) {
 			throw new InterruptedException();
 		}
+		ThrottlePolicyFactory.pause(capacity, BEACON_MAX_PAUSE);
 		long t = new Date().getTime();
 		if (t - debugBeaconMessageTimer >= 10*60*1000) {
 			debugBeaconMessageTimer = t;
@@ -293,11 +329,17 @@ class LazyMaintainerRunnable extends LazyRunnable {
 		};
 		@Override public IsEol getQueueLimit() { return queueLimit; }
 
+		/**
+		 * Local files go to an AsyncHashService (unless turned off) and archive members to the crawling threads.
+		 */
 		public int csum(PreparedStatement ps, Set<DBPathEntry> reachableRoots)
 				throws SQLException, InterruptedException {
 			ResultSet rs = ps.executeQuery();
 			writelog2("--- csum query finished ---");
 			int count = 0;
+			int numOutstanding = LazyUpdater.getNumOutstandingCsumReads();
+			AsyncHashService<CsumRequest> hashService = numOutstanding <= 0 ? null
+					: new AsyncHashService<CsumRequest>("MD5", numOutstanding, BandwidthLimiter.getCsumLimiter());
 			try {
 				Dispatcher disp = getDB().getDispatcher();
 				disp.setList(Dispatcher.NONE);
@@ -307,9 +349,14 @@ class LazyMaintainerRunnable extends LazyRunnable {
 				while (rs.next()) {
 					DBPathEntry f = getDB().rsToPathEntry(rs);
 					assert(f.isFile() || f.isCompressedFile());
-					try {
-						disp.dispatch(f);
-					} catch (IOException e) {}
+					if (hashService != null && f.isFile()) {
+						submitCsum(hashService, disp, f);
+						deliverCsum(hashService, disp, hashService.getNumUnfinished() >= ASYNC_CSUM_WINDOW);
+					} else {
+						try {
+							disp.dispatch(f);
+						} catch (IOException e) {}
+					}
 					count++;
 					if (isLastPathIdAvailable()) {
 						setLastPathId(f.getPathId());
@@ -318,13 +365,77 @@ class LazyMaintainerRunnable extends LazyRunnable {
 						break;
 					}
 				}
+				if (hashService != null) {
+					while (hashService.getNumUnfinished() > 0) {
+						deliverCsum(hashService, disp, true);
+					}
+				}
 			} finally {
 				rs.close();
 				ps.close();
+				if (hashService != null) {
+					hashService.close();
+				}
 			}
 			return count;
 		}
 
+		private void submitCsum(AsyncHashService<CsumRequest> hashService, Dispatcher disp, DBPathEntry entry)
+				throws SQLException, InterruptedException {
+			if (!disp.isReachableRoot(entry.getRootId())) {
+				return;
+			}
+			PathEntry newentry;
+			try {
+				newentry = Updater.getNewPathEntry(entry);
+			} catch (IOException e) {
+				disp.checkRootAndDisable(entry);
+				return;
+			}
+			if (entry.isCsumNull() && getDB().setCsumFromInodeCache(new PathEntry(newentry))) {
+				try {
+					disp.dispatch(entry); // known by inode; the crawling thread takes it from fileinode again
+				} catch (IOException e) {}
+				return;
+			}
+			hashService.submit(new CsumRequest(entry, newentry), new File(entry.getPath()), newentry.getSize());
+		}
+
+		/**
+		 * Same bookkeeping as the crawling threads do for a file, with all finished results in one update queue element.
+		 */
+		private void deliverCsum(AsyncHashService<CsumRequest> hashService, Dispatcher disp, boolean wait)
+				throws SQLException, InterruptedException {
+			List<DBPathEntry> oldentries = new ArrayList<DBPathEntry>();
+			List<PathEntry> newentries = new ArrayList<PathEntry>();
+			for (AsyncHashService.Done<CsumRequest> done: hashService.drain(wait)) {
+				DBPathEntry entry = done.getKey().entry;
+				PathEntry newentry = done.getKey().newentry;
+				if (done.getError() != null) {
+					disp.checkRootAndDisable(entry);
+					continue;
+				}
+				long lastModified = (new File(entry.getPath()).lastModified()/1000)*1000;
+				if (done.getSize() != newentry.getSize() || lastModified != newentry.getDateLastModified()) {
+					continue; // modified while hashing; the next csum round picks it up again
+				}
+				if (!PathEntry.dscMatch(entry, newentry)) {
+					getDB().unsetClean(entry.getParentId());
+					getDB().updateFolderStats(entry.getParentId(), true);
+				}
+				if ((!entry.isDirty() && !PathEntry.dscMatch(entry, newentry)) || entry.isNoAccess()) {
+					newentry.setStatus(PathEntry.DIRTY);
+				}
+				newentry.setCsum(done.getCsum());
+				oldentries.add(entry);
+				newentries.add(newentry);
+			}
+			getDB().updateBatch(oldentries, newentries);
+			for (int i=0; i<oldentries.size(); i++) {
+				getDB().recordFileInode(oldentries.get(i).getPathId(), newentries.get(i));
+			}
+		}
+
 		public int touch(PreparedStatement ps, Set<DBPathEntry> reachableRoots)
 				throws SQLException, InterruptedException {
 			ResultSet rs = ps.executeQuery();
@@ -357,6 +468,207 @@ class LazyMaintainerRunnable extends LazyRunnable {
 			return count;
 		}
 
+		public int watch(FolderWatcher watcher, PreparedStatement ps, Set<DBPathEntry> reachableRoots)
+				throws SQLException, InterruptedException {
+			ResultSet rs = ps.executeQuery();
+			writelog2("--- watch query finished ---");
+			int count = 0;
+			try {
+				Dispatcher disp = getDB().getDispatcher();
+				disp.setList(Dispatcher.NONE);
+				disp.setCsum(Dispatcher.NONE);
+				disp.setNoReturn(true);
+				disp.setReachableRoots(reachableRoots);
+				while (rs.next()) {
+					DBPathEntry f = getDB().rsToPathEntry(rs);
+					assert(f.isFolder());
+					if (!watcher.isRegistered(f.getPathId()) && watcher.register(f)) {
+						// touch once, for changes made before it was registered
+						try {
+							disp.dispatch(f);
+						} catch (IOException e) {}
+						count++;
+					}
+					if (isLastPathIdAvailable()) {
+						setLastPathId(f.getPathId());
+					}
+					if (queueLimit.isEol()) {
+						break;
+					}
+				}
+			} finally {
+				rs.close();
+				ps.close();
+			}
+			return count;
+		}
+
+		/**
+		 * Fills fileinode for files hashed before it existed, for hard link accounting and moves.
+		 */
+		public int recordInodes(PreparedStatement ps, Set<DBPathEntry> reachableRoots)
+				throws SQLException, InterruptedException {
+			Dispatcher disp = getDB().getDispatcher();
+			disp.setReachableRoots(reachableRoots);
+			ResultSet rs = ps.executeQuery();
+			int count = 0;
+			try {
+				while (rs.next()) {
+					DBPathEntry f = getDB().rsToPathEntry(rs);
+					if (disp.isReachableRoot(f.getRootId())) {
+						getDB().recordFileInode(f.getPathId(), f);
+					}
+					count++;
+					if (isLastPathIdAvailable()) {
+						setLastPathId(f.getPathId());
+					}
+					if (queueLimit.isEol()) {
+						break;
+					}
+				}
+			} finally {
+				rs.close();
+				ps.close();
+			}
+			return count;
+		}
+
+		public int chunk(PreparedStatement ps, Set<DBPathEntry> reachableRoots)
+				throws SQLException, InterruptedException {
+			Dispatcher disp = getDB().getDispatcher();
+			disp.setNoReturn(true);
+			disp.setReachableRoots(reachableRoots);
+			ResultSet rs = ps.executeQuery();
+			int count = 0;
+			try {
+				while (rs.next()) {
+					DBPathEntry f = getDB().rsToPathEntry(rs);
+					disp.chunkFile(f);
+					count++;
+					if (isLastPathIdAvailable()) {
+						setLastPathId(f.getPathId());
+					}
+					if (queueLimit.isEol()) {
+						break;
+					}
+				}
+			} finally {
+				rs.close();
+				ps.close();
+			}
+			return count;
+		}
+
+		/**
+		 * Verifies (size, csum) sets that have files not in their equalitygroup yet,
+		 * then those whose groups were tested least recently; the latter by sampling
+		 * as long as EqualitySamplingPolicy allows.
+		 */
+		public int crawlEqualityGroups(Set<DBPathEntry> rootmap)
+				throws SQLException, InterruptedException {
+			if (!getDB().isEqualityGroupAvailable()) {
+				return 0;
+			}
+			writelog2("--- equality group ---");
+			Dispatcher disp = getDB().getDispatcher();
+			disp.setNoReturn(true);
+			disp.setReachableRoots(rootmap);
+			String[] sqls = {
+					"SELECT size, csum FROM directory AS d1 WHERE (type=1 OR type=3) AND size>0 AND csum IS NOT NULL"
+					+ " AND EXISTS (SELECT * FROM directory AS d2 WHERE (d2.type=1 OR d2.type=3)"
+					+ " AND d2.size=d1.size AND d2.csum=d1.csum AND d2.pathid<>d1.pathid)"
+					+ " AND NOT EXISTS (SELECT * FROM equalitygroupmember AS m, equalitygroup AS g"
+					+ " WHERE m.pathid=d1.pathid AND g.groupid=m.groupid AND g.size=d1.size AND g.csum=d1.csum)"
+					+ " GROUP BY size, csum",
+					"SELECT size, csum, MIN(datelasttested), MAX(samplecycles) AS samplecycles FROM equalitygroup"
+					+ " GROUP BY size, csum ORDER BY 3",
+			};
+			int count = 0;
+			Set<String> done = new HashSet<String>();
+			eol:
+			for (String sql: sqls) {
+				Statement stmt = getDB().createStatement();
+				ResultSet rs = stmt.executeQuery(sql);
+				try {
+					while (rs.next()) {
+						long size = rs.getLong("size");
+						int csum = rs.getInt("csum");
+						if (!done.add(size + ":" + csum)) {
+							continue;
+						}
+						List<List<DBPathEntry>> stacks = getEqualityGroupStacks(disp, size, csum);
+						if (stacks == null) {
+							continue;
+						}
+						if (stacks.size() == 0) {
+							getDB().replaceEqualityGroups(size, csum, new ArrayList<List<Long>>());
+						} else if (sql == sqls[1] && EqualitySamplingPolicy.isSamplingAllowed(rs.getInt("samplecycles"))) {
+							disp.checkEqualityGroup(stacks, getRecordedEqualityGroups(size, csum));
+						} else {
+							disp.checkEqualityGroup(stacks);
+						}
+						count++;
+						if (queueLimit.isEol()) {
+							break eol;
+						}
+					}
+				} finally {
+					rs.close();
+					stmt.close();
+				}
+			}
+			writelog2("--- equality group finished count=" + count + " ---");
+			return count;
+		}
+
+		private Map<Long, Long> getRecordedEqualityGroups(long size, int csum) throws SQLException, InterruptedException {
+			PreparedStatement ps = getDB().prepareStatement("SELECT m.pathid, m.groupid"
+					+ " FROM equalitygroupmember AS m, equalitygroup AS g"
+					+ " WHERE g.groupid=m.groupid AND g.size=? AND g.csum=?");
+			ps.setLong(1, size);
+			ps.setInt(2, csum);
+			ResultSet rs = ps.executeQuery();
+			Map<Long, Long> result = new HashMap<Long, Long>();
+			try {
+				while (rs.next()) {
+					result.put(rs.getLong("pathid"), rs.getLong("groupid"));
+				}
+			} finally {
+				rs.close();
+				ps.close();
+			}
+			return result;
+		}
+
+		/**
+		 * Returns null if any of the files is out of reach now, as verifying the rest would drop it from its group.
+		 */
+		private List<List<DBPathEntry>> getEqualityGroupStacks(Dispatcher disp, long size, int csum)
+				throws SQLException, InterruptedException {
+			PreparedStatement ps = getDB().prepareStatement("SELECT * FROM directory"
+					+ " WHERE (type=1 OR type=3) AND size=? AND csum=? ORDER BY pathid");
+			ps.setLong(1, size);
+			ps.setInt(2, csum);
+			ResultSet rs = ps.executeQuery();
+			List<List<DBPathEntry>> result = new ArrayList<List<DBPathEntry>>();
+			try {
+				while (rs.next()) {
+					DBPathEntry f = getDB().rsToPathEntry(rs);
+					if (!disp.isReachableRoot(f.getRootId())) {
+						return null;
+					}
+					List<DBPathEntry> stack = getDB().getCompressionStack(f);
+					if (stack != null) { // not an orphan
+						result.add(stack);
+					}
+				}
+			} finally {
+				rs.close();
+				ps.close();
+			}
+			return result;
+		}
+
 		public int crawlEqualityUpdate(Set<DBPathEntry> rootmap)
 				throws SQLException, InterruptedException {
 			writelog2("--- equality ---");
@@ -364,7 +676,12 @@ class LazyMaintainerRunnable extends LazyRunnable {
 			disp.setNoReturn(true);
 			disp.setReachableRoots(rootmap);
 			Statement stmt = getDB().createStatement();
-			String sql = "SELECT * FROM equality ORDER BY datelasttested";
+			// pairs inside a group verified after the pair was are covered by crawlEqualityGroups()
+			String sql = !getDB().isEqualityGroupAvailable() ? "SELECT * FROM equality ORDER BY datelasttested"
+					: "SELECT * FROM equality AS e WHERE NOT EXISTS (SELECT * FROM equalitygroupmember AS m1,"
+					+ " equalitygroupmember AS m2, equalitygroup AS g WHERE m1.pathid=e.pathid1 AND m2.pathid=e.pathid2"
+					+ " AND m1.groupid=g.groupid AND m2.groupid=g.groupid AND g.datelasttested>e.datelasttested)"
+					+ " ORDER BY datelasttested";
 			ResultSet rs = stmt.executeQuery(sql);
 			writelog2("--- equality query finished ---");
 			int count = 0;
@@ -642,6 +959,7 @@ class LazyMaintainerRunnable extends LazyRunnable {
 				@Override public boolean isEol() throws SQLException, InterruptedException {
 					setLastPathIdAvailable(false);
 					Set<DBPathEntry> allRoots = getAllRoots();
+					crawlEqualityGroups(allRoots);
 					crawlEqualityUpdate(allRoots);
 					return true;
 				}
@@ -672,9 +990,12 @@ class LazyMaintainerRunnable extends LazyRunnable {
 					writelog2("--- csum (2/2) ---");
 					setLastPathIdAvailable(false);
 					Set<DBPathEntry> allRoots = getAllRoots();
+					// with nativecrc on both sides, only a (size, nativecrc) collision needs csum
+					String nativecrc = !getDB().isNativeCrcAvailable() ? ""
+							: " AND (d1.nativecrc IS NULL OR d2.nativecrc IS NULL OR d2.nativecrc=d1.nativecrc)";
 					String sql = "SELECT * FROM directory AS d1 WHERE ((type=1 OR type=3) AND status<>2)"
 							+ " AND (size<0 OR (csum IS NULL AND EXISTS (SELECT * FROM directory AS d2"
-							+ " WHERE (type=1 OR type=3) AND size=d1.size AND pathid<>d1.pathid)))"
+							+ " WHERE (type=1 OR type=3) AND size=d1.size AND pathid<>d1.pathid" + nativecrc + ")))"
 							+ " AND EXISTS (SELECT * FROM directory AS d3 WHERE d3.pathid=d1.parentid)"
 							+ " ORDER BY size"
 							;
@@ -684,6 +1005,97 @@ class LazyMaintainerRunnable extends LazyRunnable {
 					return true;
 				}
 			},
+			new ScheduleDontInsert() {
+				@Override public boolean isEol() throws SQLException, InterruptedException {
+					if (!FileIdentity.isSupported() || !getDB().isFileInodeAvailable()) {
+						return true;
+					}
+					writelog2("--- inode ---");
+					setLastPathIdAvailable(true);
+					Set<DBPathEntry> allRoots = getAllRoots();
+					String sql = "SELECT * FROM directory AS d1 WHERE type=1 AND csum IS NOT NULL"
+							+ " AND EXISTS (SELECT * FROM directory AS d2 WHERE d2.pathid=d1.parentid)"
+							+ " AND NOT EXISTS (SELECT * FROM fileinode AS f WHERE f.pathid=d1.pathid"
+							+ " AND f.size=d1.size AND f.datelastmodified=d1.datelastmodified AND f.csum=d1.csum)"
+							+ " AND pathid>? ORDER BY d1.pathid"
+							;
+					PreparedStatement ps = getDB().prepareStatement(sql);
+					ps.setLong(1, getLastPathId());
+					int count = recordInodes(ps, allRoots);
+					writelog2("--- inode finished count=" + count + " ---");
+					if (count>0) {
+						return false;
+					} else {
+						resetLastPathId();
+						return true;
+					}
+				}
+			},
+			new ScheduleDontInsert() {
+				private boolean chunkedSinceReport = false;
+
+				@Override public boolean isEol() throws SQLException, InterruptedException {
+					int minSize = LazyUpdater.getChunkIndexMinFileSize();
+					if (minSize <= 0 || !getDB().isChunkIndexAvailable()) {
+						return true;
+					}
+					writelog2("--- chunk ---");
+					setLastPathIdAvailable(true);
+					Set<DBPathEntry> allRoots = getAllRoots();
+					String sql = "SELECT * FROM directory AS d1 WHERE (type=1 OR type=3) AND csum IS NOT NULL AND size>=?"
+							+ " AND EXISTS (SELECT * FROM directory AS d2 WHERE d2.pathid=d1.parentid)"
+							+ " AND NOT EXISTS (SELECT * FROM chunkedfile AS c"
+							+ " WHERE c.pathid=d1.pathid AND c.size=d1.size AND c.csum=d1.csum)"
+							+ " AND pathid>? ORDER BY d1.pathid"
+							;
+					PreparedStatement ps = getDB().prepareStatement(sql);
+					ps.setLong(1, minSize * 1024L * 1024L);
+					ps.setLong(2, getLastPathId());
+					int count = chunk(ps, allRoots);
+					writelog2("--- chunk finished count=" + count + " ---");
+					if (count>0) {
+						chunkedSinceReport = true;
+						return false;
+					} else {
+						if (chunkedSinceReport) {
+							chunkedSinceReport = false;
+							for (DBPathEntry root: allRoots) {
+								writelog2("block dedupable " + root.getPath() + ": " + getDB().getBlockDedupableSize(root.getPathId())
+										+ " bytes of " + getDB().getChunkIndexedSize(root.getPathId()) + " bytes chunk indexed");
+							}
+						}
+						resetLastPathId();
+						return true;
+					}
+				}
+			},
+			new ScheduleDontInsert() {
+				@Override public boolean isEol() throws SQLException, InterruptedException {
+					FolderWatcher watcher = getDB().getFolderWatcher();
+					if (watcher == null) {
+						return true;
+					}
+					writelog2("--- watch ---");
+					setLastPathIdAvailable(true);
+					Set<DBPathEntry> allRoots = getAllRoots();
+					String sql = "SELECT * FROM directory WHERE type=0 AND status=0"
+							+ getSubSQLFromIds(watcher.getPollingRootIds())
+							+ " AND pathid>? ORDER BY pathid"
+							;
+					PreparedStatement ps = getDB().prepareStatement(sql);
+					ps.setLong(1, getLastPathId());
+					int count = watch(watcher, ps, allRoots);
+					writelog2("--- watch finished count=" + count + " registered=" + watcher.getNumRegistered()
+							+ " events=" + watcher.getEventCount() + " ---");
+					if (count>0) {
+						return false;
+					} else {
+						resetLastPathId();
+						watcher.setWatchedRootIds(getIdsFromEntries(allRoots));
+						return true;
+					}
+				}
+			},
 			new ScheduleDontInsert() {
 				@Override public boolean isStartable() {
 					if (getDB().getUpdateQueueSize(0) > 0) {
@@ -692,12 +1104,20 @@ class LazyMaintainerRunnable extends LazyRunnable {
 						return super.isStartable();
 					}
 				}
+				private long passStartTime = -1;
+				private long lastNextCheck = -1;
+
 				@Override public boolean isEol() throws SQLException, InterruptedException {
+					if (getDB().isFolderStatsAvailable()) {
+						return touchByStaleness();
+					}
 					writelog2("--- touch ---");
 					setLastPathIdAvailable(true);
 					Set<DBPathEntry> allRoots = getAllRoots();
+					FolderWatcher watcher = getDB().getFolderWatcher();
 					String sql = "SELECT * FROM directory AS d1 WHERE ((type=0 AND status=0) OR type=1)"
 							+ " AND EXISTS (SELECT * FROM directory AS d2 WHERE d2.pathid=d1.parentid AND d2.status=0)"
+							+ (watcher == null ? "" : getSubSQLFromIds(watcher.getWatchedRootIds()))
 							+ " AND pathid>? ORDER BY d1.pathid"
 							;
 					PreparedStatement ps = getDB().prepareStatement(sql);
@@ -711,6 +1131,74 @@ class LazyMaintainerRunnable extends LazyRunnable {
 						return true;
 					}
 				}
+
+				/*
+				 * Touches the clean folders that are due in folderstats, most stale first,
+				 * each together with the files in it. Folders that are not due are skipped.
+				 */
+				private boolean touchByStaleness() throws SQLException, InterruptedException {
+					writelog2("--- touch (by staleness) ---");
+					setLastPathIdAvailable(true);
+					if (passStartTime < 0) {
+						passStartTime = new Date().getTime();
+						lastNextCheck = -1;
+						resetLastPathId();
+					}
+					Set<DBPathEntry> allRoots = getAllRoots();
+					FolderWatcher watcher = getDB().getFolderWatcher();
+					String sql = "SELECT d1.*, COALESCE(s.datenextcheck, 0) AS nextcheck FROM directory AS d1"
+							+ " LEFT JOIN folderstats AS s ON s.pathid=d1.pathid"
+							+ " WHERE d1.type=0 AND d1.status=0"
+							+ " AND EXISTS (SELECT * FROM directory AS d2 WHERE d2.pathid=d1.parentid AND d2.status=0)"
+							+ (watcher == null ? "" : getSubSQLFromIds(watcher.getWatchedRootIds()))
+							+ " AND COALESCE(s.datenextcheck, 0)<=?"
+							+ " AND (COALESCE(s.datenextcheck, 0)>? OR (COALESCE(s.datenextcheck, 0)=? AND d1.pathid>?))"
+							+ " ORDER BY nextcheck, d1.pathid"
+							;
+					PreparedStatement ps = getDB().prepareStatement(sql);
+					ps.setLong(1, passStartTime);
+					ps.setLong(2, lastNextCheck);
+					ps.setLong(3, lastNextCheck);
+					ps.setLong(4, getLastPathId());
+					ResultSet rs = ps.executeQuery();
+					writelog2("--- touch query finished ---");
+					int count = 0;
+					try {
+						Dispatcher disp = getDB().getDispatcher();
+						disp.setList(Dispatcher.NONE);
+						disp.setCsum(Dispatcher.NONE);
+						disp.setNoReturn(true);
+						disp.setReachableRoots(allRoots);
+						while (rs.next()) {
+							DBPathEntry f = getDB().rsToPathEntry(rs);
+							assert(f.isFolder());
+							for (DBPathEntry child: getChildFiles(f)) {
+								try {
+									disp.dispatch(child);
+								} catch (IOException e) {}
+							}
+							try {
+								disp.dispatch(f);
+							} catch (IOException e) {}
+							count++;
+							lastNextCheck = rs.getLong("nextcheck");
+							setLastPathId(f.getPathId());
+							if (getQueueLimit().isEol()) {
+								break;
+							}
+						}
+					} finally {
+						rs.close();
+						ps.close();
+					}
+					writelog2("--- touch (by staleness) finished count=" + count + " ---");
+					if (count>0) {
+						return false;
+					} else {
+						passStartTime = -1;
+						return true;
+					}
+				}
 			}
 	};
 
@@ -853,6 +1341,24 @@ class LazyMaintainerRunnable extends LazyRunnable {
 					int c = getDB().cleanupEqualityOrphans(getQueueLimit());
 					writelog2("*** cleanup upperlower orphans finished count=" + c + " ***");
 
+					if (c>SCHEDULE_UPDATE_COUNT_THRESHOLD  && repeatCounter < 10) {
+						repeatCounter++;
+						return false;
+					} else {
+						repeatCounter = 0;
+						return true;
+					}
+				}
+			},
+			new ScheduleUpdate() {
+				private int repeatCounter=0;
+				@Override
+				public boolean isEol() throws SQLException, InterruptedException {
+					writelog2("*** cleanup fileinode orphans ***");
+					setLastPathIdAvailable(false);
+					int c = getDB().cleanupFileInodeOrphans(getQueueLimit());
+					writelog2("*** cleanup fileinode orphans finished count=" + c + " ***");
+
 					if (c>SCHEDULE_UPDATE_COUNT_THRESHOLD  && repeatCounter < 10) {
 						repeatCounter++;
 						return false;
@@ -884,6 +1390,25 @@ class LazyMaintainerRunnable extends LazyRunnable {
 		return result;
 	}
 
+	private List<DBPathEntry> getChildFiles(DBPathEntry folder) throws SQLException, InterruptedException {
+		List<DBPathEntry> result = new ArrayList<DBPathEntry>();
+		PreparedStatement ps = getDB().prepareStatement("SELECT * FROM directory WHERE parentid=? AND type=1");
+		try {
+			ps.setLong(1, folder.getPathId());
+			ResultSet rs = ps.executeQuery();
+			try {
+				while (rs.next()) {
+					result.add(getDB().rsToPathEntry(rs));
+				}
+			} finally {
+				rs.close();
+			}
+		} finally {
+			ps.close();
+		}
+		return result;
+	}
+
 	private static Set<Long> getIdsFromEntries(Set<DBPathEntry> entries) {
 		if (entries == null) { return null; }
 		Set<Long> result = new HashSet<Long>();
@@ -17,7 +17,7 @@
 package com.github.n_i_e.dirtreedb.lazy;
 
 import com.github.n_i_e.dirtreedb.debug.Debug;
-import com.github.n_i_e.dirtreedb.windows.IsWin32Idle;
+import com.github.n_i_e.dirtreedb.ThrottlePolicyFactory;
 
 public class LazyMaintainerThread extends StackingNonPreemptiveThread {
 
@@ -30,10 +30,10 @@ public class LazyMaintainerThread extends StackingNonPreemptiveThread {
 				while (true) {
 					try {
 						Debug.writelog("--- Maintainer Main Loop ---");
-						if (!IsWin32Idle.isWin32Idle()) {
+						if (ThrottlePolicyFactory.getThrottlePolicy().getMaintainerCapacity() <= 0.0) {
 							Debug.writelog("--- Maintainer Start Sleep ---");
 							System.gc();
-							while (!IsWin32Idle.isWin32Idle()) {
+							while (ThrottlePolicyFactory.getThrottlePolicy().getMaintainerCapacity() <= 0.0) {
 								threadWait();
 								Thread.sleep(1000);
 							}
@@ -67,7 +67,7 @@ public class LazyMaintainerThread extends StackingNonPreemptiveThread {
 				}
 			}
 
-		}, true);
+		}, Priority.MAINTAINER);
 	}
 
 }
@@ -21,6 +21,10 @@ import com.github.n_i_e.dirtreedb.debug.Debug;
 public class LazyThread extends StackingNonPreemptiveThread {
 
 	public LazyThread(LazyUpdaterProvider prov, LazyRunnable target) {
+		this(prov, target, Priority.INTERACTIVE);
+	}
+
+	public LazyThread(LazyUpdaterProvider prov, LazyRunnable target, Priority priority) {
 		super(new Runnable() {
 
 			@Override
@@ -56,7 +60,7 @@ public class LazyThread extends StackingNonPreemptiveThread {
 
 			}
 
-		}, false);
+		}, priority);
 	}
 
 }
@@ -32,7 +32,9 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import com.github.n_i_e.dirtreedb.Assertion;
+import com.github.n_i_e.dirtreedb.ContentDefinedChunker;
 import com.github.n_i_e.dirtreedb.DBPathEntry;
+import com.github.n_i_e.dirtreedb.FolderWatcher;
 import com.github.n_i_e.dirtreedb.IDirTreeDB;
 import com.github.n_i_e.dirtreedb.IPreferenceObserver;
 import com.github.n_i_e.dirtreedb.IsEol;
@@ -40,6 +42,7 @@ import com.github.n_i_e.dirtreedb.IterableQueue;
 import com.github.n_i_e.dirtreedb.PathEntry;
 import com.github.n_i_e.dirtreedb.PreferenceRW;
 import com.github.n_i_e.dirtreedb.RunnableWithException2;
+import com.github.n_i_e.dirtreedb.ThrottlePolicyFactory;
 import com.github.n_i_e.dirtreedb.Updater;
 import com.github.n_i_e.dirtreedb.UpdaterWithUpdateQueue;
 import com.github.n_i_e.dirtreedb.debug.Debug;
@@ -50,16 +53,24 @@ import com.github.n_i_e.dirtreedb.lister.PathEntryListerFactory;
 public class LazyUpdater extends UpdaterWithUpdateQueue {
 
 	private static int numCrawlingThreads = 1;
+	private static boolean folderWatcherEnabled = false;
+	private static int numOutstandingCsumReads = 16;
+	private static int chunkIndexMinFileSize = 0;
 
 	static {
 		PreferenceRW.addObserver(new IPreferenceObserver() {
-			@Override public void setDBFilePath(String dbFilePath) {}
-			@Override public void setExtensionAvailabilityMap(Map<String, Boolean> extensionAvailabilityMap) {}
 			@Override public void setNumCrawlingThreads(int numCrawlingThreads) {
 				LazyUpdater.setNumCrawlingThreads(numCrawlingThreads);
 			}
-			@Override public void setWindowsIdleSeconds(int windowsIdleSeconds) {}
-			@Override public void setCharset(String newvalue) {}
+			@Override public void setFolderWatcherEnabled(boolean folderWatcherEnabled) {
+				LazyUpdater.setFolderWatcherEnabled(folderWatcherEnabled);
+			}
+			@Override public void setNumOutstandingCsumReads(int numOutstandingCsumReads) {
+				LazyUpdater.setNumOutstandingCsumReads(numOutstandingCsumReads);
+			}
+			@Override public void setChunkIndexMinFileSize(int megaBytes) {
+				LazyUpdater.setChunkIndexMinFileSize(megaBytes);
+			}
 		});
 	}
 
@@ -71,6 +82,64 @@ public class LazyUpdater extends UpdaterWithUpdateQueue {
 		LazyUpdater.numCrawlingThreads = numCrawlingThreads;
 	}
 
+	public static boolean isFolderWatcherEnabled() {
+		return folderWatcherEnabled;
+	}
+
+	public static void setFolderWatcherEnabled(boolean folderWatcherEnabled) {
+		LazyUpdater.folderWatcherEnabled = folderWatcherEnabled;
+	}
+
+	public static int getNumOutstandingCsumReads() {
+		return numOutstandingCsumReads;
+	}
+
+	/**
+	 * 0 turns off AsyncHashService; local files are then hashed by the crawling threads one by one.
+	 */
+	public static void setNumOutstandingCsumReads(int numOutstandingCsumReads) {
+		LazyUpdater.numOutstandingCsumReads = numOutstandingCsumReads;
+	}
+
+	public static int getChunkIndexMinFileSize() {
+		return chunkIndexMinFileSize;
+	}
+
+	/**
+	 * In megabytes; files at least this large get chunk rows for block-level dedup estimates. 0 turns it off.
+	 */
+	public static void setChunkIndexMinFileSize(int megaBytes) {
+		LazyUpdater.chunkIndexMinFileSize = megaBytes;
+	}
+
+	private FolderWatcher folderWatcher = null;
+
+	/**
+	 * Returns the folder watcher, or null if it is disabled or not available on this platform.
+	 */
+	public synchronized FolderWatcher getFolderWatcher() {
+		if (!folderWatcherEnabled) {
+			closeFolderWatcher();
+		} else if (folderWatcher == null) {
+			try {
+				folderWatcher = new FolderWatcher(this);
+			} catch (IOException | UnsupportedOperationException e) {
+				Debug.writelog("!! FolderWatcher not available: " + e.toString());
+				folderWatcherEnabled = false;
+			}
+		}
+		return folderWatcher;
+	}
+
+	private synchronized void closeFolderWatcher() {
+		if (folderWatcher != null) {
+			try {
+				folderWatcher.close();
+			} catch (IOException e) {}
+			folderWatcher = null;
+		}
+	}
+
 	public LazyUpdater (IDirTreeDB parent) {
 		super(parent);
 	}
@@ -89,6 +158,7 @@ public class LazyUpdater extends UpdaterWithUpdateQueue {
 		lazyqueue_insertable.close();
 		Debug.writelog("Closing lazyqueue_dontinsert");
 		lazyqueue_dontinsert.close();
+		closeFolderWatcher();
 		Debug.writelog("LazyUpdater close finished");
 	}
 
@@ -114,6 +184,19 @@ public class LazyUpdater extends UpdaterWithUpdateQueue {
 		super.insert(basedir, newentry);
 	}
 
+	@Override
+	public void insertBatch(final DBPathEntry basedir, final List<PathEntry> newentries) throws SQLException, InterruptedException {
+		Assertion.assertAssertionError(! lazyqueue_dontinsert.hasThread(Thread.currentThread()));
+		super.insertBatch(basedir, newentries);
+	}
+
+	@Override
+	public void insertListed(final DBPathEntry basedir, final PathEntry newentry,
+			final Map<String, List<PathEntry>> listings) throws SQLException, InterruptedException {
+		Assertion.assertAssertionError(! lazyqueue_dontinsert.hasThread(Thread.currentThread()));
+		super.insertListed(basedir, newentry, listings);
+	}
+
 	@Override
 	public void delete(final DBPathEntry entry) throws SQLException, InterruptedException {
 		Assertion.assertAssertionError(! lazyqueue_dontinsert.hasThread(Thread.currentThread()));
@@ -210,13 +293,25 @@ public class LazyUpdater extends UpdaterWithUpdateQueue {
 				}
 			}
 
-			if (size() < getNumCrawlingThreads()) {
+			if (size() < ThrottlePolicyFactory.scale(getNumCrawlingThreads())) {
 				CrawlingThread t = new CrawlingThread();
 				t.start();
 				add(t);
 			}
 		}
 
+		/*
+		 * Lets a crawling thread exit when the throttle policy has lowered the number of threads.
+		 */
+		public synchronized boolean retireIfOverCapacity(CrawlingThread t) {
+			if (size() > ThrottlePolicyFactory.scale(getNumCrawlingThreads())) {
+				remove(t);
+				return true;
+			} else {
+				return false;
+			}
+		}
+
 		@Override
 		public synchronized void close() {
 			for (int i = size()-1; i >= 0; i--) {
@@ -231,6 +326,8 @@ public class LazyUpdater extends UpdaterWithUpdateQueue {
 		implements RunnableWithException2<SQLException, InterruptedException> {
 	}
 
+	private static final long CRAWLING_MAX_PAUSE = 200;
+
 	private class CrawlingThread extends Thread {
 
 		public void run() {
@@ -247,6 +344,7 @@ public class LazyUpdater extends UpdaterWithUpdateQueue {
 							Assertion.assertAssertionError(target.getThread() == Thread.currentThread());
 							target.next().run();
 							isEol = false;
+							ThrottlePolicyFactory.pause(ThrottlePolicyFactory.getThrottlePolicy().getCrawlerCapacity(), CRAWLING_MAX_PAUSE);
 						}
 					} catch (InterruptedException e) {
 						return;
@@ -256,6 +354,9 @@ public class LazyUpdater extends UpdaterWithUpdateQueue {
 					} finally {
 						target.setThread(null);
 					}
+					if (lazyqueue_thread.retireIfOverCapacity(this)) {
+						return;
+					}
 				}
 
 				for (Entry<Long, LazyQueueElement> entry: lazyqueue_dontinsert.entrySet()) {
@@ -272,6 +373,7 @@ public class LazyUpdater extends UpdaterWithUpdateQueue {
 							Assertion.assertAssertionError(target.getThread() == Thread.currentThread());
 							target.next().run();
 							isEol = false;
+							ThrottlePolicyFactory.pause(ThrottlePolicyFactory.getThrottlePolicy().getCrawlerCapacity(), CRAWLING_MAX_PAUSE);
 						}
 					} catch (InterruptedException e) {
 						return;
@@ -281,6 +383,9 @@ public class LazyUpdater extends UpdaterWithUpdateQueue {
 					} finally {
 						target.setThread(null);
 					}
+					if (lazyqueue_thread.retireIfOverCapacity(this)) {
+						return;
+					}
 				}
 			}
 		}
@@ -472,6 +577,9 @@ public class LazyUpdater extends UpdaterWithUpdateQueue {
 					if (oldfolder == null) { // not isList()
 						if (!entry.isDirty() && !PathEntry.dMatch(entry, newentry)) {
 							updateStatus(entry, PathEntry.DIRTY);
+							updateFolderStats(entry.getPathId(), true);
+						} else if (entry.isClean()) {
+							updateFolderStats(entry.getPathId(), false);
 						}
 					} else { // isList()
 						final File fileobj = getFileIfExists((PathEntry)entry);
@@ -521,21 +629,29 @@ public class LazyUpdater extends UpdaterWithUpdateQueue {
 							unsetClean(entry.getParentId());
 						}
 
+						boolean hashed = false;
 						if (oldfolder == null) { // not isList()
 							if ((!entry.isDirty() && !PathEntry.dscMatch(entry, newentry)) || entry.isNoAccess()) {
 								newentry.setStatus(PathEntry.DIRTY);
 							}
+							if (!PathEntry.dscMatch(entry, newentry)) {
+								updateFolderStats(entry.getParentId(), true);
+							}
 						} else { // isList()
 							final PathEntryLister newfolderIter;
 							newfolderIter = PathEntryListerFactory.getInstance(entry);
 							newfolderIter.setCsumRequested(PathEntryListerFactory.isCsumRecommended(entry));
-							dispatchFileListCore(entry, oldfolder, newentry, newfolderIter);
+							hashed = dispatchFileListCore(entry, oldfolder, newentry, newfolderIter,
+									isCsumForce() || (isCsum() && (entry.isCsumNull() || !PathEntry.dscMatch(entry, newentry))));
 						}
-						if (isCsumForce() || (isCsum() && (entry.isCsumNull() || !PathEntry.dscMatch(entry, newentry)))) {
-							newentry.setCsumAndClose(newentry.getInputStream());
+						if (hashed || isCsumForce() || (isCsum() && (entry.isCsumNull() || !PathEntry.dscMatch(entry, newentry)))) {
+							if (!hashed && (!entry.isCsumNull() || !setCsumFromInodeCache(newentry))) {
+								newentry.setCsumFromContents();
+							}
 							if (newentry.isNoAccess()) {
 								newentry.setStatus(PathEntry.DIRTY);
 							}
+							recordFileInode(entry.getPathId(), newentry);
 						}
 					} catch (IOException e) {
 						checkRootAndDisable(entry);
@@ -567,17 +683,19 @@ public class LazyUpdater extends UpdaterWithUpdateQueue {
 				{
 					PathEntry newentry = new PathEntry(entry);
 					try {
-						PathEntryLister newfolderIter;
+						boolean hashed = false;
 						InputStream inf;
 
 						if (oldfolder != null) {
-							newfolderIter = PathEntryListerFactory.getInstance(entry, getInputStream(stack));
-							newfolderIter.setCsumRequested(PathEntryListerFactory.isCsumRecommended(entry));
-							dispatchFileListCore(entry, oldfolder, newentry, newfolderIter);
-						} else {
-							newfolderIter = null;
+							hashed = dispatchCompressedFileListCore(entry, stack, oldfolder, newentry,
+									isCsumForce() || (isCsum() && entry.isCsumNull()));
 						}
-						if (isCsumForce() || (isCsum() && (entry.isCsumNull() || !PathEntry.dscMatch(entry, newentry)))) {
+						if (hashed) {
+							inf = null;
+							if (newentry.isNoAccess()) {
+								newentry.setStatus(PathEntry.DIRTY);
+							}
+						} else if (isCsumForce() || (isCsum() && (entry.isCsumNull() || !PathEntry.dscMatch(entry, newentry)))) {
 							assert(stack != null);
 							inf = getInputStream(stack);
 							if (newentry.isNoAccess()) {
@@ -684,6 +802,7 @@ public class LazyUpdater extends UpdaterWithUpdateQueue {
 							unsetClean(entry.getParentId());
 						}
 
+						boolean hashed = false;
 						if (oldfolder == null) {
 							if (!entry.isDirty() && !PathEntry.dscMatch(entry, newentry)) {
 								newentry.setStatus(PathEntry.DIRTY);
@@ -692,13 +811,17 @@ public class LazyUpdater extends UpdaterWithUpdateQueue {
 							final PathEntryLister newfolderIter;
 							newfolderIter = PathEntryListerFactory.getInstance(entry);
 							newfolderIter.setCsumRequested(PathEntryListerFactory.isCsumRecommended(entry));
-							dispatchFileListCore(entry, oldfolder, newentry, newfolderIter);
+							hashed = dispatchFileListCore(entry, oldfolder, newentry, newfolderIter,
+									isCsumForce() || (isCsum() && (entry.isCsumNull() || !PathEntry.dscMatch(entry, newentry))));
 						}
-						if (isCsumForce() || (isCsum() && (entry.isCsumNull() || !PathEntry.dscMatch(entry, newentry)))) {
-							newentry.setCsumAndClose(newentry.getInputStream());
+						if (hashed || isCsumForce() || (isCsum() && (entry.isCsumNull() || !PathEntry.dscMatch(entry, newentry)))) {
+							if (!hashed && (!entry.isCsumNull() || !setCsumFromInodeCache(newentry))) {
+								newentry.setCsumFromContents();
+							}
 							if (newentry.isNoAccess()) {
 								newentry.setStatus(PathEntry.DIRTY);
 							}
+							recordFileInode(entry.getPathId(), newentry);
 						}
 					} catch (IOException e) {
 						checkRootAndDisable(entry);
@@ -763,17 +886,19 @@ public class LazyUpdater extends UpdaterWithUpdateQueue {
 				{
 					PathEntry newentry = new PathEntry(entry);
 					try {
-						PathEntryLister newfolderIter;
+						boolean hashed = false;
 						InputStream inf;
 
 						if (oldfolder != null) {
-							newfolderIter = PathEntryListerFactory.getInstance(entry, getInputStream(stack));
-							newfolderIter.setCsumRequested(PathEntryListerFactory.isCsumRecommended(entry));
-							dispatchFileListCore(entry, oldfolder, newentry, newfolderIter);
-						} else {
-							newfolderIter = null;
+							hashed = dispatchCompressedFileListCore(entry, stack, oldfolder, newentry,
+									isCsumForce() || (isCsum() && entry.isCsumNull()));
 						}
-						if (isCsumForce() || (isCsum() && (entry.isCsumNull() || !PathEntry.dscMatch(entry, newentry)))) {
+						if (hashed) {
+							inf = null;
+							if (newentry.isNoAccess()) {
+								newentry.setStatus(PathEntry.DIRTY);
+							}
+						} else if (isCsumForce() || (isCsum() && (entry.isCsumNull() || !PathEntry.dscMatch(entry, newentry)))) {
 							assert(stack != null);
 							inf = getInputStream(stack);
 							if (newentry.isNoAccess()) {
@@ -881,6 +1006,47 @@ public class LazyUpdater extends UpdaterWithUpdateQueue {
 				}
 			});
 		}
+
+		@Override
+		public List<List<DBPathEntry>> checkEqualityGroup(final List<List<DBPathEntry>> stacks,
+				final Map<Long, Long> recordedGroups) throws SQLException, InterruptedException {
+			Assertion.assertAssertionError(! lazyqueue_insertable.hasThread(Thread.currentThread()));
+			Assertion.assertAssertionError(! lazyqueue_dontinsert.hasThread(Thread.currentThread()));
+
+			if (!isNoReturn()) {
+				return super.checkEqualityGroup(stacks, recordedGroups);
+			}
+			DBPathEntry p = stacks.get(0).get(0);
+			for (List<DBPathEntry> stack: stacks) {
+				if (stack.get(0).getRootId() != p.getRootId()) {
+					p = null;
+					break;
+				}
+			}
+			lazyqueue_dontinsert.enqueue(p, new LazyQueueableRunnable() {
+				public void run() throws SQLException, InterruptedException {
+					Dispatcher.super.checkEqualityGroup(stacks, recordedGroups);
+				}
+			});
+			return null;
+		}
+
+		@Override
+		public List<ContentDefinedChunker.Chunk> chunkFile(final DBPathEntry entry)
+				throws SQLException, InterruptedException {
+			Assertion.assertAssertionError(! lazyqueue_insertable.hasThread(Thread.currentThread()));
+			Assertion.assertAssertionError(! lazyqueue_dontinsert.hasThread(Thread.currentThread()));
+
+			if (!isNoReturn()) {
+				return super.chunkFile(entry);
+			}
+			lazyqueue_dontinsert.enqueue(entry, new LazyQueueableRunnable() {
+				public void run() throws SQLException, InterruptedException {
+					Dispatcher.super.chunkFile(entry);
+				}
+			});
+			return null;
+		}
 	}
 
 	public void writelog2(final String message) {
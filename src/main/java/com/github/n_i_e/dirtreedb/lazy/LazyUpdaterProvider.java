@@ -58,6 +58,10 @@ public class LazyUpdaterProvider implements IPreferenceObserver {
 		return new LazyThread(this, target);
 	}
 
+	public LazyThread getThread(LazyRunnable target, StackingNonPreemptiveThread.Priority priority) {
+		return new LazyThread(this, target, priority);
+	}
+
 	/*
 	 * IPreferenceObserver API
 	 */
@@ -74,9 +78,10 @@ public class LazyUpdaterProvider implements IPreferenceObserver {
 		this.extensionAvailabilityMap = extensionAvailabilityMap;
 	}
 
-	@Override public void setNumCrawlingThreads(int numCrawlingThreads) {}
-	@Override public void setWindowsIdleSeconds(int windowsIdleSeconds) {}
-	@Override public void setCharset(String newvalue) {}
+	@Override
+	public void setNumSchedulerPermits(int numSchedulerPermits) {
+		StackingNonPreemptiveThread.setNumPermits(numSchedulerPermits);
+	}
 
 	/*
 	 * setters and getters
@@ -101,7 +106,7 @@ public class LazyUpdaterProvider implements IPreferenceObserver {
 
 	Set<Thread> threads = new HashSet<Thread> ();
 
-	public LazyUpdater getDB() {
+	public synchronized LazyUpdater getDB() {
 		Assertion.assertAssertionError(db != null);
 		if (! threads.contains(Thread.currentThread())) {
 			threads.add(Thread.currentThread());
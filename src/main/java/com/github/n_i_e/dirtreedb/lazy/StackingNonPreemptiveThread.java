@@ -16,42 +16,123 @@
 
 package com.github.n_i_e.dirtreedb.lazy;
 
-import java.util.Stack;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import com.github.n_i_e.dirtreedb.Assertion;
+import com.github.n_i_e.dirtreedb.PreferenceRW;
 import com.github.n_i_e.dirtreedb.debug.Debug;
 
+/**
+ * Non-preemptive scheduling of lazy threads. Up to numPermits threads run at the same time;
+ * a running thread gives up its permit only in threadWait(), and only when a waiting thread
+ * outranks it. Threads are ranked by Priority, and within the same Priority the latest started
+ * (or setTopPriority()'ed) comes first, as the former stack did.
+ */
 public class StackingNonPreemptiveThread extends Thread {
 
+	public enum Priority {
+		INTERACTIVE, MAINTAINER
+	}
+
 	private Runnable target;
-	private boolean lowPriority;
-//	private static StackingLock lock = new StackingLock();
-	private static ReentrantLock lock = new ReentrantLock();
-	private static Stack<Thread> stack = new Stack<Thread>(); // ending of buffer has high priority
+	private final Priority priority;
+	private long sequence;
 
-	public StackingNonPreemptiveThread(Runnable target, boolean lowPriority) {
+	private static final Object scheduler = new Object();
+	private static final List<StackingNonPreemptiveThread> waiting = new ArrayList<StackingNonPreemptiveThread>();
+	private static final Set<StackingNonPreemptiveThread> running = new HashSet<StackingNonPreemptiveThread>();
+	private static long sequenceCounter = 0;
+	private static int numPermits = PreferenceRW.DEFAULT_NUM_SCHEDULER_PERMITS;
+
+	public StackingNonPreemptiveThread(Runnable target, Priority priority) {
 		super();
 		Assertion.assertNullPointerException(target != null);
+		Assertion.assertNullPointerException(priority != null);
 		this.target = target;
-		this.lowPriority = lowPriority;
+		this.priority = priority;
+	}
+
+	public StackingNonPreemptiveThread(Runnable target, boolean lowPriority) {
+		this(target, lowPriority ? Priority.MAINTAINER : Priority.INTERACTIVE);
 	}
 
 	public StackingNonPreemptiveThread(Runnable target) {
 		this(target, false);
 	}
 
+	public Priority getPriorityClass() {
+		return priority;
+	}
+
+	public static int getNumPermits() {
+		synchronized (scheduler) {
+			return numPermits;
+		}
+	}
+
+	public static void setNumPermits(int numPermits) {
+		synchronized (scheduler) {
+			StackingNonPreemptiveThread.numPermits = numPermits > 0 ? numPermits : 1;
+			scheduler.notifyAll();
+		}
+	}
+
 	public void setTopPriority() {
-		Assertion.assertAssertionError(! lowPriority);
-		synchronized (stack) {
-			Debug.writelog("--- Set Top Priority (1/3) ---");
-			int i = stack.indexOf(this);
-			if (i<stack.size()-1) {
-				stack.remove(i);
+		Assertion.assertAssertionError(priority != Priority.MAINTAINER);
+		synchronized (scheduler) {
+			Debug.writelog("--- Set Top Priority ---");
+			sequence = ++sequenceCounter;
+			scheduler.notifyAll();
+		}
+	}
+
+	private boolean outranks(StackingNonPreemptiveThread other) {
+		if (priority != other.priority) {
+			return priority.compareTo(other.priority) < 0;
+		}
+		return sequence > other.sequence;
+	}
+
+	private boolean isBestWaiting() {
+		for (StackingNonPreemptiveThread t: waiting) {
+			if (t != this && t.outranks(this)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean hasOutrankingWaiter() {
+		for (StackingNonPreemptiveThread t: waiting) {
+			if (t.outranks(this)) {
+				return true;
 			}
-			Debug.writelog("--- Set Top Priority (2/3) ---");
-			stack.push(this);
-			Debug.writelog("--- Set Top Priority (3/3) ---");
+		}
+		return false;
+	}
+
+	private void acquire() throws InterruptedException {
+		synchronized (scheduler) {
+			waiting.add(this);
+			try {
+				while (running.size() >= numPermits || !isBestWaiting()) {
+					scheduler.wait();
+				}
+			} finally {
+				waiting.remove(this);
+			}
+			running.add(this);
+			scheduler.notifyAll(); // the next waiter may get another free permit
+		}
+	}
+
+	private void release() {
+		synchronized (scheduler) {
+			running.remove(this);
+			scheduler.notifyAll();
 		}
 	}
 
@@ -59,39 +140,25 @@ public class StackingNonPreemptiveThread extends Thread {
 	public final void run() {
 		Assertion.assertAssertionError(this == Thread.currentThread());
 		try {
-			synchronized (stack) {
-				Debug.writelog("--- Start Thread (1/3) ---");
-				Assertion.assertAssertionError(stack.indexOf(this) == -1);
-				if (lowPriority) {
-					stack.insertElementAt(this, 0);
-					Assertion.assertAssertionError(stack.indexOf(this) == 0);
-				} else {
-					stack.push(this);
-					Assertion.assertAssertionError(stack.indexOf(this) == stack.size() - 1);
+			synchronized (scheduler) {
+				Debug.writelog("--- Start Thread (1/2) priority=" + priority + " ---");
+				sequence = ++sequenceCounter;
+				if (running.size() >= numPermits) {
+					Debug.writelog("All permits are taken, waiting for Start Thread 2/2 ...");
 				}
-				Debug.writelog("--- Start Thread (2/3) ---");
 			}
+			acquire();
 			try {
-				if (lock.isLocked()) {
-					Debug.writelog("Thread is locked, waiting for Start Thread 3/3 ...");
-				}
-				lock.lock();
-				Debug.writelog("--- Start Thread (3/3) ---");
+				Debug.writelog("--- Start Thread (2/2) ---");
 				target.run();
 			} finally {
-				lock.unlock();
+				release();
 			}
 		} catch (Throwable e) {
 			Debug.writelog("Reached Thread bottom due to Exception: " + e.toString());
 			e.printStackTrace();
 		} finally {
-			synchronized (stack) {
-				Debug.writelog("--- End Thread (1/2) ---");
-				int i = stack.indexOf(this);
-				Assertion.assertAssertionError(i >= 0);
-				stack.remove(i);
-				Debug.writelog("--- End Thread (2/2) ---");
-			}
+			Debug.writelog("--- End Thread ---");
 		}
 
 	}
@@ -113,16 +180,12 @@ public class StackingNonPreemptiveThread extends Thread {
 					throw new InterruptedException();
 				}
 			}
-			while (true) {
-				while (! stack.peek().isAlive()) {
-					stack.pop();
-				}
-				if (stack.peek() == thread) {
-					break;
-				} else { // not highest priority
-					Assertion.assertAssertionError(lock.getHoldCount() == 1, "!! lock has " + lock.getHoldCount());
-					lock.unlock();
-					lock.lock();
+			synchronized (scheduler) {
+				Assertion.assertAssertionError(running.contains(thread), "!! thread does not hold a permit");
+				if (running.size() > numPermits || (running.size() == numPermits && thread.hasOutrankingWaiter())) {
+					running.remove(thread);
+					scheduler.notifyAll();
+					thread.acquire();
 				}
 			}
 		} catch (ClassCastException e) {
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.n_i_e.dirtreedb.linux;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import com.github.n_i_e.dirtreedb.IThrottlePolicy;
+
+/**
+ * Throttles by pressure stall information (/proc/pressure/io and /proc/pressure/cpu, "some avg10")
+ * and by load average per CPU. Each measure ramps the capacity down linearly between its low
+ * and high thresholds; the worst one wins. Kernels without PSI fall back to load average only.
+ */
+public class LinuxPressureThrottlePolicy implements IThrottlePolicy {
+	private static final long REFRESH_INTERVAL = 1000;
+
+	private double ioLow = 5.0, ioHigh = 40.0;
+	private double cpuLow = 20.0, cpuHigh = 80.0;
+	private double loadLow = 0.7, loadHigh = 1.5;
+
+	private long lastRefresh = 0;
+	private double lastCapacity = 1.0;
+
+	public void setIoThresholds(double low, double high) { ioLow = low; ioHigh = high; }
+	public void setCpuThresholds(double low, double high) { cpuLow = low; cpuHigh = high; }
+	public void setLoadThresholds(double low, double high) { loadLow = low; loadHigh = high; }
+
+	@Override
+	public double getMaintainerCapacity() {
+		return getCapacity();
+	}
+
+	@Override
+	public double getCrawlerCapacity() {
+		return getCapacity();
+	}
+
+	public synchronized double getCapacity() {
+		long t = System.currentTimeMillis();
+		if (t - lastRefresh >= REFRESH_INTERVAL) {
+			lastRefresh = t;
+			double pressure = 0.0;
+			pressure = Math.max(pressure, ramp(readSomeAvg10("/proc/pressure/io"), ioLow, ioHigh));
+			pressure = Math.max(pressure, ramp(readSomeAvg10("/proc/pressure/cpu"), cpuLow, cpuHigh));
+			pressure = Math.max(pressure,
+					ramp(readLoadAverage() / Runtime.getRuntime().availableProcessors(), loadLow, loadHigh));
+			lastCapacity = 1.0 - pressure;
+		}
+		return lastCapacity;
+	}
+
+	static double ramp(double value, double low, double high) {
+		if (value < 0 || value <= low) {
+			return 0.0;
+		} else if (value >= high) {
+			return 1.0;
+		} else {
+			return (value - low) / (high - low);
+		}
+	}
+
+	private static double readSomeAvg10(String path) {
+		try {
+			return parseSomeAvg10(new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.US_ASCII));
+		} catch (IOException | RuntimeException e) {
+			return -1.0;
+		}
+	}
+
+	private static double readLoadAverage() {
+		try {
+			String s = new String(Files.readAllBytes(Paths.get("/proc/loadavg")), StandardCharsets.US_ASCII);
+			return Double.parseDouble(s.trim().split("\\s+")[0]);
+		} catch (IOException | RuntimeException e) {
+			return -1.0;
+		}
+	}
+
+	/**
+	 * Parses "some avg10=1.23 avg60=... avg300=... total=..." line of a PSI file; returns -1 if not found.
+	 */
+	public static double parseSomeAvg10(String content) {
+		for (String line: content.split("\n")) {
+			String[] fields = line.trim().split("\\s+");
+			if (fields.length < 2 || !fields[0].equals("some")) {
+				continue;
+			}
+			for (String field: fields) {
+				if (field.startsWith("avg10=")) {
+					return Double.parseDouble(field.substring(6));
+				}
+			}
+		}
+		return -1.0;
+	}
+}
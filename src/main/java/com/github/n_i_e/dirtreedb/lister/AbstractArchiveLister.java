@@ -20,12 +20,20 @@ import java.io.BufferedInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.github.n_i_e.dirtreedb.Assertion;
+import com.github.n_i_e.dirtreedb.HashingInputStream;
 import com.github.n_i_e.dirtreedb.PathEntry;
+import com.github.n_i_e.dirtreedb.debug.Debug;
 
 public abstract class AbstractArchiveLister extends PathEntryLister {
 
@@ -41,14 +49,31 @@ public abstract class AbstractArchiveLister extends PathEntryLister {
 	protected abstract PathEntry getNext() throws IOException;
 
 	private Set<String> pathnameUniquenessChecker = new HashSet<String> ();
+	private long listedCount = 0;
 	private void getNextWithIntegrityCheck() throws IOException {
 		if (next_entry == null) {
-			next_entry = getNext();
+			if (listedCount < getResumeEntryCount()) {
+				boolean csumRequested = isCsumRequested();
+				setCsumRequested(false);
+				try {
+					next_entry = getNext();
+				} finally {
+					setCsumRequested(csumRequested);
+				}
+			} else {
+				next_entry = getNext();
+			}
 			if (next_entry != null) {
 				Assertion.assertIOException(!pathnameUniquenessChecker.contains(next_entry.getPath()),
 						"!! duplicate pathname: " + next_entry.getPath()
 						);
 				pathnameUniquenessChecker.add(next_entry.getPath());
+				listedCount++;
+				if (listedCount == getResumeEntryCount() && getResumeDataOffset() >= 0 && getUncompressedOffset() >= 0
+						&& getResumeDataOffset() != getUncompressedOffset()) {
+					Debug.writelog("!! listing checkpoint does not match: " + getBasePath().getPath()
+							+ ", entry " + listedCount + " at " + getUncompressedOffset() + ", not " + getResumeDataOffset());
+				}
 			}
 		}
 	}
@@ -101,4 +126,107 @@ public abstract class AbstractArchiveLister extends PathEntryLister {
 		return this;
 	}
 
+	/*
+	 * A nested archive with more entries than this (all levels together) is left to be listed on its own,
+	 * so as not to keep them all in memory.
+	 */
+	private static final int MAX_NESTED_ENTRIES = 10000;
+
+	private Map<String, List<PathEntry>> nestedListings = new HashMap<String, List<PathEntry>>();
+
+	@Override
+	public Map<String, List<PathEntry>> takeNestedListings(String path) {
+		if (!nestedListings.containsKey(path)) {
+			return null;
+		}
+		Map<String, List<PathEntry>> result = nestedListings;
+		nestedListings = new HashMap<String, List<PathEntry>>();
+		return result;
+	}
+
+	/**
+	 * What takeNestedListings() returns for the member last returned; null for none.
+	 */
+	protected void setNestedListings(Map<String, List<PathEntry>> listings) {
+		nestedListings = listings != null ? listings : new HashMap<String, List<PathEntry>>();
+	}
+
+	/**
+	 * Sets the csum of entry from contents, which is not closed. If entry is an archive and nested listing
+	 * is requested, it is listed from contents at the same time; if that fails, the csum is still set.
+	 */
+	protected void setCsumListingNested(PathEntry entry, InputStream contents) throws IOException {
+		setNestedListings(null);
+		setNestedListings(hashListingNested(entry, contents));
+	}
+
+	/**
+	 * True if the csum of entry is to be left null, as its nativecrc will do; see setNativeCrcPreferred().
+	 */
+	protected boolean isCsumDeferred(PathEntry entry) {
+		return isNativeCrcPreferred() && !entry.isNativeCrcNull()
+				&& !(isNestedListingRequested() && PathEntryListerFactory.isArchivable(entry));
+	}
+
+	/**
+	 * Same as setCsumListingNested(), but returns the nested listings instead of keeping them;
+	 * safe to call from other threads for different members.
+	 */
+	protected Map<String, List<PathEntry>> hashListingNested(PathEntry entry, InputStream contents) throws IOException {
+		if (isCsumDeferred(entry)) {
+			return null;
+		}
+		if (!isNestedListingRequested() || !PathEntryListerFactory.isArchivable(entry)) {
+			entry.setCsum(contents);
+			return null;
+		}
+		HashingInputStream tee;
+		try {
+			tee = new HashingInputStream(contents, false);
+		} catch (NoSuchAlgorithmException e) {
+			entry.setCsum(contents);
+			return null;
+		}
+		Map<String, List<PathEntry>> listings = new HashMap<String, List<PathEntry>>();
+		List<PathEntry> children = new ArrayList<PathEntry>();
+		try {
+			PathEntryLister nested = PathEntryListerFactory.getInstance(entry,
+					new BufferedInputStream(tee.getUnclosableStream()));
+			nested.setCsumRequested(true);
+			nested.setNestedListingRequested(true);
+			nested.setNativeCrcPreferred(isNativeCrcPreferred());
+			int count = 0;
+			while (listings != null && nested.hasNext()) {
+				PathEntry child = nested.next();
+				children.add(child);
+				count++;
+				Map<String, List<PathEntry>> sub = nested.takeNestedListings(child.getPath());
+				if (sub != null) {
+					for (List<PathEntry> l: sub.values()) {
+						count += l.size();
+					}
+					listings.putAll(sub);
+				}
+				if (count > MAX_NESTED_ENTRIES) {
+					listings = null;
+				}
+			}
+			nested.close();
+		} catch (InterruptedIOException e) { // aborted, not broken
+			tee.close();
+			throw e;
+		} catch (IOException | RuntimeException e) { // a broken nested archive is left DIRTY; its csum is still good
+			listings = null;
+		}
+		try {
+			entry.setCsum(tee.finish());
+		} finally {
+			tee.close();
+		}
+		if (listings != null) {
+			listings.put(entry.getPath(), children);
+		}
+		return listings;
+	}
+
 }
@@ -16,19 +16,32 @@
 
 package com.github.n_i_e.dirtreedb.lister;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveException;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 
 import com.github.n_i_e.dirtreedb.Assertion;
 import com.github.n_i_e.dirtreedb.PathEntry;
 
-public class ApacheCompressArchiveLister extends AbstractArchiveLister {
+public class ApacheCompressArchiveLister extends AbstractArchiveLister implements IMemberIndexedLister {
+	private static final int TAR_HEADER_SIZE = 512;
+
 	private ArchiveInputStream instream;
+	private final Map<String, Long> memberOffsets = new HashMap<String, Long>();
 
 	public ApacheCompressArchiveLister(PathEntry basepath, InputStream inf) throws IOException {
 		super(basepath);
@@ -52,6 +65,7 @@ public class ApacheCompressArchiveLister extends AbstractArchiveLister {
 		if (z == null) {
 			return null;
 		}
+		setUncompressedOffset(instream.getBytesRead());
 		int newtype = z.isDirectory() ? PathEntry.COMPRESSEDFOLDER : PathEntry.COMPRESSEDFILE;
 		String s = z.getName();
 		s = s.replace("\\", "/");
@@ -60,8 +74,11 @@ public class ApacheCompressArchiveLister extends AbstractArchiveLister {
 		next_entry.setStatus(PathEntry.DIRTY);
 		next_entry.setSize(z.getSize());
 		next_entry.setCompressedSize(z.getSize());
+		if (z instanceof TarArchiveEntry && newtype == PathEntry.COMPRESSEDFILE && !((TarArchiveEntry)z).isGNUSparse()) {
+			memberOffsets.put(next_entry.getPath(), instream.getBytesRead()); // just after the header
+		}
 		if (isCsumRequested() && newtype == PathEntry.COMPRESSEDFILE) {
-			next_entry.setCsum(instream);
+			setCsumListingNested(next_entry, instream);
 		}
 		if (next_entry.getSize() < 0) {
 			next_entry.setSize(0);
@@ -77,4 +94,123 @@ public class ApacheCompressArchiveLister extends AbstractArchiveLister {
 		super.close();
 		instream.close();
 	}
+
+	@Override
+	public Map<String, Long> getMemberOffsets() {
+		return memberOffsets;
+	}
+
+	@Override
+	public InputStream getInputStream(PathEntry entry, long dataoffset) throws IOException {
+		PathEntry base = getBasePath();
+		File file = new File(base.getPath());
+		if (!base.isFile() || dataoffset < TAR_HEADER_SIZE || file.length() != base.getSize()
+				|| (file.lastModified()/1000)*1000 != base.getDateLastModified()) {
+			return getInputStream(entry);
+		}
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(TAR_HEADER_SIZE);
+			while (header.hasRemaining()) {
+				if (channel.read(header, dataoffset - TAR_HEADER_SIZE + header.position()) < 0) {
+					break;
+				}
+			}
+			if (header.hasRemaining() || !isTarHeader(header.array(), entry.getSize())) {
+				channel.close();
+				return getInputStream(entry);
+			}
+			channel.position(dataoffset);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		instream.close();
+		return new BufferedInputStream(new MemberInputStream(Channels.newInputStream(channel), entry.getSize()));
+	}
+
+	/*
+	 * A header with a good checksum and the size of the member is taken as the header of the member.
+	 */
+	private static boolean isTarHeader(byte[] header, long size) {
+		long chksum = 0;
+		for (int i=0; i<TAR_HEADER_SIZE; i++) {
+			chksum += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xff);
+		}
+		if (parseOctal(header, 148, 8) != chksum) {
+			return false;
+		}
+		long headersize;
+		if ((header[124] & 0x80) != 0) { // base-256, for 8GB and over
+			headersize = 0;
+			for (int i=125; i<136; i++) {
+				headersize = (headersize << 8) | (header[i] & 0xff);
+			}
+		} else {
+			headersize = parseOctal(header, 124, 12);
+		}
+		return headersize == size;
+	}
+
+	private static long parseOctal(byte[] buff, int offset, int length) {
+		long result = 0;
+		int i = offset;
+		while (i < offset + length && (buff[i] == ' ' || buff[i] == 0)) {
+			i++;
+		}
+		for (; i < offset + length && buff[i] >= '0' && buff[i] <= '7'; i++) {
+			result = (result << 3) + (buff[i] - '0');
+		}
+		return result;
+	}
+
+	private static class MemberInputStream extends FilterInputStream {
+		private long remaining;
+
+		MemberInputStream(InputStream in, long size) {
+			super(in);
+			remaining = size;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int result = super.read();
+			if (result >= 0) {
+				remaining--;
+			}
+			return result;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int result = super.read(b, off, (int)Math.min(len, remaining));
+			if (result > 0) {
+				remaining -= result;
+			}
+			return result;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long result = super.skip(Math.min(n, remaining));
+			remaining -= result;
+			return result;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int)Math.min(super.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
 }
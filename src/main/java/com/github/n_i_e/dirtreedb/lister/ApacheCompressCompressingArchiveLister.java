@@ -60,6 +60,7 @@ public class ApacheCompressCompressingArchiveLister extends AbstractArchiveListe
 			close();
 			return null;
 		}
+		setUncompressedOffset(instream.getBytesRead());
 		int newtype = z.isDirectory() ? PathEntry.COMPRESSEDFOLDER : PathEntry.COMPRESSEDFILE;
 		String s = z.getName();
 		s = s.replace("\\", "/");
@@ -69,7 +70,7 @@ public class ApacheCompressCompressingArchiveLister extends AbstractArchiveListe
 		next_entry.setSize(z.getSize());
 		next_entry.setCompressedSize(z.getSize());
 		if (isCsumRequested() && newtype == PathEntry.COMPRESSEDFILE) {
-			next_entry.setCsum(instream);
+			setCsumListingNested(next_entry, instream);
 		}
 		if (next_entry.getSize() < 0) {
 			next_entry.setSize(0);
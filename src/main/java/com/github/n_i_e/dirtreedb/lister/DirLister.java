@@ -56,7 +56,7 @@ public class DirLister extends PathEntryLister {
 			Assertion.assertAssertionError(! f.getPath().equals(getBasePath().getPath() + ".."));
 			next_entry = new PathEntry(f);
 			if (isCsumRequested() && next_entry.isFile()) {
-				next_entry.setCsumAndClose(next_entry.getInputStream());
+				next_entry.setCsumFromContents();
 			}
 			long t3 = new Date().getTime();
 			if (t3-t2 > 1000) {
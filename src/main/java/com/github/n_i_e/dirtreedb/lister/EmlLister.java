@@ -82,7 +82,7 @@ public class EmlLister extends AbstractArchiveLister {
 						instream = binaryContentToInputStream(msg.getContent());
 					}
 					if (isCsumRequested()) {
-						next_entry.setCsum(instream);
+						setCsumListingNested(next_entry, instream);
 					}
 					eof = true;
 					return next_entry;
@@ -110,7 +110,7 @@ public class EmlLister extends AbstractArchiveLister {
 				instream = binaryContentToInputStream(part.getContent());
 			}
 			if (isCsumRequested()) {
-				next_entry.setCsum(instream);
+				setCsumListingNested(next_entry, instream);
 			}
 
 			if (++count >= content.getCount()) {
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.n_i_e.dirtreedb.lister;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import com.github.n_i_e.dirtreedb.PathEntry;
+
+/**
+ * A lister of archives with no member directory of their own (tar), which notes where the data
+ * of each member starts while listing, so that the offsets can be kept in the DB and a member
+ * read later without walking the archive up to it.
+ */
+public interface IMemberIndexedLister {
+	/**
+	 * Data offsets of the members listed so far, by path. Members that cannot be read by offset are left out.
+	 */
+	public Map<String, Long> getMemberOffsets();
+
+	/**
+	 * Reads entry from dataoffset in the archive file; walks the archive as getInputStream(entry)
+	 * if the archive is not a local file, has changed, or has no matching header there.
+	 */
+	public InputStream getInputStream(PathEntry entry, long dataoffset) throws IOException;
+}
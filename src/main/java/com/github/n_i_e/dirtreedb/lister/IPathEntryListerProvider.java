@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.n_i_e.dirtreedb.lister;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Listers for more archive formats, loaded by ServiceLoader: a jar names its implementations in
+ * META-INF/services/com.github.n_i_e.dirtreedb.lister.IPathEntryListerProvider.
+ */
+public interface IPathEntryListerProvider {
+	/**
+	 * Extensions, lower case without the dot, to the returners of their listers; a built-in extension is replaced.
+	 */
+	public Map<String, PathEntryListerFactory.PathEntryListerReturner> getExtensionBindList();
+
+	/**
+	 * Signatures of the formats for sniffing, by extension; may be empty.
+	 */
+	public List<PathEntryListerFactory.Magic> getMagicList();
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.n_i_e.dirtreedb.lister;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.github.n_i_e.dirtreedb.Assertion;
+import com.github.n_i_e.dirtreedb.PathEntry;
+
+/**
+ * Lists an archive from the listing of another copy of it, as kept in the DB: the entries of the copy,
+ * and those of the archives nested in it, are returned with the path of the copy replaced by that of
+ * the archive. Nothing is read; the contents of the entries are not available here.
+ */
+public class ListingCopyLister extends PathEntryLister {
+	private final Map<String, List<PathEntry>> listings = new HashMap<String, List<PathEntry>>();
+	private final Iterator<PathEntry> entries;
+
+	/**
+	 * sourcelistings are the entries of sourcepath and of each archive in it, by the path of the archive.
+	 */
+	public ListingCopyLister(PathEntry basepath, String sourcepath, Map<String, List<PathEntry>> sourcelistings) {
+		super(basepath);
+		Assertion.assertNullPointerException(sourcelistings.get(sourcepath) != null);
+		for (Map.Entry<String, List<PathEntry>> l: sourcelistings.entrySet()) {
+			List<PathEntry> children = new ArrayList<PathEntry>();
+			for (PathEntry child: l.getValue()) {
+				children.add(rebase(child, sourcepath));
+			}
+			listings.put(basepath.getPath() + l.getKey().substring(sourcepath.length()), children);
+		}
+		entries = listings.get(basepath.getPath()).iterator();
+	}
+
+	private PathEntry rebase(PathEntry entry, String sourcepath) {
+		PathEntry result = new PathEntry(getBasePath().getPath() + entry.getPath().substring(sourcepath.length()),
+				entry.getType());
+		result.setDateLastModified(entry.getDateLastModified());
+		result.setSize(entry.getSize());
+		result.setCompressedSize(entry.getCompressedSize());
+		if (!entry.isCsumNull()) {
+			result.setCsum(entry.getCsum());
+		}
+		if (!entry.isNativeCrcNull()) {
+			result.setNativeCrc(entry.getNativeCrc());
+		}
+		result.setStatus(entry.isNoAccess() ? PathEntry.NOACCESS : PathEntry.DIRTY);
+		return result;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return entries.hasNext();
+	}
+
+	@Override
+	public PathEntry next() {
+		return entries.next();
+	}
+
+	@Override
+	public Iterator<PathEntry> iterator() {
+		return this;
+	}
+
+	@Override
+	public Map<String, List<PathEntry>> takeNestedListings(String path) {
+		return listings.containsKey(path) ? listings : null;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		throw new IOException("!! contents not available from a listing copy: " + getBasePath().getPath());
+	}
+
+	@Override
+	public InputStream getInputStream(PathEntry entry) throws IOException {
+		throw new IOException("!! contents not available from a listing copy: " + entry.getPath());
+	}
+}
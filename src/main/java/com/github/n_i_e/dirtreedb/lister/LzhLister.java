@@ -55,7 +55,7 @@ public class LzhLister extends AbstractArchiveLister
 		next_entry.setSize(z.getOriginalSize());
 		next_entry.setCompressedSize(z.getCompressedSize());
 		if (isCsumRequested() && newtype == PathEntry.COMPRESSEDFILE) {
-			next_entry.setCsum(instream);
+			setCsumListingNested(next_entry, instream);
 		}
 		if (next_entry.getSize() < 0) {
 			next_entry.setSize(0);
@@ -20,6 +20,8 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import com.github.n_i_e.dirtreedb.PathEntry;
 
@@ -42,11 +44,76 @@ public abstract class PathEntryLister implements Iterator<PathEntry>, Iterable<P
 		this.csumRequested = csumNow;
 	}
 
+	private boolean nestedListingRequested = false;
+
+	protected boolean isNestedListingRequested() {
+		return nestedListingRequested;
+	}
+	/**
+	 * With csum requested too, the archives among the members are listed from the same stream as they are
+	 * hashed; see takeNestedListings().
+	 */
+	public void setNestedListingRequested(boolean nestedListingRequested) {
+		this.nestedListingRequested = nestedListingRequested;
+	}
+
+	private boolean nativeCrcPreferred = false;
+
+	protected boolean isNativeCrcPreferred() {
+		return nativeCrcPreferred;
+	}
+	/**
+	 * With csum requested too, a member whose CRC-32 is in the archive headers gets it as its nativecrc
+	 * and is not decompressed for csum, unless it is an archive to be listed nested; its csum is left null
+	 * until another file of the same size and nativecrc is found.
+	 */
+	public void setNativeCrcPreferred(boolean nativeCrcPreferred) {
+		this.nativeCrcPreferred = nativeCrcPreferred;
+	}
+
+	private long uncompressedOffset = -1;
+
+	/**
+	 * Offset in the uncompressed archive where the data of the entry last returned starts; -1 where the lister cannot tell.
+	 */
+	public long getUncompressedOffset() {
+		return uncompressedOffset;
+	}
+	protected void setUncompressedOffset(long uncompressedOffset) {
+		this.uncompressedOffset = uncompressedOffset;
+	}
+
+	private long resumeEntryCount = 0;
+	private long resumeDataOffset = -1;
+
+	protected long getResumeEntryCount() {
+		return resumeEntryCount;
+	}
+	protected long getResumeDataOffset() {
+		return resumeDataOffset;
+	}
+	/**
+	 * The first entrycount entries, already listed and kept before, are still returned but neither hashed nor
+	 * listed nested; dataoffset is what getUncompressedOffset() returned for the last of them, to check it with.
+	 */
+	public void setResumePoint(long entrycount, long dataoffset) {
+		this.resumeEntryCount = entrycount;
+		this.resumeDataOffset = dataoffset;
+	}
+
 	public PathEntryLister(PathEntry basepath) {
 		setBasePath(basepath);
 		setCsumRequested(false);
 	}
 
+	/**
+	 * What was listed from path, the member last returned, while it was hashed: the entries of path and of each
+	 * archive in it, by the path of the archive. null unless path was listed to the end. Can be taken only once.
+	 */
+	public Map<String, List<PathEntry>> takeNestedListings(String path) {
+		return null;
+	}
+
 	private IOException exceptionCache = null;
 
 	protected IOException getExceptionCache() {
@@ -21,17 +21,29 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
 
 import com.github.n_i_e.dirtreedb.Assertion;
+import com.github.n_i_e.dirtreedb.IPreferenceObserver;
 import com.github.n_i_e.dirtreedb.PathEntry;
-
-import java.util.Set;
+import com.github.n_i_e.dirtreedb.PreferenceRW;
+import com.github.n_i_e.dirtreedb.debug.Debug;
 
 public class PathEntryListerFactory {
 
-	private static abstract class PathEntryListerReturner {
+	public static abstract class PathEntryListerReturner {
 		public abstract PathEntryLister get(PathEntry entry, InputStream instream)  throws IOException;
 		public PathEntryLister get(PathEntry entry, File contentfile)  throws IOException {
 			return get(entry, new BufferedInputStream(new FileInputStream(contentfile), 1*1024*1024));
@@ -39,8 +51,91 @@ public class PathEntryListerFactory {
 		public PathEntryLister getForFile(PathEntry entry) throws IOException {
 			return get(entry, entry.getInputStream());
 		}
+		public PathEntryLister get(PathEntry entry, SeekableByteChannel content) throws IOException {
+			return null;
+		}
+	}
+
+	/**
+	 * A signature of the format of an extension: bytes found at offset in the contents.
+	 */
+	public static class Magic {
+		private final String extension;
+		private final int offset;
+		private final byte[] bytes;
+
+		public Magic(String extension, int offset, byte[] bytes) {
+			Assertion.assertAssertionError(offset >= 0 && offset + bytes.length <= SNIFF_LENGTH);
+			this.extension = extension.toLowerCase(Locale.ENGLISH);
+			this.offset = offset;
+			this.bytes = bytes;
+		}
+
+		public Magic(String extension, int offset, String ascii) {
+			this(extension, offset, ascii.getBytes(StandardCharsets.ISO_8859_1));
+		}
+
+		public String getExtension() {
+			return extension;
+		}
+
+		public boolean matches(byte[] head, int len) {
+			if (offset + bytes.length > len) {
+				return false;
+			}
+			for (int i=0; i<bytes.length; i++) {
+				if (head[offset + i] != bytes[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
 	}
-	private static HashMap<String, PathEntryListerReturner> getExtensionBindList() {
+
+	/**
+	 * Bytes read from the start of the contents for sniffing.
+	 */
+	public static final int SNIFF_LENGTH = 512;
+
+	/*
+	 * Built once, built-ins first and then those of the providers; read only after that.
+	 */
+	private static final HashMap<String, PathEntryListerReturner> extensionBindList = getBuiltinExtensionBindList();
+	private static final List<Magic> magicList = getBuiltinMagicList();
+
+	static {
+		Iterator<IPathEntryListerProvider> iter = ServiceLoader.load(IPathEntryListerProvider.class).iterator();
+		while (true) {
+			try {
+				if (!iter.hasNext()) {
+					break;
+				}
+				IPathEntryListerProvider provider = iter.next();
+				for (Entry<String, PathEntryListerReturner> kv: provider.getExtensionBindList().entrySet()) {
+					extensionBindList.put(kv.getKey().toLowerCase(Locale.ENGLISH), kv.getValue());
+				}
+				magicList.addAll(provider.getMagicList());
+			} catch (ServiceConfigurationError | RuntimeException e) {
+				Debug.writelog("!! lister provider not loaded: " + e.toString());
+			}
+		}
+	}
+
+	private static boolean sniffingEnabled = false;
+	private static Map<String, Boolean> extensionAvailabilityMap = null;
+
+	static {
+		PreferenceRW.addObserver(new IPreferenceObserver() {
+			@Override public void setExtensionAvailabilityMap(Map<String, Boolean> extensionAvailabilityMap) {
+				PathEntryListerFactory.extensionAvailabilityMap = extensionAvailabilityMap;
+			}
+			@Override public void setArchiveSniffingEnabled(boolean archiveSniffingEnabled) {
+				PathEntryListerFactory.sniffingEnabled = archiveSniffingEnabled;
+			}
+		});
+	}
+
+	private static HashMap<String, PathEntryListerReturner> getBuiltinExtensionBindList() {
 		HashMap<String, PathEntryListerReturner> result = new HashMap<String, PathEntryListerReturner> ();
 
 		final PathEntryListerReturner zipR = new PathEntryListerReturner () {
@@ -60,6 +155,7 @@ public class PathEntryListerFactory {
 		final PathEntryListerReturner svnzR = new PathEntryListerReturner () {
 			@Override public PathEntryLister get(PathEntry base, InputStream inf) throws IOException { return new TemporaryFileArchiveLister(base, inf); }
 			@Override public PathEntryLister get(PathEntry base, File content) throws IOException { return new SevenZipListerForFile(base, content); }
+			@Override public PathEntryLister get(PathEntry base, SeekableByteChannel content) throws IOException { return new SevenZipListerForFile(base, content); }
 			@Override public PathEntryLister getForFile(PathEntry base) throws IOException { return new SevenZipListerForFile(base); }
 		};
 
@@ -80,11 +176,13 @@ public class PathEntryListerFactory {
 		};
 
 		final PathEntryListerReturner emlR = new PathEntryListerReturner () {
-			@Override public PathEntryLister get(PathEntry base, InputStream inf) throws IOException { return new EmlLister(base, inf); }
+			@Override public PathEntryLister get(PathEntry base, InputStream inf) throws IOException { return new StreamingEmlLister(base, inf); }
 		};
 
 		final PathEntryListerReturner msgR = new PathEntryListerReturner () {
-			@Override public PathEntryLister get(PathEntry base, InputStream inf) throws IOException { return new MsgLister(base, inf); }
+			@Override public PathEntryLister get(PathEntry base, InputStream inf) throws IOException { return new StreamingMsgLister(base, inf); }
+			@Override public PathEntryLister get(PathEntry base, File content) throws IOException { return new StreamingMsgLister(base, content); }
+			@Override public PathEntryLister getForFile(PathEntry base) throws IOException { return new StreamingMsgLister(base); }
 		};
 
 		result.put("zip", zipR);
@@ -113,6 +211,24 @@ public class PathEntryListerFactory {
 		return result;
 	}
 
+	private static List<Magic> getBuiltinMagicList() {
+		List<Magic> result = new ArrayList<Magic>();
+		result.add(new Magic("zip", 0, "PK\003\004"));
+		result.add(new Magic("zip", 0, "PK\005\006"));
+		result.add(new Magic("7z", 0, new byte[] {'7', 'z', (byte)0xBC, (byte)0xAF, 0x27, 0x1C}));
+		result.add(new Magic("gz", 0, new byte[] {0x1F, (byte)0x8B}));
+		result.add(new Magic("bz2", 0, "BZh"));
+		result.add(new Magic("xz", 0, new byte[] {(byte)0xFD, '7', 'z', 'X', 'Z', 0}));
+		result.add(new Magic("tar", 257, "ustar"));
+		result.add(new Magic("lzh", 2, "-lh"));
+		result.add(new Magic("ar", 0, "!<arch>\n"));
+		result.add(new Magic("cpio", 0, "070707"));
+		result.add(new Magic("cpio", 0, "070701"));
+		result.add(new Magic("cpio", 0, "070702"));
+		result.add(new Magic("arj", 0, new byte[] {0x60, (byte)0xEA}));
+		return result;
+	}
+
 	public static boolean fileExtensionMatches(String path, String ext) {
 		Assertion.assertNullPointerException(path != null);
 		Assertion.assertNullPointerException(ext != null);
@@ -123,20 +239,111 @@ public class PathEntryListerFactory {
 		}
 	}
 
+	/**
+	 * Lower case, without the dot; null if the last name in path has none.
+	 */
+	private static String getExtension(String path) {
+		int i = path.lastIndexOf('.');
+		if (i < 0 || i < path.lastIndexOf('/') || i < path.lastIndexOf('\\')) {
+			return null;
+		}
+		return path.substring(i+1).toLowerCase(Locale.ENGLISH);
+	}
+
+	private static PathEntryListerReturner getReturner(String path) {
+		String ext = getExtension(path);
+		return ext == null ? null : extensionBindList.get(ext);
+	}
+
+	/**
+	 * By the extension alone, as the DB selects the entries to list.
+	 */
 	public static boolean isArchivable(PathEntry entry) {
 		Assertion.assertNullPointerException(entry != null);
 		Assertion.assertAssertionError(entry.isFile() || entry.isCompressedFile());
 
-		for (String ext: getExtensionBindList().keySet()) {
-			if (fileExtensionMatches(entry.getPath(), ext)) {
-				return true;
+		return getReturner(entry.getPath()) != null;
+	}
+
+	/**
+	 * True if entry1 and entry2, of the same contents, are listed alike: their extensions bind to the same lister.
+	 */
+	public static boolean isListedAlike(PathEntry entry1, PathEntry entry2) {
+		PathEntryListerReturner r = getReturner(entry1.getPath());
+		return r != null && r == getReturner(entry2.getPath());
+	}
+
+	public static Set<String> getExtensionList() {
+		return new HashSet<String>(extensionBindList.keySet());
+	}
+
+	/**
+	 * The extension whose format head, the first len bytes of some contents, has a signature of; null if none.
+	 */
+	public static String sniffExtension(byte[] head, int len) {
+		for (Magic m: magicList) {
+			if (m.matches(head, len)) {
+				return m.getExtension();
 			}
 		}
-		return false;
+		return null;
 	}
 
-	public static Set<String> getExtensionList() {
-		return getExtensionBindList().keySet();
+	/*
+	 * The returner for entry by its extension, unless sniffing is on and head has the signature
+	 * of another enabled format while it has none of its own. Formats with no signature (eml,
+	 * or tgz, which has that of gz) are taken by the extension.
+	 */
+	private static PathEntryListerReturner getReturner(PathEntry entry, byte[] head, int len) {
+		String ext = getExtension(entry.getPath());
+		PathEntryListerReturner result = ext == null ? null : extensionBindList.get(ext);
+		String sniffed = sniffExtension(head, len);
+		if (sniffed == null || sniffed.equals(ext) || !extensionBindList.containsKey(sniffed)) {
+			return result;
+		}
+		Map<String, Boolean> eal = extensionAvailabilityMap;
+		if (eal != null && !Boolean.TRUE.equals(eal.get(sniffed))) {
+			return result;
+		}
+		if (result != null) {
+			for (Magic m: magicList) {
+				if (m.getExtension().equals(ext)) {
+					return extensionBindList.get(sniffed); // has signatures, none matching
+				}
+			}
+			return result;
+		}
+		return extensionBindList.get(sniffed);
+	}
+
+	private static PathEntryListerReturner getReturner(PathEntry entry, InputStream instream) throws IOException {
+		if (!sniffingEnabled || !instream.markSupported()) {
+			return getReturner(entry.getPath());
+		}
+		byte[] head = new byte[SNIFF_LENGTH];
+		instream.mark(SNIFF_LENGTH);
+		int len = 0;
+		try {
+			int n;
+			while (len < head.length && (n = instream.read(head, len, head.length - len)) >= 0) {
+				len += n;
+			}
+		} finally {
+			instream.reset();
+		}
+		return getReturner(entry, head, len);
+	}
+
+	private static PathEntryListerReturner getReturner(PathEntry entry, File contentpath) throws IOException {
+		if (!sniffingEnabled) {
+			return getReturner(entry.getPath());
+		}
+		InputStream inf = new BufferedInputStream(new FileInputStream(contentpath), SNIFF_LENGTH);
+		try {
+			return getReturner(entry, inf);
+		} finally {
+			inf.close();
+		}
 	}
 
 	public static PathEntryLister getInstance(PathEntry entry, InputStream instream) throws IOException {
@@ -144,11 +351,9 @@ public class PathEntryListerFactory {
 		Assertion.assertNullPointerException(instream != null);
 		Assertion.assertAssertionError(entry.isFile() || entry.isCompressedFile());
 
-		for (Entry<String, PathEntryListerReturner> kv: getExtensionBindList().entrySet()) {
-			String ext = kv.getKey();
-			if (fileExtensionMatches(entry.getPath(), ext)) {
-				return kv.getValue().get(entry, instream);
-			}
+		PathEntryListerReturner r = getReturner(entry, instream);
+		if (r != null) {
+			return r.get(entry, instream);
 		}
 
 		instream.close();
@@ -160,16 +365,30 @@ public class PathEntryListerFactory {
 		Assertion.assertNullPointerException(contentpath != null);
 		Assertion.assertAssertionError(entry.isFile() || entry.isCompressedFile());
 
-		for (Entry<String, PathEntryListerReturner> kv: getExtensionBindList().entrySet()) {
-			String ext = kv.getKey();
-			if (fileExtensionMatches(entry.getPath(), ext)) {
-				return kv.getValue().get(entry, contentpath);
-			}
+		PathEntryListerReturner r = getReturner(entry, contentpath);
+		if (r != null) {
+			return r.get(entry, contentpath);
 		}
 
 		return new NullArchiveLister();
 	}
 
+	/**
+	 * Returns null if the lister for entry cannot read from a channel.
+	 */
+	public static PathEntryLister getInstance(PathEntry entry, SeekableByteChannel content) throws IOException {
+		Assertion.assertNullPointerException(entry != null);
+		Assertion.assertNullPointerException(content != null);
+		Assertion.assertAssertionError(entry.isFile() || entry.isCompressedFile());
+
+		PathEntryListerReturner r = getReturner(entry.getPath());
+		if (r != null) {
+			return r.get(entry, content);
+		}
+
+		return null;
+	}
+
 	public static PathEntryLister getInstance(PathEntry entry) throws IOException {
 		Assertion.assertNullPointerException(entry != null);
 		Assertion.assertAssertionError(entry.isFolder() || entry.isFile() || entry.isCompressedFile());
@@ -177,11 +396,9 @@ public class PathEntryListerFactory {
 		if (entry.isFolder()) {
 			return new DirLister(entry);
 		} else if (entry.isFile()) {
-			for (Entry<String, PathEntryListerReturner> kv: getExtensionBindList().entrySet()) {
-				String ext = kv.getKey();
-				if (fileExtensionMatches(entry.getPath(), ext)) {
-					return kv.getValue().getForFile(entry);
-				}
+			PathEntryListerReturner r = getReturner(entry, new File(entry.getPath()));
+			if (r != null) {
+				return r.getForFile(entry);
 			}
 			return new NullArchiveLister();
 		} else if (entry.isCompressedFile()) {
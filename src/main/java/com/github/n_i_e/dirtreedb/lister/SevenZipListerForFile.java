@@ -17,8 +17,10 @@
 package com.github.n_i_e.dirtreedb.lister;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.SeekableByteChannel;
 
 import org.apache.commons.compress.archivers.sevenz.SevenZArchiveEntry;
 import org.apache.commons.compress.archivers.sevenz.SevenZFile;
@@ -34,6 +36,11 @@ public class SevenZipListerForFile extends AbstractArchiveLister {
 		sevenzfile = new SevenZFile(contentpath);
 	}
 
+	public SevenZipListerForFile(PathEntry basepath, SeekableByteChannel content) throws IOException {
+		super(basepath);
+		sevenzfile = new SevenZFile(content);
+	}
+
 	public SevenZipListerForFile(PathEntry basepath) throws IOException {
 		this(basepath, new File(basepath.getPath()));
 		Assertion.assertAssertionError(basepath.isFile());
@@ -44,28 +51,61 @@ public class SevenZipListerForFile extends AbstractArchiveLister {
 		return new SevenZipInputStream();
 	}
 
+	/**
+	 * Skips to the member by the headers alone. SevenZFile decodes nothing for the skipped entries
+	 * of other folders (solid blocks), and those before the member in its own folder have to be
+	 * decoded anyway; a member not in the headers is not searched for at all.
+	 */
 	@Override
-	protected PathEntry getNext() throws IOException {
-		SevenZArchiveEntry z = sevenzfile.getNextEntry();
-		if (z == null) {
-			return null;
+	public InputStream getInputStream(PathEntry entry) throws IOException {
+		boolean found = false;
+		for (SevenZArchiveEntry z: sevenzfile.getEntries()) {
+			if (!z.isDirectory() && entry.getPath().equals(getMemberPath(z))) {
+				found = true;
+				break;
+			}
 		}
-		int newtype = z.isDirectory() ? PathEntry.COMPRESSEDFOLDER : PathEntry.COMPRESSEDFILE;
+		if (found) {
+			SevenZArchiveEntry z;
+			while ((z = sevenzfile.getNextEntry()) != null) {
+				if (!z.isDirectory() && entry.getPath().equals(getMemberPath(z))) {
+					return new SevenZipInputStream();
+				}
+			}
+		}
+		throw new FileNotFoundException(String.format("!! Archive file not found for path %s at basepath %s",
+				entry.getPath(), getBasePath().getPath()));
+	}
+
+	private String getMemberPath(SevenZArchiveEntry z) {
 		String s = z.getName();
 		if (s == null) {
 			s = AbstractCompressorLister.getBasename(getBasePath());
-		};
+		}
 		s = s.replace("\\", "/");
 		if (z.isDirectory() && !s.endsWith("/")) {
 			s = s + "/";
 		}
-		PathEntry next_entry = new PathEntry(getBasePath().getPath() + "/" + s, newtype);
+		return getBasePath().getPath() + "/" + s;
+	}
+
+	@Override
+	protected PathEntry getNext() throws IOException {
+		SevenZArchiveEntry z = sevenzfile.getNextEntry();
+		if (z == null) {
+			return null;
+		}
+		int newtype = z.isDirectory() ? PathEntry.COMPRESSEDFOLDER : PathEntry.COMPRESSEDFILE;
+		PathEntry next_entry = new PathEntry(getMemberPath(z), newtype);
 		next_entry.setDateLastModified(z.getLastModifiedDate().getTime());
 		next_entry.setStatus(PathEntry.DIRTY);
 		next_entry.setSize(z.getSize());
 		next_entry.setCompressedSize(z.getSize());
+		if (newtype == PathEntry.COMPRESSEDFILE && z.getHasCrc()) {
+			next_entry.setNativeCrc(z.getCrcValue());
+		}
 		if (isCsumRequested() && newtype == PathEntry.COMPRESSEDFILE) {
-			next_entry.setCsum(new SevenZipInputStream());
+			setCsumListingNested(next_entry, new SevenZipInputStream());
 		}
 		if (next_entry.getSize() < 0) {
 			next_entry.setSize(0);
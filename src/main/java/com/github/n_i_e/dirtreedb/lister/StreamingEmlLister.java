@@ -0,0 +1,477 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.n_i_e.dirtreedb.lister;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.ContentDisposition;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MailDateFormat;
+import javax.mail.internet.MimeUtility;
+
+import com.github.n_i_e.dirtreedb.Assertion;
+import com.github.n_i_e.dirtreedb.PathEntry;
+
+/**
+ * Lists the same entries as EmlLister, but reads the message as a stream: the MIME boundaries are found
+ * line by line and each part is decoded as it is read, so that memory stays bounded however large the
+ * attachments are. A part not read by the caller is skipped on the next getNext().
+ */
+public class StreamingEmlLister extends AbstractArchiveLister {
+	private static final int MAX_LINE = 8*1024;
+	private static final int MAX_HEADER = 64*1024;
+	private static final int BUFFER_SIZE = 64*1024;
+
+	private final InputStream inf;
+	private final byte[] inbuff = new byte[BUFFER_SIZE];
+	private int inpos = 0;
+	private int inlen = 0;
+	private final byte[] linebuff = new byte[MAX_LINE];
+	private boolean eof = false;
+	private boolean started = false;
+	private byte[] delimiter = null; // "--" + boundary of the message; null for a single part message
+	private int subjectFilenameCount = 1;
+	private long date = 0;
+	private String subject = null;
+	private PartInputStream part = null;
+	private PathEntry partEntry = null;
+	private InputStream instream = null;
+
+	public StreamingEmlLister(PathEntry basepath, InputStream inf) throws IOException {
+		super(basepath);
+		Assertion.assertNullPointerException(inf != null);
+		this.inf = inf;
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		Assertion.assertNullPointerException(instream != null);
+		return new FilterInputStream(instream) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				StreamingEmlLister.this.close();
+			}
+		};
+	}
+
+	@Override
+	protected PathEntry getNext() throws IOException {
+		if (eof && part == null) { return null; }
+		if (part != null) {
+			part.skipToEnd();
+			if (partEntry != null) {
+				partEntry.setCompressedSize(part.getCount());
+				partEntry = null;
+			}
+			if (eof) { return null; }
+			if (part.isLast()) {
+				eof = true;
+				return null;
+			}
+		}
+
+		if (!started) {
+			started = true;
+			Map<String, String> headers = readHeaders();
+			date = parseDate(headers.get("date"));
+			subject = decodeText(headers.get("subject"));
+			String msgtype = getNormalizedContentType(headers.get("content-type"));
+
+			if (msgtype.startsWith("multipart/")) {
+				String boundary = getParameter(headers.get("content-type"), "boundary");
+				if (boundary == null) {
+					eof = true;
+					return null;
+				}
+				delimiter = ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+				PartInputStream preamble = new PartInputStream();
+				preamble.skipToEnd();
+				if (preamble.isLast()) {
+					eof = true;
+					return null;
+				}
+			} else {
+				part = new PartInputStream();
+				eof = true;
+				return newEntry(subjectToFilename(subject, msgtype, 1), msgtype, headers);
+			}
+		}
+
+		Map<String, String> headers = readHeaders();
+		part = new PartInputStream();
+		String type = getNormalizedContentType(headers.get("content-type"));
+		String filename = getFileName(headers);
+		if (filename == null) {
+			filename = subjectToFilename(subject, type, subjectFilenameCount++);
+		} else if (filename.startsWith("=?")) {
+			filename = decodeText(filename);
+		}
+		return newEntry(filename, type, headers);
+	}
+
+	private PathEntry newEntry(String filename, String type, Map<String, String> headers) throws IOException {
+		filename = filename.replace("\\", "/");
+		PathEntry next_entry = new PathEntry(getBasePath().getPath() + "/" + filename, PathEntry.COMPRESSEDFILE);
+		next_entry.setDateLastModified(date);
+		next_entry.setStatus(PathEntry.DIRTY);
+		next_entry.setCompressedSize(0);
+		next_entry.setSize(0);
+
+		InputStream decoded = part;
+		String encoding = headers.get("content-transfer-encoding");
+		if (encoding != null) {
+			try {
+				decoded = MimeUtility.decode(part, encoding.trim().toLowerCase());
+			} catch (MessagingException e) { // unknown encoding; as is
+			}
+		}
+		if (type.startsWith("text/plain")) {
+			instream = new Utf8BomInputStream(new InputStreamReader(decoded, getCharset(headers.get("content-type"))));
+		} else {
+			instream = decoded;
+		}
+		if (isCsumRequested()) {
+			setCsumListingNested(next_entry, instream);
+			part.skipToEnd();
+			next_entry.setCompressedSize(part.getCount());
+		}
+		partEntry = next_entry; // its compressed size is known once the part is read through
+		return next_entry;
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+		inf.close();
+	}
+
+	/*
+	 * Reads a line, or the first MAX_LINE bytes of it, with its line break; returns 0 at the end of the stream.
+	 */
+	private int readLine(byte[] buff) throws IOException {
+		int n = 0;
+		while (n < buff.length) {
+			if (inpos >= inlen) {
+				inlen = inf.read(inbuff);
+				inpos = 0;
+				if (inlen <= 0) {
+					inlen = 0;
+					break;
+				}
+			}
+			int end = Math.min(inlen, inpos + buff.length - n);
+			int i = inpos;
+			while (i < end && inbuff[i] != '\n') {
+				i++;
+			}
+			boolean eol = i < end;
+			if (eol) {
+				i++;
+			}
+			System.arraycopy(inbuff, inpos, buff, n, i - inpos);
+			n += i - inpos;
+			inpos = i;
+			if (eol) {
+				break;
+			}
+		}
+		return n;
+	}
+
+	private static int lengthWithoutEol(byte[] buff, int len) {
+		if (len > 0 && buff[len-1] == '\n') {
+			len--;
+			if (len > 0 && buff[len-1] == '\r') {
+				len--;
+			}
+		}
+		return len;
+	}
+
+	/*
+	 * Header names in lower case to their unfolded values; the first of the same name is kept.
+	 */
+	private Map<String, String> readHeaders() throws IOException {
+		Map<String, String> result = new HashMap<String, String>();
+		StringBuilder header = null;
+		boolean lineStart = true;
+		while (true) {
+			int n = readLine(linebuff);
+			if (n == 0) {
+				break;
+			}
+			String s = new String(linebuff, 0, lengthWithoutEol(linebuff, n), StandardCharsets.ISO_8859_1);
+			if (lineStart && s.length() == 0) {
+				break;
+			}
+			if (lineStart && s.charAt(0) != ' ' && s.charAt(0) != '\t') {
+				putHeader(result, header);
+				header = new StringBuilder();
+			}
+			if (header != null && header.length() + s.length() <= MAX_HEADER) {
+				header.append(s);
+			}
+			lineStart = linebuff[n-1] == '\n';
+		}
+		putHeader(result, header);
+		return result;
+	}
+
+	private static void putHeader(Map<String, String> headers, StringBuilder header) {
+		if (header == null) {
+			return;
+		}
+		int i = header.indexOf(":");
+		if (i <= 0) {
+			return;
+		}
+		String name = header.substring(0, i).trim().toLowerCase();
+		if (!headers.containsKey(name)) {
+			headers.put(name, header.substring(i+1).trim());
+		}
+	}
+
+	/**
+	 * The body of the part being listed, up to the next delimiter line; all the rest of the message if it
+	 * has a single part. The line break before a delimiter belongs to the delimiter.
+	 */
+	private class PartInputStream extends InputStream {
+		private final byte[] buff = new byte[MAX_LINE + 2];
+		private int pos = 0;
+		private int len = 0;
+		private byte[] pendingEol = new byte[2];
+		private int pendingEolLength = 0;
+		private boolean lineStart = true;
+		private boolean done = false;
+		private boolean last = false;
+		private long count = 0;
+
+		private boolean nextLine() throws IOException {
+			pos = 0;
+			len = 0;
+			if (done) {
+				return false;
+			}
+			boolean atLineStart = lineStart;
+			int n = readLine(linebuff);
+			if (n == 0) {
+				done = true;
+				last = true;
+				if (delimiter == null) {
+					System.arraycopy(pendingEol, 0, buff, 0, pendingEolLength);
+					len = pendingEolLength;
+					pendingEolLength = 0;
+					count += len;
+				}
+				return len > 0;
+			}
+			lineStart = linebuff[n-1] == '\n';
+			if (delimiter != null && atLineStart && isDelimiter(linebuff, n)) {
+				done = true;
+				last = isCloseDelimiter(linebuff, n);
+				return false;
+			}
+			System.arraycopy(pendingEol, 0, buff, 0, pendingEolLength);
+			len = pendingEolLength;
+			int m = lineStart ? lengthWithoutEol(linebuff, n) : n;
+			System.arraycopy(linebuff, 0, buff, len, m);
+			len += m;
+			count += len;
+			pendingEolLength = n - m;
+			System.arraycopy(linebuff, m, pendingEol, 0, pendingEolLength);
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			while (pos >= len) {
+				if (!nextLine()) {
+					return -1;
+				}
+			}
+			return buff[pos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int l) throws IOException {
+			if (l == 0) {
+				return 0;
+			}
+			while (pos >= len) {
+				if (!nextLine()) {
+					return -1;
+				}
+			}
+			int n = Math.min(l, len - pos);
+			System.arraycopy(buff, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		public void skipToEnd() throws IOException {
+			while (!done) {
+				nextLine();
+			}
+			pos = len;
+		}
+
+		/**
+		 * True if no part follows: ended by the close delimiter or the end of the stream.
+		 */
+		public boolean isLast() {
+			return last;
+		}
+
+		/**
+		 * Bytes of the body of this part as it was encoded, without the line break before the delimiter;
+		 * the same as Part.getSize() in EmlLister.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private boolean isDelimiter(byte[] line, int n) {
+		if (n < delimiter.length) {
+			return false;
+		}
+		for (int i=0; i<delimiter.length; i++) {
+			if (line[i] != delimiter[i]) {
+				return false;
+			}
+		}
+		int i = delimiter.length;
+		if (isCloseDelimiter(line, n)) {
+			i += 2;
+		}
+		for (; i<n; i++) {
+			if (line[i] != ' ' && line[i] != '\t' && line[i] != '\r' && line[i] != '\n') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isCloseDelimiter(byte[] line, int n) {
+		return n >= delimiter.length + 2 && line[delimiter.length] == '-' && line[delimiter.length + 1] == '-';
+	}
+
+	private static String getParameter(String header, String name) {
+		if (header == null) {
+			return null;
+		}
+		try {
+			return new ContentType(header).getParameter(name);
+		} catch (MessagingException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * Same as Part.getFileName(): the filename of the disposition, or else the name of the type.
+	 */
+	private static String getFileName(Map<String, String> headers) {
+		String result = null;
+		String disposition = headers.get("content-disposition");
+		if (disposition != null) {
+			try {
+				result = new ContentDisposition(disposition).getParameter("filename");
+			} catch (MessagingException e) {
+			}
+		}
+		if (result == null) {
+			result = getParameter(headers.get("content-type"), "name");
+		}
+		return result;
+	}
+
+	private static Charset getCharset(String contentType) {
+		String charset = getParameter(contentType, "charset");
+		if (charset != null) {
+			try {
+				return Charset.forName(MimeUtility.javaCharset(charset));
+			} catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+			}
+		}
+		return StandardCharsets.US_ASCII;
+	}
+
+	private static String decodeText(String text) {
+		if (text == null) {
+			return null;
+		}
+		try {
+			return MimeUtility.decodeText(text);
+		} catch (IOException e) {
+			return text;
+		}
+	}
+
+	private static long parseDate(String date) {
+		if (date == null) {
+			return 0L;
+		}
+		try {
+			return new MailDateFormat().parse(date).getTime();
+		} catch (ParseException e) {
+			return 0L;
+		}
+	}
+
+	private static String subjectToFilename(String subject, String type, int subjectFilenameCount) {
+		String ext;
+		if (type.startsWith("text/html")) {
+			ext = ".html";
+		} else if (type.startsWith("text/plain")) {
+			ext = ".txt";
+		} else {
+			ext = "";
+		}
+		String filename;
+		if (subjectFilenameCount == 1) {
+			filename = "Subject: " + subject + ext;
+		} else {
+			filename = "Subject: " + subject + " (" + subjectFilenameCount + ")" + ext;
+		}
+		return filename;
+	}
+
+	private static String getNormalizedContentType(String contentType) {
+		if (contentType == null) {
+			return "text/plain";
+		} else {
+			return contentType.toLowerCase();
+		}
+	}
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.n_i_e.dirtreedb.lister;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.poi.poifs.filesystem.DirectoryEntry;
+import org.apache.poi.poifs.filesystem.DocumentEntry;
+import org.apache.poi.poifs.filesystem.DocumentInputStream;
+import org.apache.poi.poifs.filesystem.Entry;
+import org.apache.poi.poifs.filesystem.NPOIFSFileSystem;
+
+import com.github.n_i_e.dirtreedb.Assertion;
+import com.github.n_i_e.dirtreedb.PathEntry;
+
+/**
+ * Lists the same entries as MsgLister, but reads the streams of the message through NPOIFSFileSystem
+ * block by block, where MAPIMessage loads all of them, attachments included, into memory. The format
+ * needs random access, so a message inside another archive is copied to a temporary file first.
+ */
+public class StreamingMsgLister extends AbstractArchiveLister {
+	private static final String ATTACH_PREFIX = "__attach_version1.0_#";
+	private static final String ATTACH_DATA = "__substg1.0_37010102";
+	private static final String PROPERTIES = "__properties_version1.0";
+	private static final int SUBJECT = 0x0037;
+	private static final int BODY = 0x1000;
+	private static final int ATTACH_FILENAME = 0x3704;
+	private static final int[] DATE_PROPERTIES = {0x0039, 0x3008, 0x3007}; // client submit, last modification, creation
+	private static final int MAX_STRING = 64*1024;
+	private static final Charset ANSI_CHARSET = Charset.forName("windows-1252"); // as POI takes 8 bit strings
+
+	private File file = null;
+	private boolean temporary = false;
+	private NPOIFSFileSystem fs;
+	private List<DirectoryEntry> attachments = null;
+	private int count = 0;
+	private long date = 0;
+	private InputStream instream = null;
+
+	public StreamingMsgLister(PathEntry basepath, InputStream inf) throws IOException {
+		super(basepath);
+		Assertion.assertNullPointerException(inf != null);
+		File toFile = File.createTempFile("DTDB", ".msg");
+		toFile.deleteOnExit();
+		try {
+			Files.copy(inf, toFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			toFile.delete();
+			throw e;
+		} finally {
+			inf.close();
+		}
+		open(toFile, true);
+	}
+
+	public StreamingMsgLister(PathEntry basepath, File contentpath) throws IOException {
+		super(basepath);
+		open(contentpath, false);
+	}
+
+	public StreamingMsgLister(PathEntry basepath) throws IOException {
+		this(basepath, new File(basepath.getPath()));
+		Assertion.assertAssertionError(basepath.isFile());
+	}
+
+	private void open(File file, boolean temporary) throws IOException {
+		this.file = file;
+		this.temporary = temporary;
+		try {
+			fs = new NPOIFSFileSystem(file, true);
+		} catch (IOException e) {
+			if (temporary) {
+				file.delete();
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		Assertion.assertNullPointerException(instream != null);
+		return new FilterInputStream(instream) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				StreamingMsgLister.this.close();
+			}
+		};
+	}
+
+	@Override
+	protected PathEntry getNext() throws IOException {
+		DirectoryEntry root = fs.getRoot();
+		if (attachments == null) {
+			String subject = readString(root, SUBJECT);
+			DocumentEntry body = getString(root, BODY);
+			if (subject == null || body == null) {
+				return null;
+			}
+			date = readDate(root);
+
+			String s = subjectToFilename(subject, "text/plain", 1);
+			s = s.replace("\\", "/");
+			PathEntry next_entry = new PathEntry(getBasePath().getPath() + "/" + s, PathEntry.COMPRESSEDFILE);
+			next_entry.setDateLastModified(date);
+			next_entry.setStatus(PathEntry.DIRTY);
+			next_entry.setCompressedSize(getLength(getText(body)));
+			next_entry.setSize(0);
+
+			instream = getText(body);
+			if (isCsumRequested()) {
+				setCsumListingNested(next_entry, instream);
+			}
+			attachments = getAttachments(root);
+			return next_entry;
+		}
+
+		DirectoryEntry part = null;
+		DocumentEntry data = null;
+		while (data == null) {
+			if (count >= attachments.size()) {
+				return null;
+			}
+			part = attachments.get(count);
+			data = getDocument(part, ATTACH_DATA);
+			if (data == null) { // an embedded message, not a file
+				count++;
+			}
+		}
+
+		String filename = readString(part, ATTACH_FILENAME);
+		if (filename == null) {
+			filename = String.valueOf(count);
+		}
+		filename = filename.replace("\\", "/");
+		if (filename.equals("")) {
+			filename = String.valueOf(count);
+		}
+
+		PathEntry next_entry = new PathEntry(getBasePath().getPath() + "/" + filename, PathEntry.COMPRESSEDFILE);
+		next_entry.setDateLastModified(date);
+		next_entry.setStatus(PathEntry.DIRTY);
+		next_entry.setCompressedSize(data.getSize());
+		next_entry.setSize(data.getSize());
+
+		instream = new DocumentInputStream(data);
+		if (isCsumRequested()) {
+			setCsumListingNested(next_entry, instream);
+		}
+		count++;
+		return next_entry;
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+		try {
+			fs.close();
+		} finally {
+			if (temporary) {
+				file.delete();
+			}
+		}
+	}
+
+	/*
+	 * Attachment storages in the order of their names, as MAPIMessage sorts them.
+	 */
+	private static List<DirectoryEntry> getAttachments(DirectoryEntry root) {
+		List<DirectoryEntry> result = new ArrayList<DirectoryEntry>();
+		Iterator<Entry> iter = root.getEntries();
+		while (iter.hasNext()) {
+			Entry e = iter.next();
+			if (e.isDirectoryEntry() && e.getName().startsWith(ATTACH_PREFIX)) {
+				result.add((DirectoryEntry)e);
+			}
+		}
+		Collections.sort(result, new Comparator<DirectoryEntry>() {
+			@Override
+			public int compare(DirectoryEntry e1, DirectoryEntry e2) {
+				return e1.getName().compareTo(e2.getName());
+			}
+		});
+		return result;
+	}
+
+	private static DocumentEntry getDocument(DirectoryEntry dir, String name) {
+		if (!dir.hasEntry(name)) {
+			return null;
+		}
+		try {
+			Entry e = dir.getEntry(name);
+			return e.isDocumentEntry() ? (DocumentEntry)e : null;
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * The string property id, in Unicode (001F) or else in 8 bit (001E).
+	 */
+	private static DocumentEntry getString(DirectoryEntry dir, int id) {
+		DocumentEntry result = getDocument(dir, String.format("__substg1.0_%04X001F", id));
+		if (result == null) {
+			result = getDocument(dir, String.format("__substg1.0_%04X001E", id));
+		}
+		return result;
+	}
+
+	private static Charset getCharset(DocumentEntry string) {
+		return string.getName().endsWith("001F") ? StandardCharsets.UTF_16LE : ANSI_CHARSET;
+	}
+
+	/*
+	 * The string as MsgLister gives it: UTF-8 with a BOM, without the NULs, as POI drops them all.
+	 */
+	private static Utf8BomInputStream getText(DocumentEntry string) throws IOException {
+		return new Utf8BomInputStream(new NulDroppingReader(
+				new InputStreamReader(new DocumentInputStream(string), getCharset(string))));
+	}
+
+	/*
+	 * Reads inf to the end and closes it; the compressed size of the body is the length of the text,
+	 * as in MsgLister, not that of the string in the message.
+	 */
+	private static long getLength(InputStream inf) throws IOException {
+		try {
+			byte[] buff = new byte[8*1024];
+			long result = 0;
+			int len;
+			while ((len = inf.read(buff)) >= 0) {
+				result += len;
+			}
+			return result;
+		} finally {
+			inf.close();
+		}
+	}
+
+	private static class NulDroppingReader extends FilterReader {
+		NulDroppingReader(Reader in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int c;
+			do {
+				c = in.read();
+			} while (c == '\0');
+			return c;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (true) {
+				int n = in.read(cbuf, off, len);
+				if (n < 0) {
+					return n;
+				}
+				int m = 0;
+				for (int i=0; i<n; i++) {
+					if (cbuf[off+i] != '\0') {
+						cbuf[off+m++] = cbuf[off+i];
+					}
+				}
+				if (m > 0) {
+					return m;
+				}
+			}
+		}
+	}
+
+	private static String readString(DirectoryEntry dir, int id) throws IOException {
+		DocumentEntry string = getString(dir, id);
+		if (string == null) {
+			return null;
+		}
+		byte[] bytes = readUpTo(string, MAX_STRING);
+		return new String(bytes, getCharset(string)).replace("\0", "");
+	}
+
+	private static byte[] readUpTo(DocumentEntry document, int limit) throws IOException {
+		InputStream inf = new DocumentInputStream(document);
+		try {
+			ByteArrayOutputStream result = new ByteArrayOutputStream(Math.min(document.getSize(), limit));
+			byte[] buff = new byte[4096];
+			int len;
+			while (result.size() < limit && (len = inf.read(buff, 0, Math.min(buff.length, limit - result.size()))) > 0) {
+				result.write(buff, 0, len);
+			}
+			return result.toByteArray();
+		} finally {
+			inf.close();
+		}
+	}
+
+	/*
+	 * From the fixed length properties of the message: a 32 byte header, then 16 bytes for each,
+	 * of the tag (type and id), flags and the value; times are FILETIME.
+	 */
+	private static long readDate(DirectoryEntry root) throws IOException {
+		DocumentEntry properties = getDocument(root, PROPERTIES);
+		if (properties == null) {
+			return 0L;
+		}
+		ByteBuffer buff = ByteBuffer.wrap(readUpTo(properties, MAX_STRING)).order(ByteOrder.LITTLE_ENDIAN);
+		for (int id: DATE_PROPERTIES) {
+			for (int off=32; off+16<=buff.limit(); off+=16) {
+				int tag = buff.getInt(off);
+				if ((tag & 0xFFFF) == 0x0040 && (tag >>> 16) == id) {
+					return buff.getLong(off + 8) / 10000 - 11644473600000L;
+				}
+			}
+		}
+		return 0L;
+	}
+
+	private static String subjectToFilename(String subject, String type, int subjectFilenameCount) {
+		String ext;
+		if (type.startsWith("text/html")) {
+			ext = ".html";
+		} else if (type.startsWith("text/plain")) {
+			ext = ".txt";
+		} else {
+			ext = "";
+		}
+		String filename;
+		if (subjectFilenameCount == 1) {
+			filename = "Subject: " + subject + ext;
+		} else {
+			filename = "Subject: " + subject + " (" + subjectFilenameCount + ")" + ext;
+		}
+		return filename;
+	}
+}
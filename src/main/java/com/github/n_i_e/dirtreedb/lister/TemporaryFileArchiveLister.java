@@ -16,17 +16,36 @@
 
 package com.github.n_i_e.dirtreedb.lister;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
 
 import com.github.n_i_e.dirtreedb.Assertion;
 import com.github.n_i_e.dirtreedb.PathEntry;
 
+/**
+ * Lists a nested archive whose lister needs random access (7z). Archives up to MEMORY_THRESHOLD
+ * bytes are read from memory; larger ones are copied to a temporary file, taken from a small pool
+ * of files reused from one archive to the next.
+ */
 public class TemporaryFileArchiveLister extends AbstractArchiveLister {
+	public static final int MEMORY_THRESHOLD = 4*1024*1024;
+	private static final int MAX_POOLED_FILES = 4;
+
+	private static final Deque<File> pool = new ArrayDeque<File>();
+	private static final AtomicLong bytesAvoided = new AtomicLong();
+
 	private PathEntryLister baselister;
+	private File toFile = null;
 
 	public TemporaryFileArchiveLister(PathEntry basepath, InputStream inf) throws IOException {
 		super(basepath);
@@ -34,24 +53,83 @@ public class TemporaryFileArchiveLister extends AbstractArchiveLister {
 		if (basepath.isFile()) {
 			inf.close();
 			baselister = PathEntryListerFactory.getInstance(basepath);
-		} else {
-			File toFile = File.createTempFile("DTDB", getBasenameWithSuffix(basepath));
-			Assertion.assertNullPointerException(toFile != null);
-			Assertion.assertAssertionError(toFile.canWrite());
-			toFile.deleteOnExit();
-			Files.copy(inf, toFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return;
+		}
+		try {
+			ByteArrayOutputStream head = new ByteArrayOutputStream(
+					(int)Math.min(Math.max(basepath.getSize(), 0) + 1, MEMORY_THRESHOLD + 1));
+			byte[] buff = new byte[64*1024];
+			int len;
+			while (head.size() <= MEMORY_THRESHOLD && (len = inf.read(buff)) >= 0) {
+				head.write(buff, 0, len);
+			}
+			if (head.size() <= MEMORY_THRESHOLD) {
+				byte[] contents = head.toByteArray();
+				baselister = PathEntryListerFactory.getInstance(basepath, new SeekableInMemoryByteChannel(contents));
+				if (baselister != null) {
+					bytesAvoided.addAndGet(contents.length);
+					return;
+				}
+			}
+			toFile = takeTemporaryFile();
+			try {
+				OutputStream outf = new BufferedOutputStream(new FileOutputStream(toFile), 1*1024*1024);
+				try {
+					head.writeTo(outf);
+					head = null;
+					while ((len = inf.read(buff)) >= 0) {
+						outf.write(buff, 0, len);
+					}
+				} finally {
+					outf.close();
+				}
+				baselister = PathEntryListerFactory.getInstance(basepath, toFile);
+			} catch (IOException e) {
+				returnTemporaryFile(toFile);
+				toFile = null;
+				throw e;
+			}
+		} finally {
 			inf.close();
-			baselister = PathEntryListerFactory.getInstance(basepath, toFile);
 		}
 	}
 
-	private static String getBasenameWithSuffix(PathEntry basepath) {
-		int i1 = basepath.getPath().lastIndexOf("\\")+1;
-		int i2 = basepath.getPath().lastIndexOf("/")+1;
-		if (i2>i1) {
-			i1 = i2;
+	private static File takeTemporaryFile() throws IOException {
+		synchronized (pool) {
+			File result = pool.poll();
+			if (result != null) {
+				return result;
+			}
 		}
-		return basepath.getPath().substring(i1);
+		File result = File.createTempFile("DTDB", ".archive");
+		Assertion.assertNullPointerException(result != null);
+		Assertion.assertAssertionError(result.canWrite());
+		result.deleteOnExit();
+		return result;
+	}
+
+	/*
+	 * Truncated before it is pooled, so that idle files take no disk space.
+	 */
+	private static void returnTemporaryFile(File file) {
+		synchronized (pool) {
+			if (pool.size() < MAX_POOLED_FILES) {
+				try {
+					new FileOutputStream(file).close();
+					pool.push(file);
+					return;
+				} catch (IOException e) { // still open somewhere; not pooled
+				}
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Bytes of nested archives read from memory that would have been written to temporary files.
+	 */
+	public static long getTemporaryFileBytesAvoided() {
+		return bytesAvoided.get();
 	}
 
 	@Override
@@ -71,6 +149,13 @@ public class TemporaryFileArchiveLister extends AbstractArchiveLister {
 	@Override
 	public void close() throws IOException {
 		super.close();
-		baselister.close();
+		try {
+			baselister.close();
+		} finally {
+			if (toFile != null) {
+				returnTemporaryFile(toFile);
+				toFile = null;
+			}
+		}
 	}
 }
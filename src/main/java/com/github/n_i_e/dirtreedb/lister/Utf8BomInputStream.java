@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.n_i_e.dirtreedb.lister;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Text from a Reader as UTF-8 with a BOM, as EmlLister and MsgLister give text bodies, encoded as it is read.
+ */
+class Utf8BomInputStream extends InputStream {
+	private static final int BUFFER_SIZE = 8*1024;
+
+	private final Reader reader;
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+	private ByteBuffer bytes = ByteBuffer.wrap(new byte[] {(byte)0xEF, (byte)0xBB, (byte)0xBF});
+	private boolean eof = false;
+
+	public Utf8BomInputStream(Reader reader) {
+		this.reader = reader;
+	}
+
+	private boolean fill() throws IOException {
+		if (eof) {
+			return false;
+		}
+		if (bytes.capacity() < BUFFER_SIZE * 4) {
+			bytes = ByteBuffer.allocate(BUFFER_SIZE * 4);
+		}
+		bytes.clear();
+		int n = reader.read(chars);
+		chars.flip();
+		encoder.encode(chars, bytes, n < 0);
+		if (n < 0) {
+			encoder.flush(bytes);
+			eof = true;
+		}
+		chars.compact();
+		bytes.flip();
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (!bytes.hasRemaining()) {
+			if (!fill()) {
+				return -1;
+			}
+		}
+		int n = Math.min(len, bytes.remaining());
+		bytes.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+}
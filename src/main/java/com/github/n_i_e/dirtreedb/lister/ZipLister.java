@@ -19,7 +19,6 @@ package com.github.n_i_e.dirtreedb.lister;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
-import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
@@ -36,10 +35,6 @@ public class ZipLister extends AbstractArchiveLister {
 
 	static {
 		PreferenceRW.addObserver(new IPreferenceObserver() {
-			@Override public void setDBFilePath(String dbFilePath) {}
-			@Override public void setExtensionAvailabilityMap(Map<String, Boolean> extensionAvailabilityMap) {}
-			@Override public void setNumCrawlingThreads(int numCrawlingThreads) {}
-			@Override public void setWindowsIdleSeconds(int windowsIdleSeconds) {}
 			@Override public void setCharset(String newvalue) {
 				ZipLister.setCharset(newvalue);
 			}
@@ -91,12 +86,18 @@ public class ZipLister extends AbstractArchiveLister {
 		next_entry.setStatus(PathEntry.DIRTY);
 		next_entry.setSize(z.getSize());
 		next_entry.setCompressedSize(z.getCompressedSize());
+		if (newtype == PathEntry.COMPRESSEDFILE && z.getCrc() >= 0) {
+			next_entry.setNativeCrc(z.getCrc());
+		}
 		if (isCsumRequested() && newtype == PathEntry.COMPRESSEDFILE) {
 			try {
-				next_entry.setCsum(instream);
+				setCsumListingNested(next_entry, instream);
 			} catch (IOException e) { // possibly encrypted zip
 				next_entry.setStatus(PathEntry.NOACCESS);
 			}
+			if (next_entry.isNativeCrcNull() && z.getCrc() >= 0) { // from the data descriptor, once read
+				next_entry.setNativeCrc(z.getCrc());
+			}
 		}
 		if (next_entry.getSize() < 0) {
 			next_entry.setSize(0);
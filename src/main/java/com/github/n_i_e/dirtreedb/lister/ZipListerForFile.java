@@ -18,11 +18,25 @@ package com.github.n_i_e.dirtreedb.lister;
 
 import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -30,22 +44,23 @@ import com.github.n_i_e.dirtreedb.Assertion;
 import com.github.n_i_e.dirtreedb.IPreferenceObserver;
 import com.github.n_i_e.dirtreedb.PathEntry;
 import com.github.n_i_e.dirtreedb.PreferenceRW;
+import com.github.n_i_e.dirtreedb.ThrottlePolicyFactory;
 
 public class ZipListerForFile extends AbstractArchiveLister {
 
 	private ZipFile zipfile;
 	private Enumeration<? extends ZipEntry> zipentries;
 	private static String charset = "windows-31j";
+	private static int numSchedulerPermits = PreferenceRW.DEFAULT_NUM_SCHEDULER_PERMITS;
 
 	static {
 		PreferenceRW.addObserver(new IPreferenceObserver() {
-			@Override public void setDBFilePath(String dbFilePath) {}
-			@Override public void setExtensionAvailabilityMap(Map<String, Boolean> extensionAvailabilityMap) {}
-			@Override public void setNumCrawlingThreads(int numCrawlingThreads) {}
-			@Override public void setWindowsIdleSeconds(int windowsIdleSeconds) {}
 			@Override public void setCharset(String newvalue) {
 				ZipListerForFile.setCharset(newvalue);
 			}
+			@Override public void setNumSchedulerPermits(int numSchedulerPermits) {
+				ZipListerForFile.numSchedulerPermits = numSchedulerPermits;
+			}
 		});
 	}
 
@@ -99,46 +114,225 @@ public class ZipListerForFile extends AbstractArchiveLister {
 		return new BufferedInputStreamWithCascadingClose(zipfile.getInputStream(next_zip_entry), 1*1024*1024);
 	}
 
+	/**
+	 * Looks the member up in the central directory, instead of walking the entries up to it;
+	 * a name that had backslashes in the archive is walked to as before.
+	 */
 	@Override
-	protected PathEntry getNext() throws IOException {
+	public InputStream getInputStream(PathEntry entry) throws IOException {
+		String prefix = getBasePath().getPath() + "/";
+		if (entry.getPath().startsWith(prefix)) {
+			ZipEntry z = zipfile.getEntry(entry.getPath().substring(prefix.length()));
+			if (z != null && !z.isDirectory()) {
+				return new BufferedInputStreamWithCascadingClose(zipfile.getInputStream(z), 1*1024*1024);
+			}
+		}
+		return super.getInputStream(entry);
+	}
+
+	/*
+	 * With csum requested, the members of a zip with at least PARALLEL_MIN_MEMBERS of them are
+	 * decompressed and hashed on a shared pool, up to twice its threads ahead of the one returned;
+	 * they are still returned in archive order. ZipFile reads independent entries concurrently.
+	 * The pool runs no more threads than the scheduler permits, scaled by the crawler capacity
+	 * as the crawling threads are, so a busy machine is not loaded behind the throttling's back;
+	 * with one thread the members are hashed in the lister's own.
+	 */
+	private static final int NUM_HASH_THREADS = Runtime.getRuntime().availableProcessors();
+	private static final int PARALLEL_MIN_MEMBERS = 16;
+
+	private static ThreadPoolExecutor hashPool = null;
+
+	private static synchronized ThreadPoolExecutor getHashPool(int numThreads) {
+		if (hashPool == null) {
+			hashPool = new ThreadPoolExecutor(NUM_HASH_THREADS, NUM_HASH_THREADS, 0L, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ZipListerForFile");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		if (hashPool.getCorePoolSize() != numThreads) {
+			hashPool.setCorePoolSize(numThreads);
+		}
+		return hashPool;
+	}
+
+	private int getNumHashThreads() {
+		if (!isCsumRequested() || NUM_HASH_THREADS <= 1 || zipfile.size() < PARALLEL_MIN_MEMBERS) {
+			return 1;
+		}
+		return Math.min(NUM_HASH_THREADS, ThrottlePolicyFactory.scale(numSchedulerPermits));
+	}
+
+	private volatile boolean closing = false;
+
+	/*
+	 * A member stream that fails once close() has begun, so that a member being hashed on the pool
+	 * stops at its next read instead of being read to the end.
+	 */
+	private class AbortableInputStream extends FilterInputStream {
+		AbortableInputStream(InputStream in) {
+			super(in);
+		}
+
+		private void checkClosing() throws InterruptedIOException {
+			if (closing) {
+				throw new InterruptedIOException("!! lister closed: " + getBasePath().getPath());
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			checkClosing();
+			return super.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			checkClosing();
+			return super.read(b, off, len);
+		}
+	}
+
+	private class Member implements Callable<Member> {
+		private final ZipEntry zipEntry;
+		private final PathEntry entry;
+		private Map<String, List<PathEntry>> nestedListings = null;
+		private Future<Member> future = null;
+		private final AtomicBoolean started = new AtomicBoolean(false); // by call(), or by close() to keep it from starting
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		Member(ZipEntry zipEntry) {
+			this.zipEntry = zipEntry;
+			int newtype = zipEntry.isDirectory() ? PathEntry.COMPRESSEDFOLDER : PathEntry.COMPRESSEDFILE;
+			String s = zipEntry.getName();
+			s = s.replace("\\", "/");
+			entry = new PathEntry(getBasePath().getPath() + "/" + s, newtype);
+			entry.setDateLastModified(zipEntry.getTime());
+			entry.setStatus(PathEntry.DIRTY);
+			entry.setSize(zipEntry.getSize());
+			entry.setCompressedSize(zipEntry.getCompressedSize());
+			if (entry.getSize() < 0) {
+				entry.setSize(0);
+			}
+			if (entry.getCompressedSize() < 0) {
+				entry.setCompressedSize(entry.getSize());
+			}
+			if (entry.isCompressedFile() && zipEntry.getCrc() >= 0) {
+				entry.setNativeCrc(zipEntry.getCrc());
+			}
+		}
+
+		@Override
+		public Member call() {
+			if (!started.compareAndSet(false, true)) {
+				return this; // closed before it started
+			}
+			try {
+				if (entry.isCompressedFile() && !isCsumDeferred(entry)) {
+					try {
+						InputStream inf = new AbortableInputStream(zipfile.getInputStream(zipEntry));
+						try {
+							nestedListings = hashListingNested(entry, inf);
+						} finally {
+							inf.close();
+						}
+					} catch (IOException e) { // possibly encrypted zip
+						entry.setStatus(PathEntry.NOACCESS);
+					}
+				}
+			} finally {
+				done.countDown();
+			}
+			return this;
+		}
+	}
+
+	private final Deque<Member> hashing = new ArrayDeque<Member>();
+
+	private ZipEntry nextZipEntry() {
 		if (! zipentries.hasMoreElements()) {
 			return null;
 		}
 		while (true) {
 			try {
-				next_zip_entry = zipentries.nextElement();
-				break;
+				return zipentries.nextElement();
 			} catch (IllegalArgumentException e) {
 			}
 		}
-		int newtype = next_zip_entry.isDirectory() ? PathEntry.COMPRESSEDFOLDER : PathEntry.COMPRESSEDFILE;
-		String s = next_zip_entry.getName();
-		s = s.replace("\\", "/");
-		PathEntry next_entry = new PathEntry(getBasePath().getPath() + "/" + s, newtype);
-		next_entry.setDateLastModified(next_zip_entry.getTime());
-		next_entry.setStatus(PathEntry.DIRTY);
-		next_entry.setSize(next_zip_entry.getSize());
-		next_entry.setCompressedSize(next_zip_entry.getCompressedSize());
-		if (isCsumRequested() && newtype == PathEntry.COMPRESSEDFILE) {
+	}
+
+	@Override
+	protected PathEntry getNext() throws IOException {
+		Member m;
+		int numThreads = getNumHashThreads();
+		if (numThreads > 1 || !hashing.isEmpty()) { // those submitted before are returned first
+			ZipEntry z;
+			while (numThreads > 1 && hashing.size() < numThreads * 2 && (z = nextZipEntry()) != null) {
+				Member submitted = new Member(z);
+				submitted.future = getHashPool(numThreads).submit(submitted);
+				hashing.add(submitted);
+			}
+			if (hashing.isEmpty()) {
+				return null;
+			}
 			try {
-				next_entry.setCsumAndClose(zipfile.getInputStream(next_zip_entry));
-			} catch (IOException e) { // possibly encrypted zip
-				next_entry.setStatus(PathEntry.NOACCESS);
+				m = hashing.poll().future.get();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("!! interrupted while hashing " + getBasePath().getPath());
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			}
+		} else {
+			ZipEntry z = nextZipEntry();
+			if (z == null) {
+				return null;
+			}
+			m = new Member(z);
+			if (isCsumRequested()) {
+				m.call();
 			}
 		}
-		if (next_entry.getSize() < 0) {
-			next_entry.setSize(0);
-		}
-		if (next_entry.getCompressedSize() < 0) {
-			next_entry.setCompressedSize(next_entry.getSize());
-		}
-		return next_entry;
+		next_zip_entry = m.zipEntry;
+		setNestedListings(m.nestedListings);
+		return m.entry;
 	}
 
+	/**
+	 * Members not yet started are cancelled, and those being hashed are waited for, stopping at their
+	 * next read, before the zipfile is closed under them. A listing exception is thrown after that.
+	 */
 	@Override
 	public void close() throws IOException {
-		super.close();
-		zipfile.close();
+		try {
+			closing = true;
+			boolean interrupted = false;
+			for (Member m: hashing) {
+				if (m.started.compareAndSet(false, true)) {
+					m.future.cancel(false);
+					continue;
+				}
+				while (true) {
+					try {
+						m.done.await();
+						break;
+					} catch (InterruptedException e) {
+						interrupted = true; // wait on; it stops at its next read
+					}
+				}
+			}
+			hashing.clear();
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			zipfile.close();
+		} finally {
+			super.close();
+		}
 	}
 
 }
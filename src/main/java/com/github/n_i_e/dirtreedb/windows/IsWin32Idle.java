@@ -16,8 +16,6 @@
 
 package com.github.n_i_e.dirtreedb.windows;
 
-import java.util.Map;
-
 import com.github.n_i_e.dirtreedb.IPreferenceObserver;
 import com.github.n_i_e.dirtreedb.PreferenceRW;
 
@@ -27,13 +25,9 @@ public class IsWin32Idle {
 
 	static {
 		PreferenceRW.addObserver(new IPreferenceObserver() {
-			@Override public void setDBFilePath(String dbFilePath) {}
-			@Override public void setExtensionAvailabilityMap(Map<String, Boolean> extensionAvailabilityMap) {}
-			@Override public void setNumCrawlingThreads(int numCrawlingThreads) {}
 			@Override public void setWindowsIdleSeconds(int windowsIdleSeconds) {
 				IsWin32Idle.setWindowsIdleSeconds(windowsIdleSeconds);
 			}
-			@Override public void setCharset(String newvalue) {}
 		});
 	}
 
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.n_i_e.dirtreedb.windows;
+
+import com.github.n_i_e.dirtreedb.IThrottlePolicy;
+
+/**
+ * All-or-nothing for the maintainer: full speed while the user has been idle for WindowsIdleSeconds,
+ * stop otherwise. Crawling threads are not throttled; they serve what the user asked for.
+ */
+public class Win32IdleThrottlePolicy implements IThrottlePolicy {
+	@Override
+	public double getMaintainerCapacity() {
+		return IsWin32Idle.isWin32Idle() ? 1.0 : 0.0;
+	}
+
+	@Override
+	public double getCrawlerCapacity() {
+		return 1.0;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.n_i_e.dirtreedb;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class ContentDefinedChunkerTest extends TestCase {
+
+	public ContentDefinedChunkerTest(String name) {
+		super(name);
+	}
+
+	private static byte[] randomBytes(int size) {
+		byte[] result = new byte[size];
+		new Random(1).nextBytes(result);
+		return result;
+	}
+
+	public void testChunkSizes() throws Exception {
+		byte[] data = randomBytes(4*1024*1024);
+		List<ContentDefinedChunker.Chunk> chunks = ContentDefinedChunker.chunk(new ByteArrayInputStream(data));
+		long offset = 0;
+		for (int i=0; i<chunks.size(); i++) {
+			ContentDefinedChunker.Chunk c = chunks.get(i);
+			assertEquals(offset, c.getOffset());
+			assertTrue(c.getLength() <= ContentDefinedChunker.MAX_SIZE);
+			if (i < chunks.size() - 1) {
+				assertTrue(c.getLength() >= ContentDefinedChunker.MIN_SIZE);
+			}
+			offset += c.getLength();
+		}
+		assertEquals(data.length, offset);
+	}
+
+	public void testSplitUpdates() throws Exception {
+		byte[] data = randomBytes(1024*1024);
+		ContentDefinedChunker chunker = new ContentDefinedChunker();
+		for (int off=0; off<data.length; off+=1000) {
+			chunker.update(data, off, Math.min(1000, data.length - off));
+		}
+		List<ContentDefinedChunker.Chunk> chunks1 = chunker.finish();
+		List<ContentDefinedChunker.Chunk> chunks2 = ContentDefinedChunker.chunk(new ByteArrayInputStream(data));
+		assertEquals(chunks2.size(), chunks1.size());
+		for (int i=0; i<chunks1.size(); i++) {
+			assertEquals(chunks2.get(i).getHash(), chunks1.get(i).getHash());
+			assertEquals(chunks2.get(i).getLength(), chunks1.get(i).getLength());
+		}
+	}
+
+	public void testInsertionKeepsMostChunks() throws Exception {
+		byte[] data = randomBytes(4*1024*1024);
+		byte[] modified = new byte[data.length + 100];
+		int at = data.length / 2;
+		System.arraycopy(data, 0, modified, 0, at);
+		System.arraycopy(data, at, modified, at + 100, data.length - at);
+
+		Set<Long> hashes = new HashSet<Long>();
+		for (ContentDefinedChunker.Chunk c: ContentDefinedChunker.chunk(new ByteArrayInputStream(data))) {
+			hashes.add(c.getHash());
+		}
+		long shared = 0;
+		for (ContentDefinedChunker.Chunk c: ContentDefinedChunker.chunk(new ByteArrayInputStream(modified))) {
+			if (hashes.contains(c.getHash())) {
+				shared += c.getLength();
+			}
+		}
+		assertTrue(shared >= data.length - 2 * ContentDefinedChunker.MAX_SIZE);
+	}
+}
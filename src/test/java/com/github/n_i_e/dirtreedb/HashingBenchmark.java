@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.n_i_e.dirtreedb;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares local file hashing paths; run by hand (not a unit test):
+ * java -cp ... com.github.n_i_e.dirtreedb.HashingBenchmark [megabytes] [iterations]
+ * Run it twice on a file larger than RAM to see cold-cache numbers.
+ */
+public class HashingBenchmark {
+
+	private interface Method {
+		byte[] digest(File file) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		File file = File.createTempFile("HashingBenchmark", ".bin");
+		file.deleteOnExit();
+		OutputStream outf = new FileOutputStream(file);
+		try {
+			byte[] buff = new byte[1024*1024];
+			Random random = new Random(0);
+			for (int i=0; i<megabytes; i++) {
+				random.nextBytes(buff);
+				outf.write(buff);
+			}
+		} finally {
+			outf.close();
+		}
+
+		byte[] expected = null;
+		String[] names = {"stream4k", "stream", "direct", "mapped"};
+		Method[] methods = {
+			new Method() { // the former PathEntry.setCsum() loop
+				@Override
+				public byte[] digest(File file) throws Exception {
+					MessageDigest md = MessageDigest.getInstance("MD5");
+					InputStream inf = new BufferedInputStream(new FileInputStream(file), 1*1024*1024);
+					try {
+						byte[] buff = new byte[4096];
+						int len;
+						while ((len = inf.read(buff, 0, buff.length)) >= 0) {
+							md.update(buff, 0, len);
+						}
+					} finally {
+						inf.close();
+					}
+					return md.digest();
+				}
+			},
+			new Method() {
+				@Override
+				public byte[] digest(File file) throws Exception {
+					InputStream inf = new BufferedInputStream(new FileInputStream(file), 1*1024*1024);
+					try {
+						return PipelinedHasher.digest("MD5", inf, null).getDigest();
+					} finally {
+						inf.close();
+					}
+				}
+			},
+			new Method() {
+				@Override
+				public byte[] digest(File file) throws Exception {
+					return PipelinedHasher.digestDirect("MD5", file, null).getDigest();
+				}
+			},
+			new Method() {
+				@Override
+				public byte[] digest(File file) throws Exception {
+					return PipelinedHasher.digestMapped("MD5", file, null).getDigest();
+				}
+			},
+		};
+
+		for (int m=0; m<methods.length; m++) {
+			methods[m].digest(file); // warm up
+			long best = Long.MAX_VALUE;
+			for (int i=0; i<iterations; i++) {
+				long t0 = System.nanoTime();
+				byte[] digest = methods[m].digest(file);
+				best = Math.min(best, System.nanoTime() - t0);
+				if (expected == null) {
+					expected = digest;
+				} else if (!Arrays.equals(expected, digest)) {
+					throw new AssertionError("!! digest mismatch: " + names[m]);
+				}
+			}
+			System.out.println(String.format("%-10s %8.1f MB/s", names[m], megabytes * 1e9 / best));
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.n_i_e.dirtreedb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import com.github.n_i_e.dirtreedb.lister.StreamingEmlLister;
+
+import junit.framework.TestCase;
+
+public class StreamingEmlListerTest extends TestCase {
+
+	String message1 = "Subject: test\n\ntest\n";
+
+	public StreamingEmlListerTest(String name) {
+		super(name);
+	}
+
+	private static byte[] readAll(InputStream inf) throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] buff = new byte[4096];
+		int len;
+		while ((len = inf.read(buff)) >= 0) {
+			result.write(buff, 0, len);
+		}
+		return result.toByteArray();
+	}
+
+	public void testSinglePart() throws IOException {
+		InputStream inf = new ByteArrayInputStream(message1.getBytes());
+		PathEntry p0 = new PathEntry("test.eml", PathEntry.FILE);
+		StreamingEmlLister t = new StreamingEmlLister(p0, inf);
+		assertTrue(t.hasNext());
+		PathEntry p = t.next();
+		assertEquals("test.eml/Subject: test.txt", p.getPath());
+		assertFalse(t.hasNext());
+		t.close();
+	}
+
+	public void testMultipart() throws IOException {
+		byte[] data = new byte[100000];
+		new Random(1).nextBytes(data);
+		String message2 = "Subject: test\r\n"
+				+ "Content-Type: multipart/mixed;\r\n boundary=\"XX\"\r\n"
+				+ "\r\n"
+				+ "preamble\r\n"
+				+ "--XX\r\n"
+				+ "Content-Type: text/plain; charset=us-ascii\r\n"
+				+ "\r\n"
+				+ "line1\r\nline2\r\n"
+				+ "--XX\r\n"
+				+ "Content-Type: application/octet-stream; name=\"data.bin\"\r\n"
+				+ "Content-Transfer-Encoding: base64\r\n"
+				+ "\r\n"
+				+ Base64.getMimeEncoder().encodeToString(data) + "\r\n"
+				+ "--XX--\r\n"
+				+ "epilogue\r\n";
+		PathEntry p0 = new PathEntry("test.eml", PathEntry.FILE);
+		StreamingEmlLister t = new StreamingEmlLister(p0, new ByteArrayInputStream(message2.getBytes("US-ASCII")));
+
+		assertTrue(t.hasNext());
+		PathEntry p1 = t.next();
+		assertEquals("test.eml/Subject: test.txt", p1.getPath());
+		byte[] text = readAll(t.getInputStream());
+		assertTrue(Arrays.equals("\uFEFFline1\r\nline2".getBytes("UTF-8"), text));
+
+		assertTrue(t.hasNext());
+		PathEntry p2 = t.next();
+		assertEquals("test.eml/data.bin", p2.getPath());
+		assertTrue(Arrays.equals(data, readAll(t.getInputStream())));
+
+		assertFalse(t.hasNext());
+		t.close();
+	}
+
+	public void testCompressedSize() throws IOException {
+		String message3 = "Subject: test\r\n"
+				+ "Content-Type: multipart/mixed; boundary=\"XX\"\r\n"
+				+ "\r\n"
+				+ "--XX\r\n"
+				+ "Content-Type: text/plain; charset=us-ascii\r\n"
+				+ "\r\n"
+				+ "line1\r\nline2\r\n"
+				+ "--XX\r\n"
+				+ "Content-Type: application/octet-stream; name=\"data.bin\"\r\n"
+				+ "\r\n"
+				+ "0123456789\r\n"
+				+ "--XX--\r\n";
+		for (boolean csum: new boolean[] {true, false}) {
+			PathEntry p0 = new PathEntry("test.eml", PathEntry.FILE);
+			StreamingEmlLister t = new StreamingEmlLister(p0, new ByteArrayInputStream(message3.getBytes("US-ASCII")));
+			t.setCsumRequested(csum);
+			PathEntry p1 = t.next();
+			PathEntry p2 = t.next();
+			assertFalse(t.hasNext());
+			t.close();
+			assertEquals(12, p1.getCompressedSize()); // as Part.getSize(): without the line break before the delimiter
+			assertEquals(10, p2.getCompressedSize());
+		}
+
+		PathEntry p0 = new PathEntry("test.eml", PathEntry.FILE);
+		StreamingEmlLister t = new StreamingEmlLister(p0, new ByteArrayInputStream(message1.getBytes()));
+		PathEntry p1 = t.next();
+		assertFalse(t.hasNext());
+		t.close();
+		assertEquals(5, p1.getCompressedSize()); // as Message.getSize(): all the body
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.n_i_e.dirtreedb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.poi.poifs.filesystem.DirectoryEntry;
+import org.apache.poi.poifs.filesystem.NPOIFSFileSystem;
+
+import com.github.n_i_e.dirtreedb.lister.StreamingMsgLister;
+
+import junit.framework.TestCase;
+
+public class StreamingMsgListerTest extends TestCase {
+
+	public StreamingMsgListerTest(String name) {
+		super(name);
+	}
+
+	private static byte[] readAll(InputStream inf) throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] buff = new byte[4096];
+		int len;
+		while ((len = inf.read(buff)) >= 0) {
+			result.write(buff, 0, len);
+		}
+		return result.toByteArray();
+	}
+
+	private static void putString(DirectoryEntry dir, int id, String value) throws IOException {
+		dir.createDocument(String.format("__substg1.0_%04X001F", id),
+				new ByteArrayInputStream(value.getBytes("UTF-16LE")));
+	}
+
+	/*
+	 * A message of a subject, a text body ending in a NUL, and one attachment.
+	 */
+	private static File writeMessage(byte[] attachment) throws IOException {
+		NPOIFSFileSystem fs = new NPOIFSFileSystem();
+		DirectoryEntry root = fs.getRoot();
+		putString(root, 0x0037, "test");
+		putString(root, 0x1000, "body\u00e9\r\n\0");
+		DirectoryEntry attach = root.createDirectory("__attach_version1.0_#00000000");
+		putString(attach, 0x3704, "data.bin");
+		attach.createDocument("__substg1.0_37010102", new ByteArrayInputStream(attachment));
+		File result = File.createTempFile("DTDB", ".msg");
+		result.deleteOnExit();
+		OutputStream outf = new FileOutputStream(result);
+		try {
+			fs.writeFilesystem(outf);
+		} finally {
+			outf.close();
+			fs.close();
+		}
+		return result;
+	}
+
+	public void testBodyAndAttachment() throws IOException {
+		byte[] data = new byte[100000];
+		new Random(1).nextBytes(data);
+		File file = writeMessage(data);
+		byte[] text = "\uFEFFbody\u00e9\r\n".getBytes("UTF-8");
+
+		for (boolean csum: new boolean[] {true, false}) {
+			PathEntry p0 = new PathEntry("test.msg", PathEntry.FILE);
+			StreamingMsgLister t = new StreamingMsgLister(p0, file);
+			t.setCsumRequested(csum);
+
+			assertTrue(t.hasNext());
+			PathEntry p1 = t.next();
+			assertEquals("test.msg/Subject: test.txt", p1.getPath());
+			assertEquals(text.length, p1.getCompressedSize()); // as MsgLister: UTF-8 with a BOM, not UTF-16
+			if (!csum) {
+				assertTrue(Arrays.equals(text, readAll(t.getInputStream())));
+			}
+
+			assertTrue(t.hasNext());
+			PathEntry p2 = t.next();
+			assertEquals("test.msg/data.bin", p2.getPath());
+			assertEquals(data.length, p2.getCompressedSize());
+			assertEquals(data.length, p2.getSize());
+			if (!csum) {
+				assertTrue(Arrays.equals(data, readAll(t.getInputStream())));
+			}
+
+			assertFalse(t.hasNext());
+			t.close();
+		}
+	}
+}
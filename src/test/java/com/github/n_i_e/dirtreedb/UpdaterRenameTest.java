@@ -0,0 +1,241 @@
+/*
+ * Copyright 2015 Namihiko Matsumura (https://github.com/n-i-e/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.n_i_e.dirtreedb;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.github.n_i_e.dirtreedb.lister.DirLister;
+
+import junit.framework.TestCase;
+
+public class UpdaterRenameTest extends TestCase {
+
+	public UpdaterRenameTest(String name) {
+		super(name);
+	}
+
+	/*
+	 * Records the writes instead of passing them on to a DB.
+	 */
+	private static class RecordingUpdater extends Updater {
+		List<String> moved = new ArrayList<String>();
+		List<String> inserted = new ArrayList<String>();
+		List<String> orphanized = new ArrayList<String>();
+		List<DBPathEntry> rows = new ArrayList<DBPathEntry>(); // returned by any query
+		List<Object> bound = new ArrayList<Object>();
+
+		RecordingUpdater() {
+			super(null);
+		}
+
+		@Override
+		public PreparedStatement prepareStatement(String sql) {
+			return (PreparedStatement)Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] {PreparedStatement.class}, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					if (method.getName().startsWith("set")) {
+						bound.add(args[1]);
+					} else if (method.getName().equals("executeQuery")) {
+						return newResultSet();
+					}
+					return null;
+				}
+			});
+		}
+
+		private ResultSet newResultSet() {
+			return (ResultSet)Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] {ResultSet.class}, new InvocationHandler() {
+				private int row = -1;
+
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					if (method.getName().equals("next")) {
+						return ++row < rows.size();
+					} else if (method.getName().equals("getRow")) {
+						return row;
+					}
+					return null;
+				}
+			});
+		}
+
+		@Override
+		public DBPathEntry rsToPathEntry(ResultSet rs, String prefix) throws SQLException {
+			return rows.get(rs.getRow());
+		}
+
+		@Override
+		public void setDateLastModified(PreparedStatement ps, int i, long datelastmodified) throws SQLException {
+			ps.setString(i, "date " + datelastmodified); // as SQLiteDirTreeDB binds TEXT
+		}
+
+		@Override
+		public int moveSubtree(DBPathEntry entry, DBPathEntry newparent, String newpath) {
+			moved.add(entry.getPath() + " -> " + newpath);
+			return 1;
+		}
+
+		@Override
+		public void insert(DBPathEntry basedir, PathEntry newentry) {
+			inserted.add(newentry.getPath());
+		}
+
+		@Override
+		public void orphanize(DBPathEntry entry) {
+			orphanized.add(entry.getPath());
+		}
+
+		@Override
+		public void update(DBPathEntry oldentry, PathEntry newentry) {
+		}
+
+		@Override
+		public void updateStatuses(Iterator<DBPathEntry> entries, int newstatus) {
+		}
+
+		@Override
+		public boolean isFileInodeAvailable() {
+			return false;
+		}
+	}
+
+	private static class FixedLister extends DirLister {
+		private Iterator<PathEntry> iter;
+
+		FixedLister(PathEntry basepath, File fileobj, List<PathEntry> entries) throws FileNotFoundException {
+			super(basepath, fileobj);
+			iter = entries.iterator();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return iter.hasNext();
+		}
+
+		@Override
+		public PathEntry next() {
+			return iter.next();
+		}
+	}
+
+	private static PathEntry newFile(String path, long size, long date, int csum) {
+		PathEntry result = new PathEntry(path, PathEntry.FILE);
+		result.setSize(size);
+		result.setCompressedSize(size);
+		result.setDateLastModified(date);
+		result.setCsum(csum);
+		result.setStatus(PathEntry.CLEAN);
+		return result;
+	}
+
+	private static DBPathEntry newRow(String path, long pathid, long parentid, long size, long date, int csum) {
+		DBPathEntry result = new DBPathEntry(path, PathEntry.FILE, pathid, parentid, 1);
+		result.setSize(size);
+		result.setCompressedSize(size);
+		result.setDateLastModified(date);
+		result.setCsum(csum);
+		return result;
+	}
+
+	public void testRenameWithinFolder() throws Exception {
+		File tmpdir = new File(System.getProperty("java.io.tmpdir"));
+		DBPathEntry folder = new DBPathEntry("C:\\dir\\", PathEntry.FOLDER, 10, 1, 1);
+		DBPathEntry oldchild = newRow("C:\\dir\\a.txt", 11, 10, 100, 1400000000000L, 1234);
+		Map<String, DBPathEntry> oldfolder = new HashMap<String, DBPathEntry>();
+		oldfolder.put(oldchild.getPath(), oldchild);
+		List<PathEntry> listed = new ArrayList<PathEntry>();
+		listed.add(newFile("C:\\dir\\b.txt", 100, 1400000000000L, 1234));
+
+		RecordingUpdater u = new RecordingUpdater();
+		u.getDispatcher().dispatchFolderListCore(folder, tmpdir, oldfolder, new PathEntry(folder),
+				new FixedLister(folder, tmpdir, listed));
+
+		assertEquals(1, u.moved.size());
+		assertEquals("C:\\dir\\a.txt -> C:\\dir\\b.txt", u.moved.get(0));
+		assertEquals(0, u.inserted.size());
+		assertEquals(0, u.orphanized.size());
+		assertEquals(0, oldfolder.size());
+	}
+
+	public void testNewFileInserted() throws Exception {
+		File tmpdir = new File(System.getProperty("java.io.tmpdir"));
+		DBPathEntry folder = new DBPathEntry("C:\\dir\\", PathEntry.FOLDER, 10, 1, 1);
+		DBPathEntry oldchild = newRow("C:\\dir\\a.txt", 11, 10, 100, 1400000000000L, 1234);
+		Map<String, DBPathEntry> oldfolder = new HashMap<String, DBPathEntry>();
+		oldfolder.put(oldchild.getPath(), oldchild);
+		List<PathEntry> listed = new ArrayList<PathEntry>();
+		listed.add(newFile("C:\\dir\\b.txt", 200, 1400000000000L, 1234));
+
+		RecordingUpdater u = new RecordingUpdater();
+		u.getDispatcher().dispatchFolderListCore(folder, tmpdir, oldfolder, new PathEntry(folder),
+				new FixedLister(folder, tmpdir, listed));
+
+		assertEquals(0, u.moved.size());
+		assertEquals(1, u.inserted.size());
+		assertEquals(1, u.orphanized.size());
+		assertEquals("C:\\dir\\a.txt", u.orphanized.get(0));
+	}
+
+	/*
+	 * A file moved here from another folder, whose row was orphanized when that folder was listed,
+	 * is found by the DB-wide search for gone rows.
+	 */
+	private RecordingUpdater moveAcrossFolders(int oldcsum) throws Exception {
+		File tmpdir = new File(System.getProperty("java.io.tmpdir"));
+		DBPathEntry folder = new DBPathEntry("C:\\dir2\\", PathEntry.FOLDER, 20, 1, 1);
+		List<PathEntry> listed = new ArrayList<PathEntry>();
+		listed.add(newFile("C:\\dir2\\a.txt", 100, 1400000000000L, 1234));
+
+		RecordingUpdater u = new RecordingUpdater();
+		u.rows.add(newRow("C:\\dir1\\a.txt", 11, 10, 100, 1400000000000L, oldcsum));
+		u.orphansPending = true;
+		Updater.Dispatcher d = u.getDispatcher();
+		d.setReachableRoots(null);
+		d.getReachableRoots().put(1L, tmpdir.getPath()); // a root that exists, so a row is known to be gone
+		d.dispatchFolderListCore(folder, tmpdir, new HashMap<String, DBPathEntry>(), new PathEntry(folder),
+				new FixedLister(folder, tmpdir, listed));
+		assertTrue(u.bound.contains("date 1400000000000")); // bound as the DB stores it
+		return u;
+	}
+
+	public void testMoveAcrossFolders() throws Exception {
+		RecordingUpdater u = moveAcrossFolders(1234);
+		assertEquals(1, u.moved.size());
+		assertEquals("C:\\dir1\\a.txt -> C:\\dir2\\a.txt", u.moved.get(0));
+		assertEquals(0, u.inserted.size());
+	}
+
+	public void testMoveAcrossFoldersOtherCsum() throws Exception {
+		RecordingUpdater u = moveAcrossFolders(5678);
+		assertEquals(0, u.moved.size());
+		assertEquals(1, u.inserted.size());
+	}
+}